@@ -0,0 +1,123 @@
+package togos.minecraft.maprend;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jnbt.CompoundTag;
+import org.jnbt.NBTInputStream;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import togos.minecraft.maprend.io.ChunkInflater;
+import togos.minecraft.maprend.io.RegionFile;
+
+/**
+ * A region file and the intermediate results of rendering it,
+ * prepared once so that each benchmark measures only its own step.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkRegion
+{
+	/** Decoded section data is kept for at most this many chunks, since it takes ~200kB each */
+	static final int MAX_DECODED_CHUNKS = 64;
+
+	@Param({""})
+	public String regionFile;
+
+	public RegionRenderer renderer;
+	public RegionFile rf;
+
+	/** Positions of the chunks present in the region */
+	public int[] chunkXs, chunkZs;
+	public int chunkCount;
+	/** Uncompressed NBT of each chunk */
+	public byte[][] chunkNbt;
+	/** Level tag of each chunk, as read with the renderer's projection */
+	public CompoundTag[] levelTags;
+
+	/** Output of loadChunkData for the first MAX_DECODED_CHUNKS chunks */
+	public short[][][] sectionBlockIds;
+	public byte[][][] sectionBlockData;
+	public boolean[][] usedSections;
+	public byte[][] biomeIds;
+	public int decodedChunkCount;
+
+	/** Output of preRender for the whole region */
+	public int[] colors;
+	public short[] heights;
+	/** Final tile pixels */
+	public int[] argb;
+
+	@Setup
+	public void setUp() throws IOException {
+		if( regionFile == null || regionFile.isEmpty() ) {
+			throw new IllegalArgumentException("Specify a region file to benchmark with -p regionFile=<path to .mca>");
+		}
+		File f = new File(regionFile);
+		if( !f.exists() ) throw new IOException(f+" doesn't exist");
+
+		renderer = new RegionRenderer(
+			BlockMap.loadDefault(), BiomeMap.loadDefault(), false, Integer.MIN_VALUE, Integer.MAX_VALUE,
+			64, -20, 20, 36, "Benchmark", new int[] { 1 }
+		);
+		rf = new RegionFile( f, true );
+
+		ChunkInflater inflater = new ChunkInflater();
+		List<int[]> positions = new ArrayList<int[]>();
+		List<byte[]> nbt = new ArrayList<byte[]>();
+		for( int cz=0; cz<32; ++cz ) {
+			for( int cx=0; cx<32; ++cx ) {
+				DataInputStream dis = rf.getChunkDataInputStream(cx, cz, inflater);
+				if( dis == null ) continue;
+				positions.add(new int[] { cx, cz });
+				nbt.add(Arrays.copyOf(inflater.getBuffer(), inflater.getLength()));
+			}
+		}
+		chunkCount = positions.size();
+		if( chunkCount == 0 ) throw new IOException(f+" contains no chunks");
+		chunkXs = new int[chunkCount];
+		chunkZs = new int[chunkCount];
+		chunkNbt = nbt.toArray(new byte[chunkCount][]);
+		levelTags = new CompoundTag[chunkCount];
+		for( int i=0; i<chunkCount; ++i ) {
+			chunkXs[i] = positions.get(i)[0];
+			chunkZs[i] = positions.get(i)[1];
+			NBTInputStream nis = new NBTInputStream(ChunkBenchmark.nbtStream(chunkNbt[i]));
+			try {
+				CompoundTag root = (CompoundTag)nis.readTag(RegionRenderer.CHUNK_PROJECTION);
+				levelTags[i] = (CompoundTag)root.getValue().get("Level");
+			} finally {
+				nis.close();
+			}
+		}
+
+		final int maxSectionCount = RegionRenderer.ChunkScratch.MAX_SECTION_COUNT;
+		decodedChunkCount = Math.min(chunkCount, MAX_DECODED_CHUNKS);
+		sectionBlockIds = new short[decodedChunkCount][maxSectionCount][16*16*16];
+		sectionBlockData = new byte[decodedChunkCount][maxSectionCount][16*16*16];
+		usedSections = new boolean[decodedChunkCount][maxSectionCount];
+		biomeIds = new byte[decodedChunkCount][16*16];
+		for( int i=0; i<decodedChunkCount; ++i ) {
+			RegionRenderer.loadChunkData( levelTags[i], maxSectionCount, sectionBlockIds[i], sectionBlockData[i], usedSections[i], biomeIds[i] );
+		}
+
+		colors = new int[512*512];
+		heights = new short[512*512];
+		renderer.preRender( rf, colors, heights, null, null, new RegionMetrics(0, 0) );
+		argb = colors.clone();
+		RegionRenderer.demultiplyAlpha( argb );
+		renderer.shade( heights, argb );
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		rf.close();
+	}
+}
@@ -0,0 +1,102 @@
+package togos.minecraft.maprend;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.jnbt.NBTInputStream;
+import org.jnbt.Tag;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import togos.minecraft.maprend.io.ChunkInflater;
+
+/**
+ * Steps of rendering a region that are done once per chunk.
+ * Each invocation handles one chunk, cycling through those in the region,
+ * so scores are per chunk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkBenchmark
+{
+	@State(Scope.Thread)
+	public static class Cursor {
+		int index = -1;
+		final ChunkInflater inflater = new ChunkInflater();
+		final RegionRenderer.ChunkScratch scratch = new RegionRenderer.ChunkScratch();
+		final int[] colors = new int[512*512];
+		final short[] heights = new short[512*512];
+
+		int next( int count ) {
+			if( ++index >= count ) index = 0;
+			return index;
+		}
+	}
+
+	static DataInputStream nbtStream( byte[] nbt ) {
+		return new DataInputStream(new ByteArrayInputStream(nbt));
+	}
+
+	/** Find and inflate a chunk's data */
+	@Benchmark
+	public DataInputStream getChunkDataInputStream( BenchmarkRegion region, Cursor cursor ) {
+		int i = cursor.next(region.chunkCount);
+		return region.rf.getChunkDataInputStream( region.chunkXs[i], region.chunkZs[i], cursor.inflater );
+	}
+
+	/** Parse a whole chunk's NBT */
+	@Benchmark
+	public Tag readTag( BenchmarkRegion region, Cursor cursor ) throws IOException {
+		int i = cursor.next(region.chunkCount);
+		return new NBTInputStream(nbtStream(region.chunkNbt[i])).readTag();
+	}
+
+	/** Parse only the parts of a chunk's NBT that the renderer uses */
+	@Benchmark
+	public Tag readTagProjected( BenchmarkRegion region, Cursor cursor ) throws IOException {
+		int i = cursor.next(region.chunkCount);
+		return new NBTInputStream(nbtStream(region.chunkNbt[i])).readTag(RegionRenderer.CHUNK_PROJECTION);
+	}
+
+	/** Unpack block IDs, data, and biomes from parsed NBT */
+	@Benchmark
+	public void loadChunkData( BenchmarkRegion region, Cursor cursor, Blackhole bh ) {
+		int i = cursor.next(region.chunkCount);
+		RegionRenderer.ChunkScratch s = cursor.scratch;
+		RegionRenderer.loadChunkData( region.levelTags[i], RegionRenderer.ChunkScratch.MAX_SECTION_COUNT,
+			s.sectionBlockIds, s.sectionBlockData, s.usedSections, s.biomeIds );
+		bh.consume(s.usedSections);
+	}
+
+	/** Composite the 256 columns of an unpacked chunk, as preRender does */
+	@Benchmark
+	public void renderColumns( BenchmarkRegion region, Cursor cursor, Blackhole bh ) {
+		int i = cursor.next(region.decodedChunkCount);
+		int cx = region.chunkXs[i], cz = region.chunkZs[i];
+		byte[] biomeIds = region.biomeIds[i];
+		for( int z=0; z<16; ++z ) {
+			for( int x=0; x<16; ++x ) {
+				region.renderer.renderColumn(
+					RegionRenderer.ChunkScratch.MAX_SECTION_COUNT,
+					region.sectionBlockIds[i], region.sectionBlockData[i], region.usedSections[i],
+					z*16+x, biomeIds[z*16+x]&0xFF, cursor.scratch.columnStack,
+					cursor.colors, cursor.heights, 512*(cz*16+z)+16*cx+x
+				);
+			}
+		}
+		bh.consume(cursor.colors);
+	}
+}
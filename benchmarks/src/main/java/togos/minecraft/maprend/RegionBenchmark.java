@@ -0,0 +1,97 @@
+package togos.minecraft.maprend;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import togos.minecraft.maprend.io.PNGWriter;
+
+/**
+ * Steps of rendering a region that are done once per region (512x512 pixels),
+ * so scores are per region, except for overlay, which is per pixel.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegionBenchmark
+{
+	static final int PIXELS = 512*512;
+
+	@State(Scope.Thread)
+	public static class Buffers {
+		final int[] colors = new int[PIXELS];
+		final short[] heights = new short[PIXELS];
+		final RegionMetrics metrics = new RegionMetrics(0, 0);
+	}
+
+	/** Counts bytes instead of writing them anywhere */
+	static class CountingOutputStream extends OutputStream {
+		long count;
+		@Override public void write( int b ) { ++count; }
+		@Override public void write( byte[] b, int off, int len ) { count += len; }
+	}
+
+	@State(Scope.Benchmark)
+	public static class Encoding {
+		@Param({"4"})
+		public int compressionLevel;
+		@Param({"none"})
+		public String filter;
+	}
+
+	/** Read, decode, and composite every chunk of the region on one thread */
+	@Benchmark
+	public int[] preRender( BenchmarkRegion region, Buffers buf ) {
+		region.renderer.preRender( region.rf, buf.colors, buf.heights, null, 0, 32, buf.metrics );
+		return buf.colors;
+	}
+
+	/** Includes copying the composited colors, since demultiplyAlpha works in place */
+	@Benchmark
+	public int[] demultiplyAlpha( BenchmarkRegion region, Buffers buf ) {
+		System.arraycopy( region.colors, 0, buf.colors, 0, PIXELS );
+		RegionRenderer.demultiplyAlpha( buf.colors );
+		return buf.colors;
+	}
+
+	/** Includes copying the composited colors, since shade works in place */
+	@Benchmark
+	public int[] shade( BenchmarkRegion region, Buffers buf ) {
+		System.arraycopy( region.colors, 0, buf.colors, 0, PIXELS );
+		region.renderer.shade( region.heights, buf.colors );
+		return buf.colors;
+	}
+
+	/** Color.overlay of each pixel of the tile onto the one below it; per pixel */
+	@Benchmark
+	@OperationsPerInvocation(PIXELS-512)
+	public int overlay( BenchmarkRegion region ) {
+		int[] argb = region.argb;
+		int acc = 0;
+		for( int i=512; i<PIXELS; ++i ) acc ^= Color.overlay( argb[i-512], argb[i] );
+		return acc;
+	}
+
+	/** Encode the tile as a PNG */
+	@Benchmark
+	public long encodePng( BenchmarkRegion region, Encoding enc ) throws IOException {
+		PNGWriter writer = new PNGWriter( enc.compressionLevel, PNGWriter.parseFilter(enc.filter), 1 );
+		CountingOutputStream os = new CountingOutputStream();
+		writer.write( region.argb, 512, 512, os );
+		return os.count;
+	}
+}
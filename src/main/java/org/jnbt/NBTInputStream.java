@@ -62,6 +62,11 @@ public final class NBTInputStream implements Closeable {
 	 */
 	private final DataInputStream is;
 	
+	/**
+	 * Holds tag names while deciding whether to skip them.
+	 */
+	private byte[] nameBuffer = new byte[64];
+	
 	/**
 	 * Creates a new <code>NBTInputStream</code>, which will source its data
 	 * from the specified input stream.
@@ -81,6 +86,27 @@ public final class NBTInputStream implements Closeable {
 		return readTag(0);
 	}
 	
+	/**
+	 * Reads an NBT tag from the stream, skipping over any parts
+	 * of it not selected by the given projection.
+	 * @param projection The paths to read.
+	 * @return The tag that was read.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public Tag readTag(NBTProjection projection) throws IOException {
+		if(projection.includesAll()) return readTag(0);
+		
+		int type = is.readByte() & 0xFF;
+		if(type == NBTConstants.TYPE_END) {
+			throw new IOException("TAG_End found without a TAG_Compound/TAG_List tag preceding it.");
+		}
+		int nameLength = is.readShort() & 0xFFFF;
+		byte[] nameBytes = new byte[nameLength];
+		is.readFully(nameBytes);
+		
+		return readProjectedTagPayload(type, new String(nameBytes, NBTConstants.CHARSET), 0, projection);
+	}
+	
 	/**
 	 * Reads an NBT from the stream.
 	 * @param depth The depth of this tag.
@@ -181,6 +207,132 @@ public final class NBTInputStream implements Closeable {
 		}
 	}
 
+	/**
+	 * Reads the payload of a tag, given the name, type, and projection.
+	 * Compound entries not selected by the projection are skipped.
+	 * @param type The type.
+	 * @param name The name.
+	 * @param depth The depth.
+	 * @param projection Which parts of the payload to read.
+	 * @return The tag.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	private Tag readProjectedTagPayload(int type, String name, int depth, NBTProjection projection) throws IOException {
+		if(projection.includesAll()) return readTagPayload(type, name, depth);
+		
+		switch(type) {
+		case NBTConstants.TYPE_LIST:
+			int childType = is.readByte();
+			int length = is.readInt();
+			
+			List<Tag> tagList = new ArrayList<Tag>();
+			for(int i = 0; i < length; i++) {
+				if(childType == NBTConstants.TYPE_END) {
+					throw new IOException("TAG_End not permitted in a list.");
+				}
+				tagList.add(readProjectedTagPayload(childType, "", depth + 1, projection));
+			}
+			
+			return new ListTag(name, NBTUtils.getTypeClass(childType), tagList);
+		case NBTConstants.TYPE_COMPOUND:
+			Map<String,Tag> tagMap = new HashMap<String,Tag>();
+			while(true) {
+				int entryType = is.readByte() & 0xFF;
+				if(entryType == NBTConstants.TYPE_END) break;
+				
+				int nameLength = is.readShort() & 0xFFFF;
+				if(nameLength > nameBuffer.length) nameBuffer = new byte[nameLength];
+				is.readFully(nameBuffer, 0, nameLength);
+				
+				NBTProjection entryProjection = projection.child(nameBuffer, nameLength);
+				if(entryProjection == null) {
+					skipTagPayload(entryType);
+				} else {
+					String entryName = new String(nameBuffer, 0, nameLength, NBTConstants.CHARSET);
+					tagMap.put(entryName, readProjectedTagPayload(entryType, entryName, depth + 1, entryProjection));
+				}
+			}
+			
+			return new CompoundTag(name, tagMap);
+		default:
+			// Projection can't select parts of anything else
+			return readTagPayload(type, name, depth);
+		}
+	}
+	
+	/**
+	 * @return the size of a tag payload of the given type,
+	 *   or -1 if that type of payload has no fixed size
+	 */
+	private static int fixedPayloadSize(int type) {
+		switch(type) {
+		case NBTConstants.TYPE_BYTE:   return 1;
+		case NBTConstants.TYPE_SHORT:  return 2;
+		case NBTConstants.TYPE_INT:    return 4;
+		case NBTConstants.TYPE_LONG:   return 8;
+		case NBTConstants.TYPE_FLOAT:  return 4;
+		case NBTConstants.TYPE_DOUBLE: return 8;
+		default: return -1;
+		}
+	}
+	
+	private void skipFully(long count) throws IOException {
+		while(count > 0) {
+			int skipped = is.skipBytes((int)Math.min(count, Integer.MAX_VALUE));
+			if(skipped <= 0) {
+				// skipBytes gives up at the end of the stream,
+				// but may also just be unable to skip right now.
+				is.readByte();
+				skipped = 1;
+			}
+			count -= skipped;
+		}
+	}
+	
+	/**
+	 * Skips over the payload of a tag without creating any objects.
+	 * @param type The type.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	private void skipTagPayload(int type) throws IOException {
+		int size = fixedPayloadSize(type);
+		if(size >= 0) {
+			skipFully(size);
+			return;
+		}
+		
+		switch(type) {
+		case NBTConstants.TYPE_BYTE_ARRAY:
+			skipFully(is.readInt());
+			return;
+		case NBTConstants.TYPE_STRING:
+			skipFully(is.readShort() & 0xFFFF);
+			return;
+		case NBTConstants.TYPE_LIST:
+			int childType = is.readByte();
+			int length = is.readInt();
+			int childSize = fixedPayloadSize(childType);
+			if(childSize >= 0) {
+				skipFully((long)childSize * length);
+			} else {
+				for(int i = 0; i < length; i++) skipTagPayload(childType);
+			}
+			return;
+		case NBTConstants.TYPE_COMPOUND:
+			while(true) {
+				int entryType = is.readByte() & 0xFF;
+				if(entryType == NBTConstants.TYPE_END) return;
+				skipFully(is.readShort() & 0xFFFF);
+				skipTagPayload(entryType);
+			}
+		case NBTConstants.TYPE_INT_ARRAY:
+			skipFully((long)is.readInt() * 4);
+			return;
+		default:
+			throw new IOException("Invalid tag type: " + type + ".");
+		}
+	}
+	
 	public void close() throws IOException {
 		is.close();
 	}
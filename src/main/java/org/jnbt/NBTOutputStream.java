@@ -58,14 +58,26 @@ public final class NBTOutputStream implements Closeable {
 	 */
 	private final DataOutputStream os;
 	
+	/**
+	 * Creates a new <code>NBTOutputStream</code>, which will write gzipped
+	 * data to the specified underlying output stream.
+	 * @param os The output stream.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public NBTOutputStream(OutputStream os) throws IOException {
+		this(os, true);
+	}
+	
 	/**
 	 * Creates a new <code>NBTOutputStream</code>, which will write data to the
 	 * specified underlying output stream.
 	 * @param os The output stream.
+	 * @param gzipped whether to gzip the data; chunks in region files
+	 *   are compressed by the region file's own stream instead
 	 * @throws IOException if an I/O error occurs.
 	 */
-	public NBTOutputStream(OutputStream os) throws IOException {
-		this.os = new DataOutputStream(new GZIPOutputStream(os));
+	public NBTOutputStream(OutputStream os, boolean gzipped) throws IOException {
+		this.os = new DataOutputStream(gzipped ? new GZIPOutputStream(os) : os);
 	}
 	
 	/**
@@ -130,6 +142,9 @@ public final class NBTOutputStream implements Closeable {
 		case NBTConstants.TYPE_COMPOUND:
 			writeCompoundTagPayload((CompoundTag) tag);
 			break;
+		case NBTConstants.TYPE_INT_ARRAY:
+			writeIntArrayTagPayload((IntArrayTag) tag);
+			break;
 		default:
 			throw new IOException("Invalid tag type: " + type + ".");
 		}
@@ -155,6 +170,19 @@ public final class NBTOutputStream implements Closeable {
 		os.write(bytes);
 	}
 
+	/**
+	 * Writes a <code>TAG_Int_Array</code> tag.
+	 * @param tag The tag.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	private void writeIntArrayTagPayload(IntArrayTag tag) throws IOException {
+		int[] ints = tag.getInts();
+		os.writeInt(ints.length);
+		for(int i = 0; i < ints.length; i++) {
+			os.writeInt(ints[i]);
+		}
+	}
+
 	/**
 	 * Writes a <code>TAG_Compound</code> tag.
 	 * @param tag The tag.
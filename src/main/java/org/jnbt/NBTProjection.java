@@ -0,0 +1,88 @@
+package org.jnbt;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Selects which parts of a tag tree {@link NBTInputStream#readTag(NBTProjection)}
+ * should read.  Everything else is skipped over on the stream
+ * without creating any objects.
+ * 
+ * Paths are dot-separated compound entry names, e.g. "Level.Sections.Blocks".
+ * Lists are transparent: a path that passes through a list applies to each of its elements.
+ * The tag at the end of a path is read in its entirety, and compounds along the way
+ * contain only the entries that lead to selected tags.
+ */
+public final class NBTProjection
+{
+	/** Projection that selects entire tags */
+	public static final NBTProjection ALL = new NBTProjection(new byte[0][], new NBTProjection[0]);
+	
+	private final byte[][] childNames;
+	private final NBTProjection[] children;
+	
+	private NBTProjection( byte[][] childNames, NBTProjection[] children ) {
+		this.childNames = childNames;
+		this.children = children;
+	}
+	
+	public boolean includesAll() {
+		return this == ALL;
+	}
+	
+	/**
+	 * @param name UTF-8-encoded entry name is in name[0..nameLength-1]
+	 * @return the projection to apply to the named compound entry,
+	 *   or null if it is not selected
+	 */
+	public NBTProjection child( byte[] name, int nameLength ) {
+		if( this == ALL ) return ALL;
+		
+		search: for( int i=0; i<childNames.length; ++i ) {
+			byte[] childName = childNames[i];
+			if( childName.length != nameLength ) continue;
+			for( int j=nameLength-1; j>=0; --j ) {
+				if( childName[j] != name[j] ) continue search;
+			}
+			return children[i];
+		}
+		return null;
+	}
+	
+	//// Construction ////
+	
+	static class Builder {
+		final Map<String,Builder> children = new LinkedHashMap<String,Builder>();
+		boolean all;
+		
+		void add( String[] path, int offset ) {
+			if( offset == path.length ) {
+				all = true;
+				return;
+			}
+			Builder child = children.get(path[offset]);
+			if( child == null ) children.put(path[offset], child = new Builder());
+			child.add(path, offset+1);
+		}
+		
+		NBTProjection build() {
+			if( all ) return ALL;
+			
+			byte[][] names = new byte[children.size()][];
+			NBTProjection[] projections = new NBTProjection[children.size()];
+			int i = 0;
+			for( Map.Entry<String,Builder> e : children.entrySet() ) {
+				names[i] = e.getKey().getBytes(NBTConstants.CHARSET);
+				projections[i] = e.getValue().build();
+				++i;
+			}
+			return new NBTProjection(names, projections);
+		}
+	}
+	
+	public static NBTProjection of( String...paths ) {
+		Builder b = new Builder();
+		for( String p : paths ) b.add(p.split("\\."), 0);
+		return b.build();
+	}
+}
@@ -60,6 +60,8 @@ public final class NBTUtils {
 			return "TAG_Float";
 		} else if(clazz.equals(IntTag.class)) {
 			return "TAG_Int";
+		} else if(clazz.equals(IntArrayTag.class)) {
+			return "TAG_Int_Array";
 		} else if(clazz.equals(ListTag.class)) {
 			return "TAG_List";
 		} else if(clazz.equals(LongTag.class)) {
@@ -94,6 +96,8 @@ public final class NBTUtils {
 			return NBTConstants.TYPE_FLOAT;
 		} else if(clazz.equals(IntTag.class)) {
 			return NBTConstants.TYPE_INT;
+		} else if(clazz.equals(IntArrayTag.class)) {
+			return NBTConstants.TYPE_INT_ARRAY;
 		} else if(clazz.equals(ListTag.class)) {
 			return NBTConstants.TYPE_LIST;
 		} else if(clazz.equals(LongTag.class)) {
@@ -137,6 +141,8 @@ public final class NBTUtils {
 			return ListTag.class;
 		case NBTConstants.TYPE_COMPOUND:
 			return CompoundTag.class;
+		case NBTConstants.TYPE_INT_ARRAY:
+			return IntArrayTag.class;
 		default:
 			throw new IllegalArgumentException("Invalid tag type : " + type + ".");
 		}
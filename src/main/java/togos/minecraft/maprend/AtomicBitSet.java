@@ -0,0 +1,55 @@
+package togos.minecraft.maprend;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size set of small non-negative integers
+ * that may be safely added to by many threads at once.
+ */
+public final class AtomicBitSet
+{
+	private final AtomicLongArray words;
+	
+	public AtomicBitSet( int size ) {
+		words = new AtomicLongArray((size+63) >>> 6);
+	}
+	
+	/**
+	 * Add an index to the set.
+	 * Costs one read if it was already there
+	 * and, barring contention on the same 64 bits, one CAS if not.
+	 * @return true if the index was not already in the set
+	 */
+	public boolean set( int index ) {
+		final int w = index >>> 6;
+		final long mask = 1L << index;
+		long old = words.get(w);
+		while( (old & mask) == 0 ) {
+			if( words.compareAndSet(w, old, old | mask) ) return true;
+			old = words.get(w);
+		}
+		return false;
+	}
+	
+	public boolean get( int index ) {
+		return (words.get(index >>> 6) & (1L << index)) != 0;
+	}
+	
+	/**
+	 * @return the lowest index >= fromIndex in the set, or -1 if there is none
+	 */
+	public int nextSetBit( int fromIndex ) {
+		int w = fromIndex >>> 6;
+		if( w >= words.length() ) return -1;
+		long word = words.get(w) & (-1L << fromIndex);
+		while( true ) {
+			if( word != 0 ) return (w << 6) + Long.numberOfTrailingZeros(word);
+			if( ++w == words.length() ) return -1;
+			word = words.get(w);
+		}
+	}
+	
+	public boolean isEmpty() {
+		return nextSetBit(0) == -1;
+	}
+}
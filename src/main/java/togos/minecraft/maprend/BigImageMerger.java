@@ -1,36 +1,257 @@
 package togos.minecraft.maprend;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.imageio.ImageIO;
 
 import togos.minecraft.maprend.RegionMap.Region;
+import togos.minecraft.maprend.io.PNGDataInputStream;
+import togos.minecraft.maprend.io.PNGWriter;
 
+/**
+ * Writes big.png one row of regions at a time, so that only
+ * 512 scanlines of the image need to be held in memory at once.
+ *
+ * Where each row's compressed data lies within big.png is recorded in
+ * big.bands, along with a stamp of the tiles it was made from, so that
+ * when the image is next updated, rows whose tiles haven't changed can be
+ * copied over from the old image without decoding or compressing anything.
+ */
 public class BigImageMerger
 {
-	public void createBigImage( RegionMap rm, File outputDir, boolean debug ) {
-		int width = (rm.maxX-rm.minX)*512;
-		int height = (rm.maxZ-rm.minZ)*512;
-		BufferedImage bigImage = new BufferedImage( width, height, BufferedImage.TYPE_INT_ARGB );
-		if( debug ) System.err.println( "Dimension: "+width+", "+height );
-		
-		for( Region r : rm.regions ) {
-			BufferedImage region = null;
+	protected static final int MAGIC = 0x544D4231; // "TMB1"
+
+	static class BandIndex {
+		int width, height, minX, minZ, compressionLevel, filter;
+		/** Length of the big.png this index describes */
+		long imageLength;
+		long[] stamps, offsets;
+		int[] lengths, adlers;
+
+		BandIndex( int bandCount ) {
+			stamps  = new long[bandCount];
+			offsets = new long[bandCount];
+			lengths = new int[bandCount];
+			adlers  = new int[bandCount];
+		}
+
+		boolean matches( BandIndex other ) {
+			return
+				width == other.width && height == other.height &&
+				minX == other.minX && minZ == other.minZ &&
+				compressionLevel == other.compressionLevel && filter == other.filter;
+		}
+
+		static BandIndex load( File f ) {
+			if( !f.exists() ) return null;
 			try {
-				region = ImageIO.read( r.imageFile );
-			} catch ( IOException e ) {
-				System.err.println( "Could not load image "+r.imageFile.getName() );
-				continue;
+				DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+				try {
+					if( dis.readInt() != MAGIC ) return null;
+					int bandCount = dis.readInt();
+					BandIndex index = new BandIndex(bandCount);
+					index.width = dis.readInt();
+					index.height = dis.readInt();
+					index.minX = dis.readInt();
+					index.minZ = dis.readInt();
+					index.compressionLevel = dis.readInt();
+					index.filter = dis.readInt();
+					index.imageLength = dis.readLong();
+					for( int i=0; i<bandCount; ++i ) {
+						index.stamps[i] = dis.readLong();
+						index.offsets[i] = dis.readLong();
+						index.lengths[i] = dis.readInt();
+						index.adlers[i] = dis.readInt();
+					}
+					return index;
+				} finally {
+					dis.close();
+				}
+			} catch( IOException e ) {
+				System.err.println("Error reading "+f+"; ignoring it: "+e.getMessage());
+				return null;
 			}
-			bigImage.createGraphics().drawImage( region, (r.rx-rm.minX)*512, (r.rz-rm.minZ)*512, null );
-			if( debug ) System.err.println( "Region "+r.rx+", "+r.rz+" drawn to "+(r.rx-rm.minX)*512+", "+(r.rz-rm.minZ)*512 );
 		}
+
+		void save( File f ) throws IOException {
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+			try {
+				dos.writeInt(MAGIC);
+				dos.writeInt(stamps.length);
+				dos.writeInt(width);
+				dos.writeInt(height);
+				dos.writeInt(minX);
+				dos.writeInt(minZ);
+				dos.writeInt(compressionLevel);
+				dos.writeInt(filter);
+				dos.writeLong(imageLength);
+				for( int i=0; i<stamps.length; ++i ) {
+					dos.writeLong(stamps[i]);
+					dos.writeLong(offsets[i]);
+					dos.writeInt(lengths[i]);
+					dos.writeInt(adlers[i]);
+				}
+			} finally {
+				dos.close();
+			}
+		}
+	}
+
+	/**
+	 * @return a value that changes when any tile in the row does
+	 */
+	protected static long rowStamp( List<Region> row ) {
+		long stamp = 1;
+		if( row != null ) for( Region r : row ) {
+			stamp = 31*stamp + r.rx;
+			stamp = 31*stamp + r.imageFile.lastModified();
+			stamp = 31*stamp + r.imageFile.length();
+		}
+		return stamp;
+	}
+
+	protected static void skipFully( InputStream in, long n ) throws IOException {
+		while( n > 0 ) {
+			long skipped = in.skip(n);
+			if( skipped <= 0 ) throw new IOException("Unexpected end of image data");
+			n -= skipped;
+		}
+	}
+
+	protected static void readFully( InputStream in, byte[] buf ) throws IOException {
+		new DataInputStream(in).readFully(buf);
+	}
+
+	/**
+	 * @param changed regions whose tiles have been rewritten, or null if not known;
+	 *   rows containing them are always re-encoded, even if their tiles'
+	 *   modification times and sizes happen to be unchanged
+	 */
+	public void createBigImage( RegionMap rm, Set<Region> changed, File outputDir, boolean debug, PNGWriter pngWriter ) {
+		if( rm.regions.size() == 0 ) return;
+		File bigImageFile = new File( outputDir, "big.png" );
+		File indexFile = new File( outputDir, "big.bands" );
+		File tempFile = new File( outputDir, ".big.png.temp" );
+		long width = (long)(rm.maxX-rm.minX)*512;
+		long height = (long)(rm.maxZ-rm.minZ)*512;
+		if( width * 512 > Integer.MAX_VALUE ) {
+			System.err.println( "Could not write big image; "+(rm.maxX-rm.minX)+" regions is too wide" );
+			return;
+		}
+		if( debug ) System.err.println( "Dimension: "+width+", "+height );
+
+		Map<Integer,List<Region>> regionRows = new HashMap<Integer,List<Region>>();
+		for( Region r : rm.regions ) {
+			List<Region> row = regionRows.get(r.rz);
+			if( row == null ) regionRows.put(r.rz, row = new ArrayList<Region>());
+			row.add(r);
+		}
+		for( List<Region> row : regionRows.values() ) {
+			Collections.sort( row, new Comparator<Region>() {
+				public int compare( Region r1, Region r2 ) {
+					return r1.rx < r2.rx ? -1 : r1.rx > r2.rx ? 1 : 0;
+				}
+			});
+		}
+		Set<Integer> changedRows = new HashSet<Integer>();
+		if( changed != null ) for( Region r : changed ) changedRows.add(r.rz);
+
+		BandIndex index = new BandIndex( rm.maxZ-rm.minZ );
+		index.width = (int)width;
+		index.height = (int)height;
+		index.minX = rm.minX;
+		index.minZ = rm.minZ;
+		index.compressionLevel = pngWriter.compressionLevel;
+		index.filter = pngWriter.filter;
+
+		for( int rz=rm.minZ, b=0; rz<rm.maxZ; ++rz, ++b ) index.stamps[b] = rowStamp(regionRows.get(rz));
+
+		BandIndex oldIndex = BandIndex.load( indexFile );
+		if( oldIndex != null && !(oldIndex.matches(index) && oldIndex.imageLength == bigImageFile.length()) ) {
+			oldIndex = null;
+		}
+		if( oldIndex != null && changedRows.isEmpty() && Arrays.equals(oldIndex.stamps, index.stamps) ) {
+			if( debug ) System.err.println( "Big image already up-to-date" );
+			return;
+		}
+
+		int[] band = null;
+		int reusedCount = 0;
 		try {
-			ImageIO.write( bigImage, "png", new File( outputDir+"/big.png" ) );
+			InputStream oldData = null;
+			long oldDataPosition = 0;
+			PNGWriter.Encoder enc = pngWriter.open( new FileOutputStream(tempFile), (int)width, (int)height );
+			try {
+				if( oldIndex != null && enc.rowsAreIndependent() ) {
+					oldData = new PNGDataInputStream(new BufferedInputStream(new FileInputStream(bigImageFile)));
+				}
+				for( int rz=rm.minZ, b=0; rz<rm.maxZ; ++rz, ++b ) {
+					List<Region> row = regionRows.get(rz);
+					index.offsets[b] = enc.getDeflatedLength();
+
+					if( oldData != null && !changedRows.contains(rz) && oldIndex.stamps[b] == index.stamps[b] ) {
+						byte[] data = new byte[oldIndex.lengths[b]];
+						skipFully( oldData, oldIndex.offsets[b] - oldDataPosition );
+						readFully( oldData, data );
+						oldDataPosition = oldIndex.offsets[b] + data.length;
+						enc.writeDeflatedRows( data, 0, data.length, oldIndex.adlers[b] & 0xFFFFFFFFL, 512 );
+						index.adlers[b] = oldIndex.adlers[b];
+						++reusedCount;
+					} else {
+						if( band == null ) band = new int[(int)width*512];
+						else Arrays.fill( band, 0 );
+						if( row != null ) for( Region r : row ) {
+							BufferedImage region = null;
+							try {
+								region = ImageIO.read( r.imageFile );
+							} catch ( IOException e ) {
+								System.err.println( "Could not load image "+r.imageFile.getName() );
+								continue;
+							}
+							if( region == null ) {
+								System.err.println( "Could not load image "+r.imageFile.getName() );
+								continue;
+							}
+							int x = (r.rx-rm.minX)*512;
+							region.getRGB( 0, 0, Math.min(512, region.getWidth()), Math.min(512, region.getHeight()), band, x, (int)width );
+							if( debug ) System.err.println( "Region "+r.rx+", "+r.rz+" drawn to "+x+", "+(r.rz-rm.minZ)*512 );
+						}
+						index.adlers[b] = (int)enc.writeRows( band, 0, 512 );
+					}
+					index.lengths[b] = (int)(enc.getDeflatedLength() - index.offsets[b]);
+				}
+			} finally {
+				enc.close();
+				if( oldData != null ) oldData.close();
+			}
+
+			indexFile.delete();
+			bigImageFile.delete();
+			if( !tempFile.renameTo(bigImageFile) ) throw new IOException("Failed to rename "+tempFile+" to "+bigImageFile);
+			index.imageLength = bigImageFile.length();
+			index.save( indexFile );
+			if( debug ) System.err.println( "Re-used "+reusedCount+" of "+index.stamps.length+" rows of the previous big image" );
 		} catch ( IOException e ) {
-			System.err.println( "Could not write big image to "+outputDir+"/big.png" );
+			System.err.println( "Could not write big image to "+bigImageFile+": "+e.getMessage() );
+			tempFile.delete();
 		}
 	}
 }
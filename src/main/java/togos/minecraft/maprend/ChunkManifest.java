@@ -0,0 +1,121 @@
+package togos.minecraft.maprend;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import togos.minecraft.maprend.io.RegionFile;
+
+/**
+ * Records which version of each chunk in a region a tile was rendered from,
+ * so that a later run can tell which chunks have been saved since.
+ * Kept next to the tile as tile.<x>.<z>.chunks.
+ */
+public class ChunkManifest
+{
+	protected static final int MAGIC = 0x544D4331; // "TMC1"
+	public static final int CHUNK_COUNT = 32*32;
+	
+	/** Identifies the renderer settings used, since changing them affects every chunk */
+	public final int settingsHash;
+	/**
+	 * Save timestamp of each chunk (indexed by x+z*32), 0 for chunks not present,
+	 * or UNKNOWN_TIMESTAMP for chunks present but without a timestamp
+	 * (some tools that write region files leave them at zero)
+	 */
+	public final int[] chunkTimestamps;
+	
+	public static final int UNKNOWN_TIMESTAMP = -1;
+	
+	public ChunkManifest( int settingsHash, int[] chunkTimestamps ) {
+		this.settingsHash = settingsHash;
+		this.chunkTimestamps = chunkTimestamps;
+	}
+	
+	public static ChunkManifest of( RegionFile rf, int settingsHash ) {
+		int[] timestamps = new int[CHUNK_COUNT];
+		for( int cz=0; cz<32; ++cz ) {
+			for( int cx=0; cx<32; ++cx ) {
+				if( rf.hasChunk(cx, cz) ) {
+					int timestamp = rf.getChunkTimestamp(cx, cz);
+					timestamps[cx+cz*32] = timestamp == 0 ? UNKNOWN_TIMESTAMP : timestamp;
+				}
+			}
+		}
+		return new ChunkManifest(settingsHash, timestamps);
+	}
+	
+	/**
+	 * @return an array of flags indicating which chunks (indexed by x+z*32)
+	 *   may differ between this manifest and newer, or null if the two
+	 *   were made with different settings and so can't be compared
+	 */
+	public boolean[] changedChunks( ChunkManifest newer ) {
+		if( settingsHash != newer.settingsHash ) return null;
+		
+		boolean[] changed = new boolean[CHUNK_COUNT];
+		for( int i=0; i<CHUNK_COUNT; ++i ) {
+			changed[i] =
+				chunkTimestamps[i] != newer.chunkTimestamps[i] ||
+				newer.chunkTimestamps[i] == UNKNOWN_TIMESTAMP;
+		}
+		return changed;
+	}
+	
+	/**
+	 * Read a manifest as written by write.
+	 * Layer cache files start with one too, with their own magic number.
+	 * 
+	 * @param magic the magic number the manifest should start with
+	 * @return the manifest, or null if it starts with some other number
+	 */
+	public static ChunkManifest read( DataInputStream dis, int magic ) throws IOException {
+		if( dis.readInt() != magic ) return null;
+		int settingsHash = dis.readInt();
+		int[] timestamps = new int[CHUNK_COUNT];
+		for( int i=0; i<CHUNK_COUNT; ++i ) timestamps[i] = dis.readInt();
+		return new ChunkManifest(settingsHash, timestamps);
+	}
+	
+	public void write( DataOutputStream dos, int magic ) throws IOException {
+		dos.writeInt(magic);
+		dos.writeInt(settingsHash);
+		for( int i=0; i<CHUNK_COUNT; ++i ) dos.writeInt(chunkTimestamps[i]);
+	}
+	
+	/**
+	 * @return the manifest stored in the given file,
+	 *   or null if it doesn't exist or can't be read
+	 */
+	public static ChunkManifest load( File f ) {
+		if( !f.exists() ) return null;
+		try {
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			try {
+				return read( dis, MAGIC );
+			} finally {
+				dis.close();
+			}
+		} catch( IOException e ) {
+			System.err.println("Error reading chunk manifest "+f+"; ignoring it: "+e.getMessage());
+			return null;
+		}
+	}
+	
+	public void save( File f ) throws IOException {
+		File temp = new File(f.getParentFile(), "."+f.getName()+".temp");
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			write( dos, MAGIC );
+		} finally {
+			dos.close();
+		}
+		f.delete();
+		if( !temp.renameTo(f) ) throw new IOException("Failed to rename "+temp+" to "+f);
+	}
+}
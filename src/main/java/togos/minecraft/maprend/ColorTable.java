@@ -0,0 +1,80 @@
+package togos.minecraft.maprend;
+
+import togos.minecraft.maprend.BiomeMap.Biome;
+import togos.minecraft.maprend.BlockMap.Block;
+
+/**
+ * A BlockMap and BiomeMap compiled into flat arrays
+ * so that looking up a block's color takes one or two array loads.
+ */
+public final class ColorTable
+{
+	/** Mask for the BlockMap.INF_* biome influence in a blockFlags entry */
+	public static final int INFLUENCE_MASK = 0x03;
+	/** Set in blockFlags entries for block IDs with no explicitly mapped color */
+	public static final int FLAG_DEFAULTED_BLOCK = 0x10;
+	/** Set in blockFlags entries for non-zero data values with no explicitly mapped color */
+	public static final int FLAG_DEFAULTED_DATA  = 0x20;
+	public static final int DEFAULTED_MASK = FLAG_DEFAULTED_BLOCK | FLAG_DEFAULTED_DATA;
+	
+	public static final int DATA_VALUE_COUNT = Block.SUB_COLOR_COUNT;
+	public static final int BLOCK_INDEX_COUNT = BlockMap.SIZE * DATA_VALUE_COUNT;
+	
+	public static int blockIndex( int blockId, int blockDatum ) {
+		return blockId << 4 | blockDatum;
+	}
+	
+	public static int biomeIndex( int biomeId, int influence ) {
+		return biomeId << 2 | influence;
+	}
+	
+	/** Un-biome-influenced block colors, indexed by blockIndex(blockId, blockDatum) */
+	public final int[] blockColors;
+	/** Biome influence and FLAG_* bits, indexed by blockIndex(blockId, blockDatum) */
+	public final byte[] blockFlags;
+	/** Colors to multiply influenced blocks' colors by, indexed by biomeIndex(biomeId, influence) */
+	public final int[] biomeMultipliers;
+	/** Whether each biome ID uses the default biome colors */
+	public final boolean[] biomeIsDefault;
+	
+	protected ColorTable( int[] blockColors, byte[] blockFlags, int[] biomeMultipliers, boolean[] biomeIsDefault ) {
+		this.blockColors = blockColors;
+		this.blockFlags = blockFlags;
+		this.biomeMultipliers = biomeMultipliers;
+		this.biomeIsDefault = biomeIsDefault;
+	}
+	
+	public static ColorTable compile( BlockMap blockMap, BiomeMap biomeMap ) {
+		int[] blockColors = new int[BLOCK_INDEX_COUNT];
+		byte[] blockFlags = new byte[BLOCK_INDEX_COUNT];
+		for( int blockId=0; blockId<BlockMap.SIZE; ++blockId ) {
+			Block bc = blockMap.blocks[blockId];
+			for( int blockDatum=0; blockDatum<DATA_VALUE_COUNT; ++blockDatum ) {
+				int idx = blockIndex(blockId, blockDatum);
+				int flags = 0;
+				if( bc.hasSubColors.length > blockDatum && bc.hasSubColors[blockDatum] ) {
+					blockColors[idx] = bc.subColors[blockDatum];
+					flags = bc.subColorInfluences[blockDatum];
+				} else {
+					if( blockDatum != 0 ) flags |= FLAG_DEFAULTED_DATA;
+					blockColors[idx] = bc.baseColor;
+					flags = bc.baseInfluence | flags;
+				}
+				if( bc.isDefault ) flags |= FLAG_DEFAULTED_BLOCK;
+				blockFlags[idx] = (byte)flags;
+			}
+		}
+		
+		int[] biomeMultipliers = new int[BiomeMap.SIZE*4];
+		boolean[] biomeIsDefault = new boolean[BiomeMap.SIZE];
+		for( int biomeId=0; biomeId<BiomeMap.SIZE; ++biomeId ) {
+			Biome biome = biomeMap.getBiome(biomeId);
+			for( int influence=0; influence<4; ++influence ) {
+				biomeMultipliers[biomeIndex(biomeId, influence)] = biome.getMultiplier(influence);
+			}
+			biomeIsDefault[biomeId] = biome.isDefault;
+		}
+		
+		return new ColorTable(blockColors, blockFlags, biomeMultipliers, biomeIsDefault);
+	}
+}
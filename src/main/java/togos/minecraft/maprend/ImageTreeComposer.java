@@ -1,6 +1,24 @@
 package togos.minecraft.maprend;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 import togos.minecraft.maprend.RegionMap.Region;
 import togos.minecraft.maprend.io.ContentStore;
@@ -8,9 +26,139 @@ import togos.minecraft.maprend.io.ContentStore;
 public class ImageTreeComposer
 {
 	final ContentStore store;
+	final int threadCount;
 	
-	public ImageTreeComposer( ContentStore store ) {
+	public ImageTreeComposer( ContentStore store, int threadCount ) {
 		this.store = store;
+		this.threadCount = threadCount;
+	}
+	
+	public ImageTreeComposer( ContentStore store ) {
+		this( store, Runtime.getRuntime().availableProcessors() );
+	}
+	
+	/**
+	 * URN of a node of the tree as of the last time it was composed,
+	 * and for single-region nodes, the modification time and size
+	 * of the tile image it was made from, or for larger nodes,
+	 * the URNs of the 4 sub-nodes it was made from.
+	 */
+	static class CachedNode {
+		public final String urn;
+		public final long tileModified, tileLength;
+		public final String[] children;
+		
+		public CachedNode( String urn, long tileModified, long tileLength ) {
+			this.urn = urn;
+			this.tileModified = tileModified;
+			this.tileLength = tileLength;
+			this.children = null;
+		}
+		
+		public CachedNode( String urn, String[] children ) {
+			this.urn = urn;
+			this.tileModified = 0;
+			this.tileLength = 0;
+			this.children = children;
+		}
+	}
+	
+	protected static String nodeKey( int rx, int rz, int size ) {
+		return rx+" "+rz+" "+size;
+	}
+	
+	/** Previously composed nodes, keyed by nodeKey */
+	protected Map<String,CachedNode> cache = new ConcurrentHashMap<String,CachedNode>();
+	/** Keys of nodes containing regions that have changed since they were cached */
+	protected Set<String> dirtyNodes = new HashSet<String>();
+	/**
+	 * Occupancy quadtree; element n holds the origins of the nodes
+	 * of size 2^n that contain at least one region
+	 */
+	protected List<LongMap<Boolean>> occupiedNodes = new ArrayList<LongMap<Boolean>>();
+	
+	protected static Map<String,CachedNode> loadCache( File f ) {
+		Map<String,CachedNode> cache = new ConcurrentHashMap<String,CachedNode>();
+		if( f == null || !f.exists() ) return cache;
+		try {
+			BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+			try {
+				String line;
+				while( (line = r.readLine()) != null ) {
+					String[] parts = line.split(" ");
+					String key;
+					if( parts.length == 6 || parts.length == 10 ) {
+						key = nodeKey(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+					} else continue;
+					if( parts.length == 6 ) {
+						cache.put( key, new CachedNode(parts[3], Long.parseLong(parts[4]), Long.parseLong(parts[5])) );
+					} else {
+						String[] children = Arrays.copyOfRange(parts, 6, 10);
+						for( int i=0; i<4; ++i ) if( "-".equals(children[i]) ) children[i] = null;
+						cache.put( key, new CachedNode(parts[3], children) );
+					}
+				}
+			} finally {
+				r.close();
+			}
+		} catch( IOException e ) {
+			System.err.println("Error reading image tree cache "+f+"; ignoring it: "+e.getMessage());
+			cache.clear();
+		} catch( NumberFormatException e ) {
+			System.err.println("Error reading image tree cache "+f+"; ignoring it: "+e.getMessage());
+			cache.clear();
+		}
+		return cache;
+	}
+	
+	protected static void saveCache( Map<String,CachedNode> cache, File f ) throws IOException {
+		File temp = new File(f.getParentFile(), "."+f.getName()+".temp");
+		Writer w = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+		try {
+			for( Map.Entry<String,CachedNode> e : cache.entrySet() ) {
+				CachedNode n = e.getValue();
+				w.write( e.getKey()+" "+n.urn+" "+n.tileModified+" "+n.tileLength );
+				if( n.children != null ) for( String c : n.children ) w.write( " "+(c == null ? "-" : c) );
+				w.write( "\n" );
+			}
+		} finally {
+			w.close();
+		}
+		f.delete();
+		if( !temp.renameTo(f) ) throw new IOException("Failed to rename "+temp+" to "+f);
+	}
+	
+	/**
+	 * @return the coordinate of the node of the given size containing v
+	 *   in a tree whose root spans -radius to +radius
+	 */
+	protected static int nodeOrigin( int v, int size, int radius ) {
+		return v - Math.floorMod( v + radius, size );
+	}
+	
+	/**
+	 * Mark the node at each level of the tree that contains the given region as dirty
+	 */
+	protected void markDirty( int rx, int rz, int radius ) {
+		for( int size=1; size<=radius*2; size*=2 ) {
+			dirtyNodes.add( nodeKey(nodeOrigin(rx, size, radius), nodeOrigin(rz, size, radius), size) );
+		}
+	}
+	
+	protected void buildOccupancy( RegionMap rmap, int radius ) {
+		occupiedNodes = new ArrayList<LongMap<Boolean>>();
+		for( int size=1; size<=radius*2; size*=2 ) {
+			LongMap<Boolean> occupied = new LongMap<Boolean>();
+			for( Region r : rmap.regions ) {
+				occupied.put( LongMap.key(nodeOrigin(r.rx, size, radius), nodeOrigin(r.rz, size, radius)), Boolean.TRUE );
+			}
+			occupiedNodes.add( occupied );
+		}
+	}
+	
+	protected boolean isOccupied( int rx, int rz, int size ) {
+		int level = Integer.numberOfTrailingZeros(size);
+		return level < occupiedNodes.size() && occupiedNodes.get(level).get(rx, rz) != null;
 	}
 	
 	protected static boolean fitsInRadius( RegionMap rmap, int radius ) {
@@ -50,31 +198,144 @@ public class ImageTreeComposer
 		}
 	}
 	
-	protected String compose( final RegionMap rmap, final int rx, final int rz, final int size ) {
-		if( size == 0 ) {
-			throw new RuntimeException( "Bad region range size: "+size+" (should be a power of 2, >= 1)");
+	/**
+	 * Composes one node of the tree, forking a sub-task for each quadrant.
+	 * 
+	 * A node whose sub-nodes come out the same as when it was cached
+	 * gets its cached URN, without its description being rebuilt and stored.
+	 */
+	class ComposeTask extends RecursiveTask<String> {
+		private static final long serialVersionUID = 1L;
+		
+		final RegionMap rmap;
+		final int rx, rz, size;
+		
+		public ComposeTask( RegionMap rmap, int rx, int rz, int size ) {
+			if( size == 0 ) {
+				throw new RuntimeException( "Bad region range size: "+size+" (should be a power of 2, >= 1)");
+			}
+			this.rmap = rmap;
+			this.rx = rx;
+			this.rz = rz;
+			this.size = size;
 		}
-		if( size == 1 ) {
-			Region r = rmap.regionAt(rx,rz);
-			try {
-	            return r == null ? null : store.store(r.imageFile);
-            } catch( IOException e ) {
-            	throw new RuntimeException(e);
-            }
-		} else {
-			final int subSize = size/2;
-			String r0 = compose( rmap, rx        , rz        , subSize );
-			String r1 = compose( rmap, rx+subSize, rz        , subSize );
-			String r2 = compose( rmap, rx        , rz+subSize, subSize );
-			String r3 = compose( rmap, rx+subSize, rz+subSize, subSize );
-			return r0 == null && r1 == null && r2 == null && r3 == null ? null :
-				compose( size+"x"+size+" regions at "+rx+","+rz, rx, rz, size, r0, r1, r2, r3 );
+		
+		@Override protected String compute() {
+			// Empty parts of the map needn't be searched for regions
+			if( !isOccupied(rx, rz, size) ) return null;
+			
+			String key = nodeKey(rx, rz, size);
+			CachedNode cached = cache.get(key);
+			if( cached != null && !dirtyNodes.contains(key) ) return cached.urn;
+			
+			String urn;
+			if( size == 1 ) {
+				Region r = rmap.regionAt(rx,rz);
+				if( r == null ) {
+					urn = null;
+				} else {
+					long modified = r.imageFile.lastModified(), length = r.imageFile.length();
+					try {
+						urn = store.store(r.imageFile);
+					} catch( IOException e ) {
+						throw new RuntimeException(e);
+					}
+					cache.put( key, new CachedNode(urn, modified, length) );
+				}
+			} else {
+				final int subSize = size/2;
+				ComposeTask[] subTasks = new ComposeTask[] {
+					new ComposeTask( rmap, rx        , rz        , subSize ),
+					new ComposeTask( rmap, rx+subSize, rz        , subSize ),
+					new ComposeTask( rmap, rx        , rz+subSize, subSize ),
+					new ComposeTask( rmap, rx+subSize, rz+subSize, subSize )
+				};
+				ForkJoinTask.invokeAll( subTasks );
+				String[] children = new String[4];
+				for( int i=0; i<4; ++i ) children[i] = subTasks[i].join();
+				
+				if( children[0] == null && children[1] == null && children[2] == null && children[3] == null ) {
+					urn = null;
+				} else if( cached != null && cached.children != null && Arrays.equals(cached.children, children) ) {
+					urn = cached.urn;
+				} else {
+					urn = compose( size+"x"+size+" regions at "+rx+","+rz, rx, rz, size, children[0], children[1], children[2], children[3] );
+				}
+				if( urn != null ) cache.put( key, new CachedNode(urn, children) );
+			}
+			if( urn == null ) cache.remove( key );
+			return urn;
 		}
 	}
 	
 	public String compose( RegionMap rmap ) {
+		return compose( rmap, null, null );
+	}
+	
+	/**
+	 * Compose the tree, re-using the parts of the one cached in cacheFile that
+	 * don't contain changed regions, and update the cache.
+	 * 
+	 * Regions whose tiles have a different modification time or size than
+	 * when they were cached, or that have been added or removed since,
+	 * are considered changed along with those in the changed set.
+	 * 
+	 * @param changed regions whose tiles are known to have been rewritten; may be null
+	 * @param cacheFile file in which to cache node URNs; may be null
+	 */
+	public String compose( RegionMap rmap, Set<Region> changed, File cacheFile ) {
 		int radius = 1; // In region widths (512 meters)
 		while( !fitsInRadius(rmap,radius) ) radius *= 2;
-		return compose( rmap, -radius, -radius, radius*2 );
+		
+		cache = loadCache( cacheFile );
+		dirtyNodes = new HashSet<String>();
+		// Nodes larger than the tree may be from when it covered a larger area
+		// and can't be trusted to be up-to-date if it grows back
+		for( Iterator<String> i = cache.keySet().iterator(); i.hasNext(); ) {
+			if( Integer.parseInt(i.next().split(" ")[2]) > radius*2 ) i.remove();
+		}
+		
+		Set<String> presentLeaves = new HashSet<String>();
+		for( Region r : rmap.regions ) {
+			String key = nodeKey(r.rx, r.rz, 1);
+			presentLeaves.add(key);
+			CachedNode cached = cache.get(key);
+			if(
+				cached == null ||
+				cached.tileModified != r.imageFile.lastModified() ||
+				cached.tileLength != r.imageFile.length()
+			) {
+				markDirty( r.rx, r.rz, radius );
+			}
+		}
+		if( changed != null ) for( Region r : changed ) markDirty( r.rx, r.rz, radius );
+		for( String key : cache.keySet() ) {
+			String[] parts = key.split(" ");
+			if( "1".equals(parts[2]) && !presentLeaves.contains(key) ) {
+				markDirty( Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), radius );
+			}
+		}
+		
+		buildOccupancy( rmap, radius );
+		ForkJoinPool pool = new ForkJoinPool( threadCount );
+		String urn;
+		try {
+			urn = pool.invoke( new ComposeTask(rmap, -radius, -radius, radius*2) );
+		} finally {
+			pool.shutdown();
+		}
+		// Nodes that no longer contain any regions aren't visited, so drop them here
+		for( Iterator<String> i = cache.keySet().iterator(); i.hasNext(); ) {
+			String[] parts = i.next().split(" ");
+			if( !isOccupied(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2])) ) i.remove();
+		}
+		if( cacheFile != null ) {
+			try {
+				saveCache( cache, cacheFile );
+			} catch( IOException e ) {
+				System.err.println("Error writing image tree cache "+cacheFile+": "+e.getMessage());
+			}
+		}
+		return urn;
 	}
 }
@@ -0,0 +1,78 @@
+package togos.minecraft.maprend;
+
+/**
+ * Open-addressing hash map from long keys to values,
+ * for looking things up by packed coordinates without boxing.
+ * Doesn't support removal.
+ */
+class LongMap<V>
+{
+	protected long[] keys;
+	protected Object[] values;
+	protected int size;
+
+	public LongMap() {
+		keys = new long[16];
+		values = new Object[16];
+	}
+
+	public static long key( int x, int z ) {
+		return ((long)x << 32) | (z & 0xFFFFFFFFL);
+	}
+
+	protected static int slot( long key, int mask ) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+
+	public int size() { return size; }
+
+	@SuppressWarnings("unchecked")
+	public V get( long key ) {
+		int mask = keys.length-1;
+		for( int i=slot(key, mask); values[i] != null; i = (i+1) & mask ) {
+			if( keys[i] == key ) return (V)values[i];
+		}
+		return null;
+	}
+
+	public V get( int x, int z ) {
+		return get( key(x, z) );
+	}
+
+	/**
+	 * @return the value previously associated with the key, if any
+	 */
+	@SuppressWarnings("unchecked")
+	public V put( long key, V value ) {
+		if( value == null ) throw new NullPointerException("LongMap can't hold null values");
+		int mask = keys.length-1;
+		int i;
+		for( i=slot(key, mask); values[i] != null; i = (i+1) & mask ) {
+			if( keys[i] == key ) {
+				V old = (V)values[i];
+				values[i] = value;
+				return old;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if( ++size * 2 > keys.length ) grow();
+		return null;
+	}
+
+	protected void grow() {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[oldKeys.length*2];
+		values = new Object[oldKeys.length*2];
+		int mask = keys.length-1;
+		for( int j=0; j<oldKeys.length; ++j ) {
+			if( oldValues[j] == null ) continue;
+			int i;
+			for( i=slot(oldKeys[j], mask); values[i] != null; i = (i+1) & mask );
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package togos.minecraft.maprend;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes a RegionMetrics record to a file as a line of JSON
+ * each time a region is finished with.
+ * Lines are flushed as they're written so that the file can be
+ * watched while a long run is going on.
+ */
+public class MetricsLog implements Closeable
+{
+	protected final Writer w;
+
+	public MetricsLog( File f ) throws IOException {
+		File dir = f.getAbsoluteFile().getParentFile();
+		if( dir != null && !dir.exists() ) dir.mkdirs();
+		this.w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"));
+	}
+
+	public synchronized void write( RegionMetrics m ) {
+		try {
+			w.write(m.toJson());
+			w.write("\n");
+			w.flush();
+		} catch( IOException e ) {
+			System.err.println("Error writing metrics for region "+m.rx+", "+m.rz+": "+e.getMessage());
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		w.close();
+	}
+}
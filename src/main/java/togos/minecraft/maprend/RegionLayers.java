@@ -0,0 +1,139 @@
+package togos.minecraft.maprend;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The un-shaded color and height data for a region, as produced by preRender,
+ * along with the manifest of chunks they were rendered from.
+ * 
+ * Cached as tile.<x>.<z>.layers so that shading, scaling, and encoding
+ * can be redone, and changed chunks patched in, without reading every chunk.
+ */
+public class RegionLayers
+{
+	protected static final int MAGIC = 0x544D4C31; // "TML1"
+	public static final int WIDTH = 512, DEPTH = 512;
+	
+	/** Chunk timestamps and the hash of the settings that affect colors and heights */
+	public final ChunkManifest manifest;
+	/** Pre-multiplied surface colors, indexed by z*512+x */
+	public final int[] colors;
+	/** Heights of the topmost mostly-opaque blocks, indexed by z*512+x */
+	public final short[] heights;
+	
+	public RegionLayers( ChunkManifest manifest, int[] colors, short[] heights ) {
+		this.manifest = manifest;
+		this.colors = colors;
+		this.heights = heights;
+	}
+	
+	public RegionLayers( ChunkManifest manifest ) {
+		this( manifest, new int[WIDTH*DEPTH], new short[WIDTH*DEPTH] );
+	}
+	
+	/**
+	 * Zero out the color and height data of the indicated chunks
+	 * @param chunks flags, indexed by x+z*32, indicating which chunks to clear
+	 */
+	public void clearChunks( boolean[] chunks ) {
+		for( int cz=0; cz<32; ++cz ) {
+			for( int cx=0; cx<32; ++cx ) {
+				if( !chunks[cx+cz*32] ) continue;
+				for( int z=cz*16; z<cz*16+16; ++z ) {
+					for( int idx=z*WIDTH+cx*16, x=0; x<16; ++x, ++idx ) {
+						colors[idx] = 0;
+						heights[idx] = 0;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return the layers stored in the given file,
+	 *   or null if it doesn't exist or can't be read
+	 */
+	public static RegionLayers load( File f ) {
+		if( !f.exists() ) return null;
+		try {
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			try {
+				ChunkManifest manifest = ChunkManifest.read( dis, MAGIC );
+				if( manifest == null ) return null;
+				
+				byte[] data = new byte[WIDTH*DEPTH*6];
+				new DataInputStream(new InflaterInputStream(dis)).readFully(data);
+				ByteBuffer bb = ByteBuffer.wrap(data);
+				RegionLayers layers = new RegionLayers(manifest);
+				bb.asIntBuffer().get(layers.colors);
+				bb.position(WIDTH*DEPTH*4);
+				bb.asShortBuffer().get(layers.heights);
+				return layers;
+			} finally {
+				dis.close();
+			}
+		} catch( IOException e ) {
+			System.err.println("Error reading layer cache "+f+"; ignoring it: "+e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Read just the manifest from the start of a layers file,
+	 * to find out which chunks will need decoding before loading the layers.
+	 *
+	 * @return the manifest, or null if the file doesn't exist or can't be read
+	 */
+	public static ChunkManifest loadManifest( File f ) {
+		if( !f.exists() ) return null;
+		try {
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			try {
+				return ChunkManifest.read( dis, MAGIC );
+			} finally {
+				dis.close();
+			}
+		} catch( IOException e ) {
+			System.err.println("Error reading layer cache "+f+"; ignoring it: "+e.getMessage());
+			return null;
+		}
+	}
+	
+	public void save( File f ) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(WIDTH*DEPTH*6);
+		bb.asIntBuffer().put(colors);
+		bb.position(WIDTH*DEPTH*4);
+		bb.asShortBuffer().put(heights);
+		
+		File temp = new File(f.getParentFile(), "."+f.getName()+".temp");
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			manifest.write( dos, MAGIC );
+			// Speed matters more than size here; the data is mostly
+			// runs of similar values and compresses well regardless
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				DeflaterOutputStream dfos = new DeflaterOutputStream(dos, deflater);
+				dfos.write(bb.array());
+				dfos.finish();
+			} finally {
+				deflater.end();
+			}
+		} finally {
+			dos.close();
+		}
+		f.delete();
+		if( !temp.renameTo(f) ) throw new IOException("Failed to rename "+temp+" to "+f);
+	}
+}
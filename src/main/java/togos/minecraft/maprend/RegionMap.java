@@ -3,29 +3,49 @@ package togos.minecraft.maprend;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Semaphore;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * Regions to be rendered, by position.
+ * 
+ * Lookups and additions are synchronized on the map, since a TileServer
+ * adds regions from its request threads as they're asked for.
+ * While that may be happening, iterate over the regions of a snapshot()
+ * rather than over regions directly.
+ */
 public class RegionMap
 {
 	static class Region {
 		public int rx, rz;
 		public File regionFile;
 		public File imageFile;
+		/**
+		 * Held while the region's tiles are being rendered, which
+		 * may involve several threads one after another
+		 */
+		public final Semaphore renderLock = new Semaphore(1);
 	}
 	
 	public ArrayList<Region> regions = new ArrayList<Region>();
 	public int minX=Integer.MAX_VALUE, minZ=Integer.MAX_VALUE, maxX=Integer.MIN_VALUE, maxZ=Integer.MIN_VALUE;
+	/** Regions by (rx, rz), so regionAt doesn't have to scan the list */
+	protected final LongMap<Region> regionIndex = new LongMap<Region>();
 	
-	public Region regionAt( int rx, int rz ) {
-		for( Region r : regions ) {
-			if( r.rx == rx && r.rz == rz ) return r;
-		}
-		return null;
+	public synchronized Region regionAt( int rx, int rz ) {
+		return regionIndex.get( rx, rz );
 	}
 	
-	public void addRegion( Region r ) {
+	/**
+	 * Regions must be added with this, not directly to regions,
+	 * for regionAt to find them.
+	 */
+	public synchronized void addRegion( Region r ) {
 		regions.add(r);
+		// Like the old linear search, regionAt returns the first region added at a position
+		long key = LongMap.key(r.rx, r.rz);
+		if( regionIndex.get(key) == null ) regionIndex.put( key, r );
 		if( r.rx < minX ) minX = r.rx;
 		if( r.rz < minZ ) minZ = r.rz;
 		if( r.rx >= maxX ) maxX = r.rx+1;
@@ -59,6 +79,38 @@ public class RegionMap
 		}
 	}
 	
+	/**
+	 * Find the region for a region file, adding it to the map if it's new.
+	 * 
+	 * @return null if the file isn't named like a region file or is outside the limit
+	 */
+	public synchronized Region regionForFile( File file, BoundingRect limit ) {
+		Matcher m = rfpat.matcher(file.getName());
+		if( !m.matches() ) return null;
+		int rx = Integer.parseInt(m.group(1));
+		int rz = Integer.parseInt(m.group(2));
+		if( rx < limit.minX || rx >= limit.maxX || rz < limit.minY || rz >= limit.maxY ) return null;
+		Region r = regionAt( rx, rz );
+		if( r == null ) {
+			r = new Region();
+			r.rx = rx;
+			r.rz = rz;
+			r.regionFile = file;
+			addRegion( r );
+		}
+		return r;
+	}
+	
+	/**
+	 * @return a copy of the map, with the same Region objects,
+	 *   that won't change if regions are added to this one
+	 */
+	public synchronized RegionMap snapshot() {
+		RegionMap copy = new RegionMap();
+		for( Region r : regions ) copy.addRegion( r );
+		return copy;
+	}
+	
 	//// Le statique ////
 	
 	public static RegionMap load( File file, BoundingRect limit ) {
@@ -0,0 +1,132 @@
+package togos.minecraft.maprend;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * Counts of what went into rendering one region, so that unusually
+ * expensive regions can be picked out of a big run.
+ *
+ * A region passes from thread to thread as it goes through the stages
+ * of rendering, but only one works on it at a time, except while its
+ * chunks are split among chunkPool threads, which report their work
+ * through the synchronized addChunkWork and addAllocatedBytes.
+ *
+ * Times are in nanoseconds, summed over every thread that worked on the region.
+ */
+public class RegionMetrics
+{
+	/** The region's tiles were all newer than it, so nothing was done */
+	public static final String CACHE_UP_TO_DATE = "up-to-date";
+	/** The tiles were remade without reading any chunks */
+	public static final String CACHE_HIT = "hit";
+	/** Only chunks that had changed were read */
+	public static final String CACHE_PARTIAL = "partial";
+	/** Every chunk was read */
+	public static final String CACHE_MISS = "miss";
+
+	public final int rx, rz;
+	public String cache = CACHE_MISS;
+	public long bytesRead, bytesWritten;
+	public int chunkCount, sectionCount;
+	public long readTime, inflateTime, parseTime, compositeTime, shadeTime, encodeTime, writeTime;
+	/** Total bytes allocated on the heap by all threads while working on the region, or -1 if unknown */
+	public long allocatedBytes;
+	/** Whether the full-size tile was written */
+	public boolean rewritten;
+	public String loadThread, renderThread, writeThread;
+	public String error;
+
+	public RegionMetrics( int rx, int rz ) {
+		this.rx = rx;
+		this.rz = rz;
+		this.allocatedBytes = ALLOCATION_TRACKED ? 0 : -1;
+	}
+
+	public synchronized void addChunkWork( int chunks, int sections, long inflateTime, long parseTime, long compositeTime ) {
+		this.chunkCount += chunks;
+		this.sectionCount += sections;
+		this.inflateTime += inflateTime;
+		this.parseTime += parseTime;
+		this.compositeTime += compositeTime;
+	}
+
+	public synchronized void addAllocatedBytes( long bytes ) {
+		if( ALLOCATION_TRACKED ) allocatedBytes += bytes;
+	}
+
+	//// Allocation tracking ////
+
+	protected static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+	protected static final boolean ALLOCATION_TRACKED = initAllocationTracking();
+
+	private static boolean initAllocationTracking() {
+		if( !(threadMXBean instanceof com.sun.management.ThreadMXBean) ) return false;
+		com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean)threadMXBean;
+		try {
+			if( !tmx.isThreadAllocatedMemorySupported() ) return false;
+			if( !tmx.isThreadAllocatedMemoryEnabled() ) tmx.setThreadAllocatedMemoryEnabled(true);
+			return true;
+		} catch( UnsupportedOperationException e ) {
+			return false;
+		} catch( SecurityException e ) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the number of bytes the current thread has allocated so far,
+	 *   or 0 if that can't be found out; only differences between calls mean anything
+	 */
+	public static long currentThreadAllocatedBytes() {
+		if( !ALLOCATION_TRACKED ) return 0;
+		return ((com.sun.management.ThreadMXBean)threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	//// JSON ////
+
+	protected static String jsonString( String s ) {
+		if( s == null ) return "null";
+		StringBuilder sb = new StringBuilder("\"");
+		for( int i=0; i<s.length(); ++i ) {
+			char c = s.charAt(i);
+			if( c == '"' || c == '\\' ) {
+				sb.append('\\').append(c);
+			} else if( c < 0x20 ) {
+				sb.append(String.format("\\u%04x", (int)c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	protected static String millis( long nanos ) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	/**
+	 * @return a single-line JSON object with times in milliseconds
+	 */
+	public synchronized String toJson() {
+		return "{" +
+			"\"rx\":"+rx+",\"rz\":"+rz+"," +
+			"\"cache\":"+jsonString(cache)+",\"rewritten\":"+rewritten+"," +
+			"\"bytesRead\":"+bytesRead+",\"bytesWritten\":"+bytesWritten+"," +
+			"\"chunks\":"+chunkCount+",\"sections\":"+sectionCount+"," +
+			"\"readMs\":"+millis(readTime)+"," +
+			"\"inflateMs\":"+millis(inflateTime)+"," +
+			"\"parseMs\":"+millis(parseTime)+"," +
+			"\"compositeMs\":"+millis(compositeTime)+"," +
+			"\"shadeMs\":"+millis(shadeTime)+"," +
+			"\"encodeMs\":"+millis(encodeTime)+"," +
+			"\"writeMs\":"+millis(writeTime)+"," +
+			"\"allocatedBytes\":"+(allocatedBytes < 0 ? "null" : String.valueOf(allocatedBytes))+"," +
+			"\"loadThread\":"+jsonString(loadThread)+"," +
+			"\"renderThread\":"+jsonString(renderThread)+"," +
+			"\"writeThread\":"+jsonString(writeThread)+"," +
+			"\"error\":"+jsonString(error) +
+			"}";
+	}
+}
@@ -3,18 +3,29 @@ package togos.minecraft.maprend;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.imageio.ImageIO;
 
@@ -23,60 +34,77 @@ import org.jnbt.ByteTag;
 import org.jnbt.CompoundTag;
 import org.jnbt.ListTag;
 import org.jnbt.NBTInputStream;
+import org.jnbt.NBTProjection;
 import org.jnbt.Tag;
 
-import togos.minecraft.maprend.BiomeMap.Biome;
-import togos.minecraft.maprend.BlockMap.Block;
 import togos.minecraft.maprend.RegionMap.Region;
+import togos.minecraft.maprend.io.ChunkInflater;
 import togos.minecraft.maprend.io.ContentStore;
+import togos.minecraft.maprend.io.PNGWriter;
 import togos.minecraft.maprend.io.RegionFile;
+import togos.minecraft.maprend.jfr.RenderEvents;
 
 public class RegionRenderer
 {
+	/**
+	 * Totals of the RegionMetrics of every region rendered, for -debug output.
+	 * Regions are finished on several threads at once, so access is synchronized.
+	 */
 	static class Timer {
-		public long regionLoading;
-		public long preRendering;
-		public long postProcessing;
-		public long imageSaving;
-		public long total;
+		// Nanoseconds
+		protected long regionLoading;
+		protected long preRendering;
+		protected long postProcessing;
+		protected long imageSaving;
+		// Milliseconds
+		protected long total;
 		
-		public int regionCount;
-		public int sectionCount;
+		protected int regionCount;
+		protected int sectionCount;
 		
-		protected String formatTime( String name, long millis ) {
-			return String.format("%20s: % 8d   % 8.2f   % 8.4f", name, millis, millis/(double)regionCount, millis/(double)sectionCount);
+		public synchronized void add( RegionMetrics m ) {
+			regionLoading  += m.readTime + m.inflateTime + m.parseTime;
+			preRendering   += m.compositeTime;
+			postProcessing += m.shadeTime;
+			imageSaving    += m.encodeTime + m.writeTime;
+			sectionCount   += m.sectionCount;
+			if( m.rewritten ) ++regionCount;
 		}
-	}
-	
-	class RenderThread extends Thread {
-		public List<Region> regions;
-		public int startIndex;
-		public int endIndex;
-		public File outputDir;
-		public boolean force;
 		
-		RenderThread( List<Region> regions, File outputDir, boolean force) throws IOException {
-			this.regions = regions;
-			this.outputDir = outputDir;
-			this.force = force;
+		public synchronized void addTotal( long millis ) {
+			total += millis;
 		}
 		
-		public void run() {
-			try {
-				for( Region reg : regions ) renderRegion(reg, outputDir, force);
-			} catch (IOException e) {
-				System.err.println("Error in threaded renderer!");
-				e.printStackTrace(System.err);
-			}
+		protected static String perItem( long millis, int count, int decimals ) {
+			return count == 0 ? "-" : String.format("%."+decimals+"f", millis/(double)count);
+		}
+		
+		protected String formatTime( String name, long millis ) {
+			return String.format("%20s: % 8d   %9s   %9s", name, millis, perItem(millis, regionCount, 2), perItem(millis, sectionCount, 4));
+		}
+		
+		public synchronized String report() {
+			return
+				"Rendered " + regionCount + " regions, " + sectionCount + " sections in " + total + "ms\n" +
+				"The following times lines indicate milliseconds total, per region, and per section\n" +
+				formatTime("Loading",         regionLoading  / 1000000) + "\n" +
+				formatTime("Pre-rendering",   preRendering   / 1000000) + "\n" +
+				formatTime("Post-processing", postProcessing / 1000000) + "\n" +
+				formatTime("Image saving",    imageSaving    / 1000000) + "\n" +
+				formatTime("Total",           total);
 		}
 	}
 	
-	public final Set<Integer> defaultedBlockIds = new HashSet<Integer>();
-	public final Set<Integer> defaultedBlockIdDataValues = new HashSet<Integer>();
-	public final Set<Integer> defaultedBiomeIds = new HashSet<Integer>();
+	/** IDs of blocks that were not explicitly mapped to colors */
+	public final AtomicBitSet defaultedBlockIds = new AtomicBitSet(BlockMap.SIZE);
+	/** ColorTable.blockIndex(blockId, blockDatum) of blocks whose data value was not explicitly mapped */
+	public final AtomicBitSet defaultedBlockIdDataValues = new AtomicBitSet(ColorTable.BLOCK_INDEX_COUNT);
+	/** IDs of biomes that were not explicitly mapped to colors */
+	public final AtomicBitSet defaultedBiomeIds = new AtomicBitSet(BiomeMap.SIZE);
 	public final boolean debug;
 	public final BlockMap blockMap;
 	public final BiomeMap biomeMap;
+	public final ColorTable colorTable;
 	public final int air16Color; // Color of 16 air blocks stacked
 	public final int minHeight;
 	public final int maxHeight;
@@ -91,7 +119,35 @@ public class RegionRenderer
 	 * Alpha below which blocks are considered transparent for purposes of shading
 	 * (i.e. blocks with alpha < this will not be shaded, but blocks below them will be)
 	 */
-	private int shadeOpacityCutoff = 0x20; 
+	protected int shadeOpacityCutoff = 0x20; 
+	
+	/**
+	 * When true, tile.<x>.<z>.chunks files recording chunk timestamps
+	 * are written alongside tiles, and when a region has changed, only
+	 * chunks that have been saved since its tile was rendered are re-rendered.
+	 */
+	public boolean incremental = false;
+	
+	/**
+	 * When true, the un-shaded colors and heights of each region are cached
+	 * in tile.<x>.<z>.layers files, so that tiles can be re-shaded and re-scaled
+	 * without reading chunks, and only chunks saved since the cache was
+	 * written need to be read when a region changes.
+	 */
+	public boolean layerCache = false;
+	
+	public PNGWriter pngWriter = new PNGWriter();
+	
+	/**
+	 * Changes whenever a setting that affects the look of tiles changes;
+	 * incrementally updating a tile rendered with other settings would give a mishmash.
+	 */
+	protected final int settingsHash;
+	/**
+	 * Like settingsHash, but only covers settings that affect
+	 * the colors and heights stored in the layer cache.
+	 */
+	protected final int layerSettingsHash;
 	
 	public RegionRenderer(
 		BlockMap blockMap, BiomeMap biomeMap, boolean debug, int minHeight, int maxHeight,
@@ -103,6 +159,7 @@ public class RegionRenderer
 		
 		this.blockMap = blockMap;
 		this.biomeMap = biomeMap;
+		this.colorTable = ColorTable.compile( blockMap, biomeMap );
 		this.air16Color = Color.overlay( 0, getColor(0, 0, 0), 16 );
 		this.debug = debug;
 		
@@ -115,6 +172,28 @@ public class RegionRenderer
 		
 		this.mapTitle = mapTitle;
 		this.mapScales = mapScales;
+		
+		this.layerSettingsHash = calculateLayerSettingsHash();
+		this.settingsHash = calculateSettingsHash();
+	}
+	
+	protected int calculateLayerSettingsHash() {
+		int h = Arrays.hashCode( colorTable.blockColors );
+		h = 31*h + Arrays.hashCode( colorTable.blockFlags );
+		h = 31*h + Arrays.hashCode( colorTable.biomeMultipliers );
+		h = 31*h + minHeight;
+		h = 31*h + maxHeight;
+		h = 31*h + shadeOpacityCutoff;
+		return h;
+	}
+	
+	protected int calculateSettingsHash() {
+		int h = layerSettingsHash;
+		h = 31*h + shadingReferenceAltitude;
+		h = 31*h + minAltitudeShading;
+		h = 31*h + maxAltitudeShading;
+		h = 31*h + altitudeShadingFactor;
+		return h;
 	}
 	
 	/**
@@ -130,6 +209,18 @@ public class RegionRenderer
 		return (byte)((index % 2 == 0 ? arr[index/2] : (arr[index/2]>>4))&0x0F);
 	}
 	
+	/**
+	 * The parts of a chunk's NBT that loadChunkData uses.
+	 * Everything else (entities, lighting, etc) is skipped while parsing.
+	 */
+	protected static final NBTProjection CHUNK_PROJECTION = NBTProjection.of(
+		"Level.Biomes",
+		"Level.Sections.Y",
+		"Level.Sections.Blocks",
+		"Level.Sections.Data",
+		"Level.Sections.Add"
+	);
+	
 	/**
 	 * @param levelTag
 	 * @param maxSectionCount
@@ -183,51 +274,63 @@ public class RegionRenderer
 	//// Color look-up ////
 	
 	protected void defaultedBlockColor( int blockId ) {
-		defaultedBlockIds.add(blockId);
+		defaultedBlockIds.set(blockId);
 	}
 	protected void defaultedSubBlockColor( int blockId, int blockDatum ) {
-		defaultedBlockIdDataValues.add(blockId | blockDatum << 16);
+		defaultedBlockIdDataValues.set(ColorTable.blockIndex(blockId, blockDatum));
 	}
 	protected void defaultedBiomeColor( int biomeId ) {
-		defaultedBiomeIds.add(biomeId);
+		defaultedBiomeIds.set(biomeId);
 	}
 	
+	protected void defaultedColor( int blockId, int blockDatum, int flags ) {
+		if( (flags & ColorTable.FLAG_DEFAULTED_DATA ) != 0 ) defaultedSubBlockColor(blockId, blockDatum);
+		if( (flags & ColorTable.FLAG_DEFAULTED_BLOCK) != 0 ) defaultedBlockColor(blockId);
+	}
+	
+	/**
+	 * Look up the color of a block.
+	 * Unlike the other defaulted-ID tracking, use of default biome colors
+	 * is not recorded here, but by callers once per column.
+	 */
 	protected int getColor( int blockId, int blockDatum, int biomeId ) {
 		assert blockId >= 0 && blockId < blockMap.blocks.length;
-		assert blockDatum >= 0;
+		assert blockDatum >= 0 && blockDatum < ColorTable.DATA_VALUE_COUNT;
+		assert biomeId >= 0 && biomeId < BiomeMap.SIZE;
 		
-		int blockColor;
-		int biomeInfluence;
+		final int blockIndex = ColorTable.blockIndex(blockId, blockDatum);
+		final int flags = colorTable.blockFlags[blockIndex];
+		if( (flags & ColorTable.DEFAULTED_MASK) != 0 ) defaultedColor( blockId, blockDatum, flags );
 		
-		Block bc = blockMap.blocks[blockId];
-		if( bc.hasSubColors.length > blockDatum && bc.hasSubColors[blockDatum] ) {
-			blockColor = bc.subColors[blockDatum];
-			biomeInfluence = bc.subColorInfluences[blockDatum];
-		} else {
-			if( blockDatum != 0 ) {
-				defaultedSubBlockColor(blockId, blockDatum);
-			}
-			blockColor = bc.baseColor;
-			biomeInfluence = bc.baseInfluence;
-		}
-		if( bc.isDefault ) {
-			defaultedBlockColor(blockId);
-		}
-		
-		Biome biome = biomeMap.getBiome(biomeId);
-		int biomeColor = biome.getMultiplier( biomeInfluence );
-		if( biome.isDefault ) defaultedBiomeColor(biomeId);
-		
-		return Color.multiplySolid( blockColor, biomeColor );
+		final int influence = flags & ColorTable.INFLUENCE_MASK;
+		final int blockColor = colorTable.blockColors[blockIndex];
+		return influence == BlockMap.INF_NONE ? blockColor :
+			Color.multiplySolid( blockColor, colorTable.biomeMultipliers[ColorTable.biomeIndex(biomeId, influence)] );
 	}
 	
 	//// Handy color-manipulation functions ////
 	
 	protected static void demultiplyAlpha( int[] color ) {
-		for( int i=color.length-1; i>=0; --i ) color[i] = Color.demultiplyAlpha(color[i]);
+		demultiplyAlpha( color, null );
+	}
+	
+	/**
+	 * @param pixelMask if non-null, only pixels whose entries are true are demultiplied
+	 */
+	protected static void demultiplyAlpha( int[] color, boolean[] pixelMask ) {
+		for( int i=color.length-1; i>=0; --i ) {
+			if( pixelMask == null || pixelMask[i] ) color[i] = Color.demultiplyAlpha(color[i]);
+		}
 	}
 	
 	protected void shade( short[] height, int[] color ) {
+		shade( height, color, null );
+	}
+	
+	/**
+	 * @param pixelMask if non-null, only pixels whose entries are true are shaded
+	 */
+	protected void shade( short[] height, int[] color, boolean[] pixelMask ) {
 		int width=512, depth=512;
 
 		int idx = 0;
@@ -236,6 +339,7 @@ public class RegionRenderer
 				float dyx, dyz;
 				
 				if( color[idx] == 0 ) continue;
+				if( pixelMask != null && !pixelMask[idx] ) continue;
 				
 				if(      x == 0       ) dyx = height[idx+1]-height[idx];
 				else if( x == width-1 ) dyx = height[idx]-height[idx-1];
@@ -263,86 +367,270 @@ public class RegionRenderer
 	//// Rendering ////
 	
 	Timer timer = new Timer();
-	protected long startTime;
-	protected void resetInterval() { startTime = System.currentTimeMillis(); }
-	protected long getInterval() { return System.currentTimeMillis() - startTime; }
+	
+	/** If set, a record of each region's RegionMetrics is written here once it's finished with */
+	public MetricsLog metricsLog = null;
+	
+	/**
+	 * Called once for each region, when nothing more will be done with it.
+	 */
+	protected void finishRegion( RegionMetrics m ) {
+		timer.add( m );
+		if( metricsLog != null ) metricsLog.write( m );
+	}
+	
+	protected void regionFailed( RegionMetrics m, Throwable e ) {
+		m.error = e.toString();
+		finishRegion( m );
+	}
+	
+	/**
+	 * Overlay a stack of colors onto a background, bottom (stack[count-1]) first.
+	 */
+	protected static int overlayStack( int background, int[] stack, int count ) {
+		int color = background;
+		for( int i=count-1; i>=0; --i ) color = Color.overlay( color, stack[i] );
+		return color;
+	}
+	
+	/**
+	 * Determine whether whatever is beneath a stack of colors
+	 * can have any effect on the result of overlaying the stack onto it.
+	 * 
+	 * An opaque bottom color hides everything beneath it exactly.
+	 * Otherwise, since Color.overlay never decreases any component of its result
+	 * when the same component of its background increases, a stack that
+	 * gives the same result on a black transparent background as on an opaque white one
+	 * gives that result on every background.  That check costs a pass over the stack,
+	 * so it is only done each time the stack size reaches a power of 2.
+	 */
+	protected static boolean hidesBackground( int[] stack, int count ) {
+		if( Color.alpha(stack[count-1]) == 255 ) return true;
+		if( count < 4 || (count & (count-1)) != 0 ) return false;
+		return overlayStack( 0, stack, count ) == overlayStack( 0xFFFFFFFF, stack, count );
+	}
+	
+	/**
+	 * Calculate color and height for a single column of a chunk.
+	 * 
+	 * Blocks are visited from the top down and their colors pushed onto columnStack
+	 * until nothing further down could change the composited color.
+	 * The stack is then composited bottom-up exactly as if every block
+	 * in the column had been overlaid from Y=0, so results are identical
+	 * but columns ending in a solid block only cost as many blocks as are
+	 * above (and including) that block.
+	 * 
+	 * @param columnIndex z*16+x of the column within the chunk
+	 * @param columnStack scratch space for at least maxSectionCount*16 colors
+	 * @param dIdx index into colors and heights at which to write the result
+	 */
+	protected void renderColumn(
+		int maxSectionCount, short[][] sectionBlockIds, byte[][] sectionBlockData, boolean[] usedSections,
+		int columnIndex, int biomeId, int[] columnStack, int[] colors, short[] heights, int dIdx
+	) {
+		int stackSize = 0;
+		int pixelColor = 0;
+		short pixelHeight = 0;
+		boolean colorFound = false;
+		boolean heightFound = false;
+		
+		if( colorTable.biomeIsDefault[biomeId] ) defaultedBiomeColor(biomeId);
+		
+		scan: for( int s=maxSectionCount-1; s>=0; --s ) {
+			final int sectionY = s*16;
+			
+			if( sectionY    >= maxHeight ) continue;
+			if( sectionY+16 <= minHeight ) continue;
+			
+			if( usedSections[s] ) {
+				short[] blockIds  = sectionBlockIds[s];
+				byte[]  blockData = sectionBlockData[s];
+				
+				for( int y=15, idx=y*256+columnIndex; y>=0; --y, idx-=256 ) {
+					final int absY = sectionY+y;
+					if( absY < minHeight || absY >= maxHeight ) continue;
+					
+					final short blockId    =  blockIds[idx];
+					final byte  blockDatum = blockData[idx];
+					int blockColor = getColor( blockId&0xFFFF, blockDatum, biomeId );
+					if( !heightFound && Color.alpha(blockColor) >= shadeOpacityCutoff ) {
+						pixelHeight = (short)absY;
+						heightFound = true;
+					}
+					if( !colorFound ) {
+						columnStack[stackSize++] = blockColor;
+						colorFound = hidesBackground( columnStack, stackSize );
+					}
+					if( colorFound && heightFound ) break scan;
+				}
+			} else {
+				if( minHeight <= sectionY && maxHeight >= sectionY+16 ) {
+					// Optimize the 16-blocks-of-air case:
+					if( !colorFound ) {
+						columnStack[stackSize++] = air16Color;
+						colorFound = hidesBackground( columnStack, stackSize );
+					}
+					if( colorFound && heightFound ) break scan;
+				} else {
+					// Only some of the section's air is between the height limits
+					if( !colorFound ) {
+						int airHeight = Math.min(maxHeight, sectionY+16) - Math.max(minHeight, sectionY);
+						columnStack[stackSize++] = Color.overlay( 0, getColor(0, 0, 0), airHeight );
+						colorFound = hidesBackground( columnStack, stackSize );
+					}
+					if( colorFound && heightFound ) break scan;
+				}
+			}
+		}
+		
+		if( stackSize > 0 ) pixelColor = overlayStack( pixelColor, columnStack, stackSize );
+		
+		colors[dIdx] = pixelColor;
+		heights[dIdx] = pixelHeight;
+	}
+	
+	/**
+	 * Buffers for decoding chunks, reused from one chunk to the next
+	 * by each thread that renders them
+	 */
+	static class ChunkScratch {
+		static final int MAX_SECTION_COUNT = 16;
+		
+		private static final ThreadLocal<ChunkScratch> threadInstance = new ThreadLocal<ChunkScratch>() {
+			@Override protected ChunkScratch initialValue() {
+				return new ChunkScratch();
+			}
+		};
+		
+		public static ChunkScratch forCurrentThread() {
+			return threadInstance.get();
+		}
+		
+		final short[][] sectionBlockIds = new short[MAX_SECTION_COUNT][16*16*16];
+		final byte[][] sectionBlockData = new byte[MAX_SECTION_COUNT][16*16*16];
+		final boolean[] usedSections = new boolean[MAX_SECTION_COUNT];
+		final byte[] biomeIds = new byte[16*16];
+		final int[] columnStack = new int[MAX_SECTION_COUNT*16];
+	}
 	
 	/**
-	 * Load color and height data from a region.
+	 * Renders rows of chunks from minCz to maxCz, splitting the rows among sub-tasks.
+	 * Each row writes to its own part of colors and heights.
+	 */
+	class PreRenderTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		final RegionFile rf;
+		final int[] colors;
+		final short[] heights;
+		final boolean[] chunkMask;
+		final int minCz, maxCz;
+		final RegionMetrics metrics;
+		
+		PreRenderTask( RegionFile rf, int[] colors, short[] heights, boolean[] chunkMask, int minCz, int maxCz, RegionMetrics metrics ) {
+			this.rf = rf;
+			this.colors = colors;
+			this.heights = heights;
+			this.chunkMask = chunkMask;
+			this.minCz = minCz;
+			this.maxCz = maxCz;
+			this.metrics = metrics;
+		}
+		
+		@Override protected void compute() {
+			if( maxCz - minCz == 1 ) {
+				// The thread that invoked the pool may end up running some rows itself,
+				// in which case its allocations are already being counted
+				boolean countAllocation = inForkJoinPool();
+				long allocated = countAllocation ? RegionMetrics.currentThreadAllocatedBytes() : 0;
+				preRender( rf, colors, heights, chunkMask, minCz, maxCz, metrics );
+				if( countAllocation ) metrics.addAllocatedBytes( RegionMetrics.currentThreadAllocatedBytes() - allocated );
+			} else {
+				int mid = (minCz + maxCz) / 2;
+				invokeAll(
+					new PreRenderTask( rf, colors, heights, chunkMask, minCz, mid, metrics ),
+					new PreRenderTask( rf, colors, heights, chunkMask, mid, maxCz, metrics )
+				);
+			}
+		}
+	}
+	
+	/**
+	 * Load color and height data from some chunks of a region.
 	 * @param rf
 	 * @param colors color data will be written here
 	 * @param heights height data (height of top of topmost non-transparent block) will be written here
+	 * @param chunkMask if non-null, only chunks whose entries (indexed by x+z*32) are true are loaded
+	 * @param chunkPool if non-null, chunks are rendered on this pool, one task per row of chunks,
+	 *   rather than one after another on the current thread.
+	 *   Worth doing when there are fewer regions to render than CPUs.
+	 * @param metrics chunks decoded and time spent are added to this
 	 */
-	protected void preRender( RegionFile rf, int[] colors, short[] heights ) {
-		int maxSectionCount = 16;
-		short[][] sectionBlockIds = new short[maxSectionCount][16*16*16];
-		byte[][] sectionBlockData = new byte[maxSectionCount][16*16*16];
-		boolean[] usedSections = new boolean[maxSectionCount];
-		byte[] biomeIds = new byte[16*16];
+	protected void preRender( RegionFile rf, int[] colors, short[] heights, boolean[] chunkMask, ForkJoinPool chunkPool, RegionMetrics metrics ) {
+		if( chunkPool != null ) {
+			chunkPool.invoke( new PreRenderTask(rf, colors, heights, chunkMask, 0, 32, metrics) );
+		} else {
+			preRender( rf, colors, heights, chunkMask, 0, 32, metrics );
+		}
+	}
+	
+	/**
+	 * Load color and height data from the chunks in rows minCz to maxCz of a region
+	 * on the current thread.
+	 */
+	protected void preRender( RegionFile rf, int[] colors, short[] heights, boolean[] chunkMask, int minCz, int maxCz, RegionMetrics metrics ) {
+		final int maxSectionCount = ChunkScratch.MAX_SECTION_COUNT;
+		ChunkScratch scratch = ChunkScratch.forCurrentThread();
+		short[][] sectionBlockIds = scratch.sectionBlockIds;
+		byte[][] sectionBlockData = scratch.sectionBlockData;
+		boolean[] usedSections = scratch.usedSections;
+		byte[] biomeIds = scratch.biomeIds;
+		int[] columnStack = scratch.columnStack;
+		ChunkInflater inflater = ChunkInflater.forCurrentThread();
+		// Counted locally since other threads may be rendering other chunks
+		long inflateTime = 0, parseTime = 0, compositeTime = 0;
+		int chunkCount = 0, sectionCount = 0;
 		
-		for( int cz=0; cz<32; ++cz ) {
+		for( int cz=minCz; cz<maxCz; ++cz ) {
 			for( int cx=0; cx<32; ++cx ) {				
-				resetInterval();
-				DataInputStream cis = rf.getChunkDataInputStream(cx,cz);
+				if( chunkMask != null && !chunkMask[cx+cz*32] ) continue;
+				long t0 = System.nanoTime();
+				DataInputStream cis = rf.getChunkDataInputStream(cx, cz, inflater);
 				if( cis == null ) continue;
+				long t1 = System.nanoTime();
+				inflateTime += t1 - t0;
 				NBTInputStream nis = null;
 				try {
+					Object parseEvent = RenderEvents.begin( RenderEvents.CHUNK_PARSE );
 					nis = new NBTInputStream(cis);
-					CompoundTag rootTag = (CompoundTag)nis.readTag();
+					CompoundTag rootTag = (CompoundTag)nis.readTag(CHUNK_PROJECTION);
 					CompoundTag levelTag = (CompoundTag)rootTag.getValue().get("Level");
 					loadChunkData( levelTag, maxSectionCount, sectionBlockIds, sectionBlockData, usedSections, biomeIds );
-					timer.regionLoading += getInterval();
+					long t2 = System.nanoTime();
+					parseTime += t2 - t1;
+					++chunkCount;
 					
+					int chunkSectionCount = 0;
 					for( int s=0; s<maxSectionCount; ++s ) {
 						if( usedSections[s] ) {
-							++timer.sectionCount;
+							++chunkSectionCount;
 						}
 					}
+					sectionCount += chunkSectionCount;
+					RenderEvents.endChunkParse( parseEvent, metrics.rx, metrics.rz, cx, cz, chunkSectionCount );
 					
-					resetInterval();
+					Object compositeEvent = RenderEvents.begin( RenderEvents.COLUMN_COMPOSITE );
 					for( int z=0; z<16; ++z ) {
 						for( int x=0; x<16; ++x ) {
-							int pixelColor = 0;
-							short pixelHeight = 0;
-							int biomeId = biomeIds[z*16+x]&0xFF;
-							
-							for( int s=0; s<maxSectionCount; ++s ) {
-								int absY=s*16;
-								
-								if( absY    >= maxHeight ) continue;
-								if( absY+16 <= minHeight ) continue;
-								
-								if( usedSections[s] ) {
-									short[] blockIds  = sectionBlockIds[s];
-									byte[]  blockData = sectionBlockData[s];
-									
-									for( int idx=z*16+x, y=0; y<16; ++y, idx+=256, ++absY ) {
-										if( absY < minHeight || absY >= maxHeight ) continue;
-										
-										final short blockId    =  blockIds[idx];
-										final byte  blockDatum = blockData[idx];
-										int blockColor = getColor( blockId&0xFFFF, blockDatum, biomeId );
-										pixelColor = Color.overlay( pixelColor, blockColor );
-										if( Color.alpha(blockColor) >= shadeOpacityCutoff  ) {
-											pixelHeight = (short)absY;
-										}
-									}
-								} else {
-									if( minHeight <= absY && maxHeight >= absY+16 ) {
-										// Optimize the 16-blocks-of-air case:
-										pixelColor = Color.overlay( pixelColor, air16Color );
-									} else {
-										// TODO: mix
-									}
-								}
-							}
-							
-							final int dIdx = 512*(cz*16+z)+16*cx+x; 
-							colors[dIdx] = pixelColor;
-							heights[dIdx] = pixelHeight;
+							final int dIdx = 512*(cz*16+z)+16*cx+x;
+							renderColumn(
+								maxSectionCount, sectionBlockIds, sectionBlockData, usedSections,
+								z*16+x, biomeIds[z*16+x]&0xFF, columnStack, colors, heights, dIdx
+							);
 						}
 					}
-					timer.preRendering += getInterval();
+					RenderEvents.endColumnComposite( compositeEvent, metrics.rx, metrics.rz, cx, cz );
+					compositeTime += System.nanoTime() - t2;
 				} catch( IOException e ) {
 					System.err.println("Error reading chunk from "+rf.getFile()+" at "+cx+","+cz);
 					e.printStackTrace(System.err);
@@ -358,29 +646,210 @@ public class RegionRenderer
 				}
 			}
 		}
+		
+		metrics.addChunkWork( chunkCount, sectionCount, inflateTime, parseTime, compositeTime );
 	}
 	
-	public BufferedImage render( RegionFile rf ) {
-		resetInterval();
+	/**
+	 * @param chunkPool if non-null, the pool to render chunks on; see preRender
+	 */
+	public BufferedImage render( RegionFile rf, ForkJoinPool chunkPool, RegionMetrics metrics ) {
 		int width=512, depth=512;
 		
 		int[] surfaceColor  = new int[width*depth];
 		short[] surfaceHeight = new short[width*depth];
 		
-		preRender( rf, surfaceColor, surfaceHeight );
+		preRender( rf, surfaceColor, surfaceHeight, null, chunkPool, metrics );
+		long t0 = System.nanoTime();
+		Object shadeEvent = RenderEvents.begin( RenderEvents.SHADE );
 		demultiplyAlpha( surfaceColor );
 		shade( surfaceHeight, surfaceColor );
 		
-		BufferedImage bi = new BufferedImage( width, depth, BufferedImage.TYPE_INT_ARGB );
+		BufferedImage bi = toImage( surfaceColor );
+		RenderEvents.endShade( shadeEvent, metrics.rx, metrics.rz, false );
+		metrics.shadeTime += System.nanoTime() - t0;
 		
-		for( int z=0; z<depth; ++z ) {
-			bi.setRGB( 0, z, width, 1, surfaceColor, width*z, width );
+		return bi;
+	}
+	
+	/**
+	 * Shade cached layers into a tile image.  The layers are left unmodified.
+	 */
+	protected BufferedImage render( RegionLayers layers, RegionMetrics metrics ) {
+		long t0 = System.nanoTime();
+		Object shadeEvent = RenderEvents.begin( RenderEvents.SHADE );
+		int[] surfaceColor = layers.colors.clone();
+		demultiplyAlpha( surfaceColor );
+		shade( layers.heights, surfaceColor );
+		
+		BufferedImage bi = toImage( surfaceColor );
+		RenderEvents.endShade( shadeEvent, metrics.rx, metrics.rz, false );
+		metrics.shadeTime += System.nanoTime() - t0;
+		
+		return bi;
+	}
+	
+	/**
+	 * Read a tile or layer file, counting it in metrics
+	 */
+	protected static BufferedImage readImage( File f, RegionMetrics metrics ) throws IOException {
+		long t0 = System.nanoTime();
+		BufferedImage img = ImageIO.read(f);
+		metrics.readTime += System.nanoTime() - t0;
+		metrics.bytesRead += f.length();
+		return img;
+	}
+	
+	protected static RegionLayers readLayers( File f, RegionMetrics metrics ) {
+		long t0 = System.nanoTime();
+		RegionLayers layers = RegionLayers.load( f );
+		metrics.readTime += System.nanoTime() - t0;
+		if( layers != null ) metrics.bytesRead += f.length();
+		return layers;
+	}
+	
+	/**
+	 * Bring the layers cached in layerFile up to date with a region,
+	 * reading only chunks that have been saved since they were cached,
+	 * and render a tile from them.
+	 * 
+	 * @param chunkPool if non-null, the pool to render chunks on; see preRender
+	 */
+	public BufferedImage renderFromLayerCache( RegionFile rf, File layerFile, ForkJoinPool chunkPool, RegionMetrics metrics ) throws IOException {
+		ChunkManifest manifest = ChunkManifest.of( rf, layerSettingsHash );
+		RegionLayers oldLayers = readLayers( layerFile, metrics );
+		boolean[] changedChunks = oldLayers == null ? null : oldLayers.manifest.changedChunks( manifest );
+		
+		RegionLayers layers;
+		if( changedChunks == null ) {
+			if( debug ) System.err.println("generating "+layerFile.getName()+"...");
+			metrics.cache = RegionMetrics.CACHE_MISS;
+			layers = new RegionLayers( manifest );
+			preRender( rf, layers.colors, layers.heights, null, chunkPool, metrics );
+		} else if( anyTrue(changedChunks) ) {
+			if( debug ) System.err.println("updating changed chunks of "+layerFile.getName()+"...");
+			metrics.cache = RegionMetrics.CACHE_PARTIAL;
+			layers = new RegionLayers( manifest, oldLayers.colors, oldLayers.heights );
+			layers.clearChunks( changedChunks );
+			preRender( rf, layers.colors, layers.heights, changedChunks, chunkPool, metrics );
+		} else {
+			if( debug ) System.err.println("using cached "+layerFile.getName()+"...");
+			metrics.cache = RegionMetrics.CACHE_HIT;
+			layers = oldLayers;
 		}
-		timer.postProcessing += getInterval();
+		
+		if( layers != oldLayers ) {
+			long t0 = System.nanoTime();
+			layers.save( layerFile );
+			metrics.writeTime += System.nanoTime() - t0;
+			metrics.bytesWritten += layerFile.length();
+		}
+		
+		return render( layers, metrics );
+	}
+	
+	/**
+	 * @return a TYPE_INT_ARGB image backed by the given array, which is not copied
+	 */
+	protected static BufferedImage toImage( int[] argb ) {
+		int width=512, depth=512;
+		DirectColorModel cm = (DirectColorModel)ColorModel.getRGBdefault();
+		WritableRaster raster = Raster.createPackedRaster(
+			new DataBufferInt(argb, width*depth), width, depth, width, cm.getMasks(), null );
+		return new BufferedImage( cm, raster, false, null );
+	}
+	
+	/**
+	 * Re-render only the given chunks of a region and patch them into its existing tile.
+	 * 
+	 * Shading of a pixel depends on the heights of its neighbors, so the chunks
+	 * around each changed one are decoded as well, and the 1-pixel border around
+	 * each changed chunk is re-shaded along with the chunk itself.
+	 * The result is identical to rendering the whole region.
+	 * 
+	 * @param changedChunks flags, indexed by x+z*32, indicating which chunks have changed
+	 * @param chunkPool if non-null, the pool to render chunks on; see preRender
+	 * @return the patched image, or null if the existing tile couldn't be used
+	 *   or so much of the region has changed that it should just be re-rendered
+	 */
+	public BufferedImage renderIncrementally( RegionFile rf, File imageFile, boolean[] changedChunks, ForkJoinPool chunkPool, RegionMetrics metrics ) {
+		int width=512, depth=512;
+		
+		boolean[] chunksToLoad = withNeighbors( changedChunks );
+		int changedCount = 0, loadCount = 0;
+		for( int i=0; i<32*32; ++i ) {
+			if( changedChunks[i] ) ++changedCount;
+			if( chunksToLoad[i] ) ++loadCount;
+		}
+		if( loadCount > 32*32*3/4 ) return null;
+		
+		BufferedImage oldImage;
+		try {
+			oldImage = readImage( imageFile, metrics );
+		} catch( IOException e ) {
+			System.err.println("Error reading "+imageFile+" for incremental update; will re-render: "+e.getMessage());
+			return null;
+		}
+		if( oldImage == null || oldImage.getWidth() != width || oldImage.getHeight() != depth ) return null;
+		
+		if( debug ) System.err.println("updating "+changedCount+" chunks of "+imageFile.getName()+"...");
+		
+		int[] pixels = oldImage.getRGB( 0, 0, width, depth, null, 0, width );
+		int[] surfaceColor  = new int[width*depth];
+		short[] surfaceHeight = new short[width*depth];
+		preRender( rf, surfaceColor, surfaceHeight, chunksToLoad, chunkPool, metrics );
+		
+		long t0 = System.nanoTime();
+		Object shadeEvent = RenderEvents.begin( RenderEvents.SHADE );
+		boolean[] pixelMask = new boolean[width*depth];
+		for( int cz=0; cz<32; ++cz ) {
+			for( int cx=0; cx<32; ++cx ) {
+				if( !changedChunks[cx+cz*32] ) continue;
+				for( int z=Math.max(0,cz*16-1); z<Math.min(depth,cz*16+17); ++z ) {
+					for( int x=Math.max(0,cx*16-1); x<Math.min(width,cx*16+17); ++x ) {
+						pixelMask[z*width+x] = true;
+					}
+				}
+			}
+		}
+		demultiplyAlpha( surfaceColor, pixelMask );
+		shade( surfaceHeight, surfaceColor, pixelMask );
+		for( int i=0; i<width*depth; ++i ) {
+			if( pixelMask[i] ) pixels[i] = surfaceColor[i];
+		}
+		
+		BufferedImage bi = toImage( pixels );
+		RenderEvents.endShade( shadeEvent, metrics.rx, metrics.rz, true );
+		metrics.shadeTime += System.nanoTime() - t0;
+		metrics.cache = RegionMetrics.CACHE_PARTIAL;
 		
 		return bi;
 	}
 	
+	/**
+	 * @return flags, indexed by x+z*32, for the given chunks and those around them,
+	 *   which renderIncrementally needs in order to shade the changed ones' edges
+	 */
+	protected static boolean[] withNeighbors( boolean[] chunks ) {
+		boolean[] withNeighbors = new boolean[32*32];
+		for( int cz=0; cz<32; ++cz ) {
+			for( int cx=0; cx<32; ++cx ) {
+				if( !chunks[cx+cz*32] ) continue;
+				for( int nz=Math.max(0,cz-1); nz<=Math.min(31,cz+1); ++nz ) {
+					for( int nx=Math.max(0,cx-1); nx<=Math.min(31,cx+1); ++nx ) {
+						withNeighbors[nx+nz*32] = true;
+					}
+				}
+			}
+		}
+		return withNeighbors;
+	}
+	
+	protected static boolean anyTrue( boolean[] flags ) {
+		for( boolean f : flags ) if( f ) return true;
+		return false;
+	}
+	
 	protected static String pad( String v, int targetLength ) {
 		while( v.length() < targetLength ) v = " "+v;
 		return v;
@@ -390,100 +859,458 @@ public class RegionRenderer
 		return pad( ""+v, targetLength );
 	}
 	
-	public void renderAll( RegionMap rm, File outputDir, boolean force, int threadCount ) throws IOException, InterruptedException {
+	/**
+	 * Work out which of the given regions' tiles need rendering
+	 */
+	public RenderPlan plan( Collection<Region> regions, File outputDir, boolean force ) throws IOException {
+		return RenderPlan.make( regions, outputDir, force, mapScales );
+	}
+	
+	/**
+	 * @return the regions whose full-size tiles were rewritten,
+	 *   so that later stages need only update what they touch
+	 */
+	public Set<Region> renderAll( RegionMap rm, File outputDir, boolean force, int ioThreadCount, int cpuThreadCount ) throws IOException, InterruptedException {
+		if( rm.regions.size() == 0 ) {
+			System.err.println("Warning: no regions found!");
+		}
+		return renderRegions( rm.regions, outputDir, force, ioThreadCount, cpuThreadCount );
+	}
+	
+	/**
+	 * Plan the rendering of regions, then render those that need it
+	 * through a RenderPipeline, reading region files on ioThreadCount
+	 * threads, which mostly wait on the disk.  The cpuThreadCount threads
+	 * that keep the CPUs busy are split between decoding and compositing
+	 * chunks and encoding and writing tiles; see writeThreadCount.
+	 * 
+	 * @return the regions whose full-size tiles were rewritten
+	 */
+	public Set<Region> renderRegions( Collection<Region> regions, File outputDir, boolean force, int ioThreadCount, int cpuThreadCount ) throws IOException, InterruptedException {
 		final long startTime = System.currentTimeMillis();
 		
 		if( !outputDir.exists() ) outputDir.mkdirs();
 		
-		if( rm.regions.size() == 0 ) {
-			System.err.println("Warning: no regions found!");
+		RenderPlan plan = plan( regions, outputDir, force );
+		for( RenderPlan.Job skipped : plan.skipped ) {
+			RegionMetrics m = new RegionMetrics( skipped.region.rx, skipped.region.rz );
+			m.cache = RegionMetrics.CACHE_UP_TO_DATE;
+			finishRegion( m );
+		}
+		List<RenderPlan.Job> jobs = plan.jobs;
+		if( debug ) {
+			System.err.println("Planned "+plan.count(RenderPlan.FULL_RENDER)+" full renders and "+
+				plan.count(RenderPlan.RESCALE_ONLY)+" rescales; "+plan.skipped.size()+" regions are up-to-date");
+		}
+		if( jobs.isEmpty() ) {
+			timer.addTotal( System.currentTimeMillis() - startTime );
+			return new HashSet<Region>();
 		}
 		
-		final int regionCount = rm.regions.size();
-		final int regionsPerThread = (int)Math.ceil((float)regionCount / threadCount);
-		
-		List<RenderThread> renderThreads = new ArrayList<RenderThread>();
+		int writeThreadCount = writeThreadCount( cpuThreadCount );
+		int renderThreadCount = cpuThreadCount - writeThreadCount;
 		
-		for( int i = 0; i < regionCount; i += regionsPerThread ) {
-			// You know, we really ought to figure out which regions need to be updated
-			// /before/ we start all these threads...
-			List<Region> threadRegions = rm.regions.subList(i, Math.min(i+regionCount, regionCount));
-			RenderThread renderThread = new RenderThread(threadRegions, outputDir, force);
-			renderThreads.add(renderThread);
+		// With fewer regions than render threads, split each one's chunks
+		// among a pool of that many, which the render threads wait on.
+		// The pool belongs to this call alone, so that it can be shut down
+		// afterwards without pulling it out from under anyone else.
+		ForkJoinPool chunkPool = null;
+		if( jobs.size() < renderThreadCount ) {
+			chunkPool = new ForkJoinPool( renderThreadCount );
+			if( debug ) System.err.println("Rendering chunks of each region on "+renderThreadCount+" threads");
+		}
+		Set<Region> rewritten;
+		try {
+			rewritten = new RenderPipeline(
+				this, jobs, outputDir, force,
+				Math.min(ioThreadCount, jobs.size()),
+				Math.min(renderThreadCount, jobs.size()),
+				Math.min(writeThreadCount, jobs.size()),
+				chunkPool
+			).run();
+		} finally {
+			if( chunkPool != null ) chunkPool.shutdown();
 		}
 		
-		if( debug ) System.err.println("Using "+renderThreads.size()+" render threads");
+		timer.addTotal( System.currentTimeMillis() - startTime );
+		
+		return rewritten;
+	}
+	
+	/**
+	 * @return how many of cpuThreadCount threads should encode and write tiles,
+	 *   leaving the rest to decode and composite chunks, which is usually
+	 *   about twice as much work; at least 1, unless there's only one thread,
+	 *   in which case it does both
+	 */
+	public static int writeThreadCount( int cpuThreadCount ) {
+		return cpuThreadCount < 2 ? 0 : Math.max( 1, cpuThreadCount/3 );
+	}
+	
+	/**
+	 * A region on its way through the stages of rendering;
+	 * see loadRegion, renderRegion(RegionJob), and writeRegion.
+	 */
+	class RegionJob {
+		public final Region region;
+		public final File outputDir;
+		public final boolean force;
+		public final File fullSizeImageFile, manifestFile, layerFile;
+		public boolean fullSizeNeedsReRender, anyScalesNeedReRender;
+		/**
+		 * Opened by loadRegion if the full-size tile needs re-rendering,
+		 * with the chunks that will be decoded read into memory
+		 */
+		public RegionFile regionFile;
+		/**
+		 * With -incremental, the chunks (indexed by x+z*32) changed since
+		 * the full-size tile was rendered, or null if it must be rendered from scratch
+		 */
+		public boolean[] changedChunks;
+		/** If set, the pool that renderRegion renders the region's chunks on */
+		public ForkJoinPool chunkPool;
+		/** Tile produced by renderRegion */
+		public BufferedImage fullSize;
+		/** Whether writeRegion should write the full-size tile */
+		public boolean writeFullSize;
+		/** Manifest to save with the full-size tile, if any */
+		public ChunkManifest manifest;
+		public final RegionMetrics metrics;
 		
-		for( RenderThread renderThread : renderThreads ) renderThread.start();
+		RegionJob( Region r, File outputDir, boolean force ) {
+			this.region = r;
+			this.metrics = new RegionMetrics( r.rx, r.rz );
+			this.outputDir = outputDir;
+			this.force = force;
+			this.fullSizeImageFile = r.imageFile = RenderPlan.tileFile( outputDir, r.rx, r.rz, 1 );
+			this.manifestFile = new File( outputDir, "tile."+r.rx+"."+r.rz+".chunks" );
+			this.layerFile = new File( outputDir, "tile."+r.rx+"."+r.rz+".layers" );
+		}
 		
-		for( RenderThread renderThread : renderThreads ) renderThread.join();
+		File scaledImageFile( int scale ) {
+			return RenderPlan.tileFile( outputDir, region.rx, region.rz, scale );
+		}
 		
-		timer.total += System.currentTimeMillis() - startTime;
+		void close() throws IOException {
+			if( regionFile != null ) regionFile.close();
+			regionFile = null;
+		}
 	}
 	
-	public void renderRegion( Region r, File outputDir, boolean force ) throws IOException {
-		if( r == null ) return; 
-		
+	/**
+	 * First stage of rendering a region: if the plan says its
+	 * full-size tile needs re-rendering, open the region file and read
+	 * into memory the chunks that renderRegion will decode.
+	 * Those are all of them unless an up-to-date enough manifest or
+	 * layer cache says that only some have changed.
+	 * 
+	 * @return null if all of the region's tiles are up-to-date,
+	 *   in which case the region is finished with
+	 */
+	protected RegionJob loadRegion( RenderPlan.Job planned, File outputDir, boolean force ) throws IOException {
+		Region r = planned.region;
 		if( debug ) System.err.print("Region "+pad(r.rx, 4)+", "+pad(r.rz, 4)+"...");
 		
-		String imageFilename = "tile."+r.rx+"."+r.rz+".png";
-		File fullSizeImageFile = r.imageFile = new File( outputDir, imageFilename );
+		RegionJob job = new RegionJob( r, outputDir, force );
+		RegionMetrics m = job.metrics;
+		m.loadThread = Thread.currentThread().getName();
+		job.fullSizeNeedsReRender = planned.fullSizeNeedsReRender;
+		job.anyScalesNeedReRender = planned.anyScalesNeedReRender;
+		if( debug && !job.fullSizeNeedsReRender ) System.err.println("image already up-to-date");
 		
-		boolean fullSizeNeedsReRender = false;
-		if( force || !fullSizeImageFile.exists() || fullSizeImageFile.lastModified() < r.regionFile.lastModified() ) {
-			fullSizeNeedsReRender = true;
-		} else {
-			if( debug ) System.err.println("image already up-to-date");
+		if( !job.fullSizeNeedsReRender && !job.anyScalesNeedReRender ) {
+			m.cache = RegionMetrics.CACHE_UP_TO_DATE;
+			finishRegion( m );
+			return null;
 		}
 		
-		boolean anyScalesNeedReRender = false;
-		for( int scale : mapScales ) {
-			if( scale == 1 ) continue;
-			File f = new File( outputDir, "tile."+r.rx+"."+r.rz+".1-"+scale+".png" );
-			if( force || !f.exists() || f.lastModified() < r.regionFile.lastModified() ) {
-				anyScalesNeedReRender = true;
+		if( job.fullSizeNeedsReRender ) {
+			long allocated = RegionMetrics.currentThreadAllocatedBytes();
+			long t0 = System.nanoTime();
+			job.regionFile = new RegionFile( r.regionFile, true );
+			boolean[] chunksToDecode = chunksToDecode( job );
+			if( chunksToDecode == null ) {
+				job.regionFile.load();
+				m.bytesRead += r.regionFile.length();
+			} else {
+				// Just the offset and timestamp tables, plus the chunks
+				m.bytesRead += 2*4096 + job.regionFile.load( chunksToDecode );
+			}
+			m.readTime += System.nanoTime() - t0;
+			m.addAllocatedBytes( RegionMetrics.currentThreadAllocatedBytes() - allocated );
+		}
+		return job;
+	}
+	
+	/**
+	 * Work out from the region file's header and the old manifest
+	 * or layer cache which chunks renderRegion will decode.
+	 * With -incremental, also sets the job's manifest and changedChunks.
+	 * 
+	 * @return flags, indexed by x+z*32, or null if all of them will be
+	 */
+	protected boolean[] chunksToDecode( RegionJob job ) {
+		RegionFile rf = job.regionFile;
+		if( incremental ) {
+			job.manifest = ChunkManifest.of( rf, settingsHash );
+			ChunkManifest oldManifest = job.force ? null : ChunkManifest.load( job.manifestFile );
+			if( oldManifest != null && job.fullSizeImageFile.exists() ) {
+				job.changedChunks = oldManifest.changedChunks( job.manifest );
 			}
+			// Nothing changed, so nothing to decode
+			if( job.changedChunks != null && !anyTrue(job.changedChunks) ) return job.changedChunks;
+		}
+		if( layerCache ) {
+			ChunkManifest oldManifest = RegionLayers.loadManifest( job.layerFile );
+			return oldManifest == null ? null : oldManifest.changedChunks( ChunkManifest.of(rf, layerSettingsHash) );
 		}
+		return job.changedChunks == null ? null : withNeighbors( job.changedChunks );
+	}
+	
+	/**
+	 * Second stage: decode chunks and composite and shade the tile,
+	 * or load it from the existing image or layer cache if only the
+	 * scaled-down tiles need re-rendering.  Closes the region file.
+	 * 
+	 * @return false if there's nothing left to write,
+	 *   in which case the region is finished with
+	 */
+	protected boolean renderRegion( RegionJob job ) throws IOException {
+		RegionMetrics m = job.metrics;
+		m.renderThread = Thread.currentThread().getName();
+		long allocated = RegionMetrics.currentThreadAllocatedBytes();
+		try {
+			if( renderRegionImage( job ) ) return true;
+		} finally {
+			m.addAllocatedBytes( RegionMetrics.currentThreadAllocatedBytes() - allocated );
+		}
+		finishRegion( m );
+		return false;
+	}
+	
+	private boolean renderRegionImage( RegionJob job ) throws IOException {
+		Region r = job.region;
+		RegionMetrics m = job.metrics;
+		File fullSizeImageFile = job.fullSizeImageFile;
 		
-		BufferedImage fullSize;
-		if( fullSizeNeedsReRender ) {
-			fullSizeImageFile.delete();
-			if( debug ) System.err.println("generating "+imageFilename+"...");
-			
-			RegionFile rf = new RegionFile( r.regionFile );
+		if( job.fullSizeNeedsReRender ) {
+			RegionFile rf = job.regionFile;
 			try {
-				fullSize = render( rf );
+				boolean[] changedChunks = job.changedChunks;
+				if( changedChunks != null && !anyTrue(changedChunks) ) {
+					// Minecraft rewrote the region file without saving any chunks to it
+					if( debug ) System.err.println("no chunks changed");
+					m.cache = RegionMetrics.CACHE_HIT;
+					long now = System.currentTimeMillis();
+					fullSizeImageFile.setLastModified( now );
+					boolean anyScalesMissing = false;
+					for( int scale : mapScales ) {
+						if( scale == 1 ) continue;
+						File f = job.scaledImageFile(scale);
+						if( f.exists() ) f.setLastModified( now );
+						else anyScalesMissing = true;
+					}
+					if( !anyScalesMissing ) return false;
+					job.fullSize = readImage( fullSizeImageFile, m );
+				} else {
+					job.manifestFile.delete();
+					if( layerCache ) {
+						job.fullSize = renderFromLayerCache( rf, job.layerFile, job.chunkPool, m );
+					} else {
+						job.fullSize = changedChunks == null ? null : renderIncrementally( rf, fullSizeImageFile, changedChunks, job.chunkPool, m );
+						if( job.fullSize == null ) {
+							fullSizeImageFile.delete();
+							if( debug ) System.err.println("generating "+fullSizeImageFile.getName()+"...");
+							m.cache = RegionMetrics.CACHE_MISS;
+							job.fullSize = render( rf, job.chunkPool, m );
+						}
+					}
+					job.writeFullSize = true;
+				}
 			} finally {
-				rf.close();
+				job.close();
+			}
+		} else {
+			m.cache = RegionMetrics.CACHE_HIT;
+			RegionLayers layers = null;
+			if( layerCache && job.layerFile.lastModified() >= r.regionFile.lastModified() ) {
+				layers = readLayers( job.layerFile, m );
+				if( layers != null && layers.manifest.settingsHash != layerSettingsHash ) layers = null;
+			}
+			job.fullSize = layers != null ? render( layers, m ) : readImage( fullSizeImageFile, m );
+		}
+		return true;
+	}
+	
+	/**
+	 * Encode a tile and write it to a file, counting the time spent on each in metrics
+	 */
+	protected void writeImage( BufferedImage img, File f, RegionMetrics metrics ) throws IOException {
+		long t0 = System.nanoTime();
+		Object pngEvent = RenderEvents.begin( RenderEvents.PNG_WRITE );
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		pngWriter.write(img, png);
+		long t1 = System.nanoTime();
+		metrics.encodeTime += t1 - t0;
+		FileOutputStream fos = new FileOutputStream(f);
+		try {
+			png.writeTo(fos);
+		} finally {
+			fos.close();
+		}
+		metrics.writeTime += System.nanoTime() - t1;
+		metrics.bytesWritten += png.size();
+		RenderEvents.endPngWrite( pngEvent, metrics.rx, metrics.rz, f, img.getWidth(), png.size() );
+	}
+	
+	/**
+	 * Last stage: encode and write the tile images.
+	 * The region is finished with afterwards.
+	 * 
+	 * The job's metrics.rewritten is set as soon as the full-size tile
+	 * has been written, so that it's known to need merging into aggregates
+	 * even if writing a scaled tile then fails.
+	 * 
+	 * @return true if the region's full-size tile was rewritten
+	 */
+	protected boolean writeRegion( RegionJob job ) throws IOException {
+		RegionMetrics m = job.metrics;
+		m.writeThread = Thread.currentThread().getName();
+		long allocated = RegionMetrics.currentThreadAllocatedBytes();
+		try {
+			if( job.writeFullSize ) {
+				try {
+					writeImage(job.fullSize, job.fullSizeImageFile, m);
+					m.rewritten = true;
+					long t0 = System.nanoTime();
+					if( job.manifest != null ) job.manifest.save( job.manifestFile );
+					m.writeTime += System.nanoTime() - t0;
+				} catch( IOException e ) {
+					System.err.println("Error writing PNG to "+job.fullSizeImageFile);
+					e.printStackTrace();
+					m.error = e.toString();
+				}
 			}
 			
-			try {
-				resetInterval();
-				ImageIO.write(fullSize, "png", fullSizeImageFile);
-				timer.imageSaving += getInterval();
-			} catch( IOException e ) {
-				System.err.println("Error writing PNG to "+fullSizeImageFile);
-				e.printStackTrace();
+			for( int scale : mapScales ) {
+				if( scale == 1 ) continue; // Already wrote!
+				File f = job.scaledImageFile(scale);
+				if( debug ) System.err.println("generating "+f+"...");
+				// Scaling is counted as part of encoding
+				long t0 = System.nanoTime();
+				BufferedImage scaled = scaleTile(job.fullSize, scale);
+				m.encodeTime += System.nanoTime() - t0;
+				writeImage(scaled, f, m);
 			}
-			++timer.regionCount;
-		} else if( anyScalesNeedReRender ) {
-			fullSize = ImageIO.read(fullSizeImageFile);
-		} else {
-			return;
+		} finally {
+			m.addAllocatedBytes( RegionMetrics.currentThreadAllocatedBytes() - allocated );
 		}
+		finishRegion( m );
+		return m.rewritten;
+	}
+	
+	/**
+	 * Run all the stages of rendering a region on the current thread.
+	 * 
+	 * @return true if the region's full-size tile was rewritten
+	 */
+	public boolean renderRegion( Region r, File outputDir, boolean force ) throws IOException {
+		if( r == null ) return false;
 		
+		RegionJob job = loadRegion( RenderPlan.planRegion(r, outputDir, force, mapScales), outputDir, force );
+		if( job == null ) return false;
+		try {
+			if( !renderRegion( job ) ) return false;
+		} catch( IOException e ) {
+			regionFailed( job.metrics, e );
+			throw e;
+		} catch( RuntimeException e ) {
+			regionFailed( job.metrics, e );
+			throw e;
+		} finally {
+			job.close();
+		}
+		try {
+			return writeRegion( job );
+		} catch( IOException e ) {
+			regionFailed( job.metrics, e );
+			throw e;
+		} catch( RuntimeException e ) {
+			regionFailed( job.metrics, e );
+			throw e;
+		}
+	}
+	
+	/**
+	 * @return the full-size tile shrunk to 1:scale
+	 */
+	public static BufferedImage scaleTile( BufferedImage fullSize, int scale ) {
+		int size = 512 / scale;
+		BufferedImage rescaled = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = rescaled.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(fullSize, 0, 0, size, size, 0, 0, 512, 512, null);
+		g.dispose();
+		return rescaled;
+	}
+	
+	protected int tileHtmlLayoutHash( int minX, int minZ, int maxX, int maxZ ) {
+		int h = mapTitle.hashCode();
+		h = 31*h + Arrays.hashCode( mapScales );
+		h = 31*h + minX;
+		h = 31*h + minZ;
+		h = 31*h + maxX;
+		h = 31*h + maxZ;
+		return h;
+	}
+	
+	protected static String tileHtmlLayoutComment( int layoutHash ) {
+		return "<!-- tile layout "+Integer.toHexString(layoutHash)+" -->";
+	}
+	
+	/**
+	 * @return true if the tile HTML files would come out the same if
+	 *   regenerated, apart from their timestamps; i.e. they exist, no tiles
+	 *   have been added since they were written, and the title, scales,
+	 *   and bounds are the same
+	 */
+	protected boolean tileHtmlIsUpToDate( RegionMap rm, Set<Region> changed, File outputDir ) {
+		if( changed == null || !changed.isEmpty() ) return false;
+		
+		File indexFile = new File(outputDir, "tiles.html");
 		for( int scale : mapScales ) {
-			if( scale == 1 ) continue; // Already wrote!
-			File f = new File( outputDir, "tile."+r.rx+"."+r.rz+".1-"+scale+".png" );
-			if( debug ) System.err.println("generating "+f+"...");
-			int size = 512 / scale;
-			BufferedImage rescaled = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
-			Graphics2D g = rescaled.createGraphics();
-			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-			g.drawImage(fullSize, 0, 0, size, size, 0, 0, 512, 512, null);
-			g.dispose();
-			ImageIO.write(rescaled, "png", f);
+			if( !new File(outputDir, scale == 1 ? "tiles.html" : "tiles.1-"+scale+".html").exists() ) return false;
+		}
+		for( Region r : rm.regions ) {
+			if( r.imageFile != null && r.imageFile.lastModified() > indexFile.lastModified() ) return false;
 		}
+		
+		String comment = tileHtmlLayoutComment( tileHtmlLayoutHash(rm.minX, rm.minZ, rm.maxX, rm.maxZ) );
+		try {
+			byte[] head = new byte[256];
+			InputStream is = new FileInputStream(indexFile);
+			int n;
+			try {
+				n = is.read(head);
+			} finally {
+				is.close();
+			}
+			return n > 0 && new String(head, 0, n, "UTF-8").contains(comment);
+		} catch( IOException e ) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Create tile HTML files for the region map, unless they are already up-to-date
+	 * @param changed regions whose tiles were rewritten, or null if not known
+	 */
+	public void createTileHtml( RegionMap rm, Set<Region> changed, File outputDir ) {
+		if( tileHtmlIsUpToDate(rm, changed, outputDir) ) {
+			if( debug ) System.err.println("HTML tiles already up-to-date");
+			return;
+		}
+		createTileHtml( rm.minX, rm.minZ, rm.maxX, rm.maxZ, outputDir );
 	}
 	
 	/**
@@ -493,6 +1320,7 @@ public class RegionRenderer
 	 */
 	public void createTileHtml( int minX, int minZ, int maxX, int maxZ, File outputDir ) {
 		if( debug ) System.err.println("Writing HTML tiles...");
+		String layoutComment = tileHtmlLayoutComment( tileHtmlLayoutHash(minX, minZ, maxX, maxZ) );
 		for( int scale : mapScales ) {
 			int regionSize = 512 / scale;
 			
@@ -522,6 +1350,7 @@ public class RegionRenderer
 				)));
 				try {
 					w.write("<html><head>\n");
+					w.write(layoutComment+"\n");
 					w.write("<title>"+mapTitle+" - 1:"+scale+"</title>\n");
 					w.write("<link rel=\"stylesheet\" type=\"text/css\" href=\"tiles.css\"/>\n");
 					w.write("</head><body>\n");
@@ -582,28 +1411,57 @@ public class RegionRenderer
 		}
 	}
 	
-	public void createImageTree( RegionMap rm ) {
+	/**
+	 * @param changed regions whose tiles were rewritten, or null if not known
+	 */
+	public void createImageTree( RegionMap rm, Set<Region> changed, File outputDir, int threadCount ) {
 		if( debug ) System.err.println("Composing image tree...");
-		ImageTreeComposer itc = new ImageTreeComposer(new ContentStore());
-		System.out.println( itc.compose( rm ) );
+		ContentStore store = new ContentStore();
+		ImageTreeComposer itc = new ImageTreeComposer(store, threadCount);
+		System.out.println( itc.compose( rm, changed, new File(outputDir, "image-tree.cache") ) );
+		try {
+			store.saveUrnCache();
+		} catch( IOException e ) {
+			System.err.println("Error saving URN cache: "+e.getMessage());
+		}
 	}
 	
-	public void createBigImage( RegionMap rm, File outputDir) {
+	/**
+	 * @param changed regions whose tiles were rewritten, or null if not known
+	 */
+	public void createZoomPyramid( RegionMap rm, Set<Region> changed, File outputDir, int maxLevels, boolean force, int threadCount ) throws InterruptedException {
+		if( debug ) System.err.println("Creating zoom pyramid...");
+		ZoomPyramidBuilder zpb = new ZoomPyramidBuilder( pngWriter, debug );
+		zpb.build( rm, changed, outputDir, maxLevels, force, threadCount );
+	}
+	
+	/**
+	 * @param changed regions whose tiles were rewritten, or null if not known
+	 */
+	public void createBigImage( RegionMap rm, Set<Region> changed, File outputDir, int threadCount ) {
 		if( debug ) System.err.println( "Creating big image..." );
 		BigImageMerger bic = new BigImageMerger();
-		bic.createBigImage( rm, outputDir, debug );
+		bic.createBigImage( rm, changed, outputDir, debug, pngWriter.withStripThreads(threadCount) );
 	}
 	
 	public static final String USAGE =
 		"Usage: TMCMR [options] -o <output-dir> <input-files>\n" +
 		"  -h, -? ; print usage instructions and exit\n" +
 		"  -f     ; force re-render even when images are newer than regions\n" +
+		"  -incremental ; only re-render chunks saved since their tile was rendered\n" +
+		"  -layer-cache ; cache un-shaded tile data so that re-shading (e.g. with -f)\n" +
+		"               ; and re-rendering changed regions needn't read every chunk\n" +
+		"  -dry-run ; print which regions would be fully rendered, only rescaled,\n" +
+		"           ; or skipped as up-to-date, most expensive first, and exit\n" +
 		"  -debug ; be chatty\n" +
 		"  -color-map <file>  ; load a custom color map from the specified file\n" +
 		"  -biome-map <file>  ; load a custom biome color map from the specified file\n" +
 		"  -create-tile-html  ; generate tiles.html in the output directory\n" +
 		"  -create-image-tree ; generate a PicGrid-compatible image tree\n" +
 		"  -create-big-image  ; merges all rendered images into a single file\n" +
+		"  -create-zoom-pyramid ; build zoomed-out tiles, each made from 2x2 tiles\n" +
+		"                     ; of the level below, under zoom/<level>/\n" +
+		"  -zoom-levels <n>   ; build at most this many zoom pyramid levels\n" +
 		"  -min-height <y>    ; only draw blocks above this height\n" +
 		"  -max-height <y>    ; only draw blocks below this height\n" +
 		"  -region-limit-rect <x0> <y0> <x1> <y1> ; limit which regions are rendered\n" +
@@ -615,7 +1473,27 @@ public class RegionRenderer
 		"  -max-altitude-shading <x>       ; highest altitude shading modifier [20]\n" +
 		"  -title <title>     ; title to include with maps\n" +
 		"  -scales 1:<n>,...  ; list scales at which to render\n" +
-		"  -threads <n>       ; maximum number of CPU threads to use for rendering\n" +
+		"  -threads <n>       ; number of threads rendering tiles, building aggregate\n" +
+		"                     ; images, or serving tiles [number of CPUs]\n" +
+		"  -io-threads <n>    ; number of threads reading region files, which mostly\n" +
+		"                     ; wait on the disk, on top of -cpu-threads [2]\n" +
+		"  -cpu-threads <n>   ; number of threads rendering tiles: if more than one,\n" +
+		"                     ; a third of them (at least 1) encode and write PNGs,\n" +
+		"                     ; and the rest decode and composite chunks [-threads]\n" +
+		"  -png-compression <n> ; deflate level for PNGs, 0 (fastest) to 9 (smallest) [4]\n" +
+		"  -png-filter <f>    ; PNG row filter: none, sub, up, average, paeth,\n" +
+		"                     ; or adaptive (slowest; tries each for every row) [none]\n" +
+		"  -watch             ; after rendering, keep running and re-render regions\n" +
+		"                     ; (and update tile HTML, etc) whenever they're saved\n" +
+		"  -watch-debounce <ms> ; wait until no region files have been written for\n" +
+		"                     ; this long before rendering a batch [5000]\n" +
+		"  -serve <port>      ; instead of rendering everything up front, serve tiles\n" +
+		"                     ; at http://localhost:<port>/tile/<n>/<rx>/<rz>.png,\n" +
+		"                     ; rendering them at 1:<n> when first requested\n" +
+		"  -serve-cache <MiB> ; memory to use for caching served tiles [256]\n" +
+		"  -metrics-file <file> ; write a line of JSON for each region to this file,\n" +
+		"                     ; with its bytes read, chunks decoded, time spent in each\n" +
+		"                     ; step, memory allocated, and whether caches were used\n" +
 		"\n" +
 		"Input files may be 'region/' directories or individual '.mca' files.\n" +
 		"\n" +
@@ -645,6 +1523,12 @@ public class RegionRenderer
 					m.outputDir = new File(args[++i]);
 				} else if( "-f".equals(args[i]) ) {
 					m.forceReRender = true;
+				} else if( "-incremental".equals(args[i]) ) {
+					m.incremental = true;
+				} else if( "-layer-cache".equals(args[i]) ) {
+					m.layerCache = true;
+				} else if( "-dry-run".equals(args[i]) ) {
+					m.dryRun = true;
 				} else if( "-debug".equals(args[i]) ) {
 					m.debug = true;
 				} else if( "-min-height".equals(args[i]) ) {
@@ -663,6 +1547,10 @@ public class RegionRenderer
 					m.regionLimitRect = new BoundingRect( minX, minY, maxX, maxY );
 				} else if( "-create-big-image".equals(args[i]) ) {
 					m.createBigImage = true;
+				} else if( "-create-zoom-pyramid".equals(args[i]) ) {
+					m.createZoomPyramid = true;
+				} else if( "-zoom-levels".equals(args[i]) ) {
+					m.maxZoomLevels = Integer.parseInt(args[++i]);
 				} else if( "-color-map".equals(args[i]) ) {
 					m.colorMapFile = new File(args[++i]);
 				} else if( "-biome-map".equals(args[i]) ) {
@@ -698,6 +1586,53 @@ public class RegionRenderer
 						m.errorMessage = "Invalid thread count; must be at least 1; given "+m.threadCount;
 						return m;
 					}
+				} else if( "-io-threads".equals(args[i]) ) {
+					m.ioThreadCount = Integer.parseInt(args[++i]);
+					if( m.ioThreadCount < 1 ) {
+						m.errorMessage = "Invalid I/O thread count; must be at least 1; given "+m.ioThreadCount;
+						return m;
+					}
+				} else if( "-cpu-threads".equals(args[i]) ) {
+					m.cpuThreadCount = Integer.parseInt(args[++i]);
+					if( m.cpuThreadCount < 1 ) {
+						m.errorMessage = "Invalid CPU thread count; must be at least 1; given "+m.cpuThreadCount;
+						return m;
+					}
+				} else if( "-png-compression".equals(args[i]) ) {
+					m.pngCompressionLevel = Integer.parseInt(args[++i]);
+					if( m.pngCompressionLevel < 0 || m.pngCompressionLevel > 9 ) {
+						m.errorMessage = "Invalid PNG compression level; must be between 0 and 9; given "+m.pngCompressionLevel;
+						return m;
+					}
+				} else if( "-png-filter".equals(args[i]) ) {
+					try {
+						m.pngFilter = PNGWriter.parseFilter(args[++i]);
+					} catch( IllegalArgumentException e ) {
+						m.errorMessage = e.getMessage();
+						return m;
+					}
+				} else if( "-serve".equals(args[i]) ) {
+					m.servePort = Integer.parseInt(args[++i]);
+					if( m.servePort < 0 || m.servePort > 65535 ) {
+						m.errorMessage = "Invalid port; must be between 0 and 65535; given "+m.servePort;
+						return m;
+					}
+				} else if( "-serve-cache".equals(args[i]) ) {
+					m.serveCacheSize = Long.parseLong(args[++i]);
+					if( m.serveCacheSize < 0 ) {
+						m.errorMessage = "Invalid cache size; must be at least 0; given "+m.serveCacheSize;
+						return m;
+					}
+				} else if( "-metrics-file".equals(args[i]) ) {
+					m.metricsFile = new File(args[++i]);
+				} else if( "-watch".equals(args[i]) ) {
+					m.watch = true;
+				} else if( "-watch-debounce".equals(args[i]) ) {
+					m.watchDebounceTime = Long.parseLong(args[++i]);
+					if( m.watchDebounceTime < 0 ) {
+						m.errorMessage = "Invalid watch debounce time; must be at least 0; given "+m.watchDebounceTime;
+						return m;
+					}
 				} else {
 					m.errorMessage = "Unrecognised argument: " + args[i];
 					return m;
@@ -718,6 +1653,9 @@ public class RegionRenderer
 		
 		File outputDir = null;
 		boolean forceReRender = false;
+		boolean incremental = false;
+		boolean layerCache = false;
+		boolean dryRun = false;
 		boolean debug = false;
 		boolean printHelpAndExit = false;
 		File colorMapFile = null;
@@ -726,6 +1664,8 @@ public class RegionRenderer
 		Boolean createTileHtml = null;
 		Boolean createImageTree = null;
 		boolean createBigImage = false;
+		boolean createZoomPyramid = false;
+		int maxZoomLevels = Integer.MAX_VALUE;
 		BoundingRect regionLimitRect = BoundingRect.INFINITE;
 		int minHeight = Integer.MIN_VALUE;
 		int maxHeight = Integer.MAX_VALUE;
@@ -735,6 +1675,16 @@ public class RegionRenderer
 		int altitudeShadingFactor = 36;
 		int[] mapScales = {1};
 		int threadCount = Runtime.getRuntime().availableProcessors();
+		int ioThreadCount = 2;
+		/** 0 means the same as threadCount */
+		int cpuThreadCount = 0;
+		int pngCompressionLevel = 4;
+		int pngFilter = PNGWriter.FILTER_NONE;
+		boolean watch = false;
+		long watchDebounceTime = 5000;
+		int servePort = -1;
+		long serveCacheSize = 256;
+		File metricsFile = null;
 		String mapTitle = "Regions";
 		
 		String errorMessage = null;
@@ -751,6 +1701,74 @@ public class RegionRenderer
 			return getDefault(this.createImageTree, false);
 		}
 		
+		public int getCpuThreadCount() {
+			return cpuThreadCount == 0 ? threadCount : cpuThreadCount;
+		}
+		
+		protected void updateAggregates( RegionRenderer rr, RegionMap rm, Set<Region> rewritten, boolean force ) throws InterruptedException {
+			if( createZoomPyramid ) rr.createZoomPyramid(rm, rewritten, outputDir, maxZoomLevels, force, threadCount);
+			if( shouldCreateTileHtml()  ) rr.createTileHtml(rm, rewritten, outputDir);
+			if( shouldCreateImageTree() ) rr.createImageTree(rm, rewritten, outputDir, threadCount);
+			if( createBigImage ) rr.createBigImage(rm, rewritten, outputDir, threadCount);
+		}
+		
+		/**
+		 * @return a snapshot of rm with just the regions that have full-size tiles.
+		 *   When serving, regions that haven't been asked for may not,
+		 *   and may not have had their imageFile set yet either.
+		 */
+		protected RegionMap renderedSnapshot( RegionMap rm ) {
+			RegionMap rendered = new RegionMap();
+			for( Region r : rm.snapshot().regions ) {
+				// Always the same file, whichever thread sets it
+				if( r.imageFile == null ) r.imageFile = RenderPlan.tileFile( outputDir, r.rx, r.rz, 1 );
+				if( r.imageFile.exists() ) rendered.addRegion( r );
+			}
+			return rendered;
+		}
+		
+		/**
+		 * Re-render the regions of written region files and update aggregates.
+		 * A TileServer may be adding regions to rm at the same time,
+		 * so aggregates are made from a snapshot of it.
+		 * 
+		 * @return the regions whose full-size tiles were rewritten
+		 */
+		protected Set<Region> renderWritten( RegionRenderer rr, RegionMap rm, Set<File> written ) throws IOException, InterruptedException {
+			List<Region> batch = new ArrayList<Region>();
+			for( File f : written ) {
+				// May have been deleted again before we got to it
+				if( !f.exists() ) continue;
+				Region r = rm.regionForFile( f, regionLimitRect );
+				if( r != null ) batch.add( r );
+			}
+			if( batch.isEmpty() ) return new HashSet<Region>();
+			
+			long startTime = System.currentTimeMillis();
+			Set<Region> rewritten = rr.renderRegions( batch, outputDir, false, ioThreadCount, getCpuThreadCount() );
+			updateAggregates( rr, renderedSnapshot(rm), rewritten, false );
+			if( debug ) {
+				System.err.println("Re-rendered "+rewritten.size()+" of "+batch.size()+" saved regions in "+
+					(System.currentTimeMillis() - startTime)+"ms");
+			}
+			return rewritten;
+		}
+		
+		/**
+		 * Re-render regions as they're saved, forever.
+		 */
+		protected void watch( RegionRenderer rr, RegionMap rm ) throws IOException, InterruptedException {
+			RegionWatcher watcher = new RegionWatcher( regionFiles, watchDebounceTime );
+			try {
+				System.err.println("Watching for changes to region files...");
+				while( true ) {
+					renderWritten( rr, rm, watcher.waitForChanges() );
+				}
+			} finally {
+				watcher.close();
+			}
+		}
+		
 		public int run() throws IOException, InterruptedException {
 			if( errorMessage != null ) {
 				System.err.println( "Error: "+errorMessage );
@@ -774,24 +1792,46 @@ public class RegionRenderer
 				shadingReferenceAltitude, minAltitudeShading, maxAltitudeShading, altitudeShadingFactor,
 				mapTitle, mapScales
 			);
+			rr.incremental = incremental;
+			rr.layerCache = layerCache;
+			rr.pngWriter = new PNGWriter( pngCompressionLevel, pngFilter, 1 );
+			if( dryRun ) {
+				rr.plan( rm.regions, outputDir, forceReRender ).print( System.out );
+				return 0;
+			}
 			
-			rr.renderAll(rm, outputDir, forceReRender, threadCount);
+			// Only once it's certain that something will be rendered,
+			// since opening the log empties it
+			if( metricsFile != null ) rr.metricsLog = new MetricsLog( metricsFile );
+			try {
+				return run( rr, rm );
+			} finally {
+				if( rr.metricsLog != null ) rr.metricsLog.close();
+			}
+		}
+		
+		protected int run( RegionRenderer rr, RegionMap rm ) throws IOException, InterruptedException {
+			if( servePort != -1 ) {
+				TileServer server = new TileServer( rr, rm, regionFiles, regionLimitRect, outputDir, serveCacheSize*1024*1024, threadCount );
+				server.start( servePort );
+				System.err.println("Serving tiles at http://localhost:"+server.getPort()+"/tile/<n>/<rx>/<rz>.png");
+				// Keep tiles that have been rendered (and whatever aggregates were asked for)
+				// up-to-date as the world changes
+				if( watch ) watch( rr, rm );
+				server.join();
+				return 0;
+			}
+			
+			Set<Region> rewritten = rr.renderAll(rm, outputDir, forceReRender, ioThreadCount, getCpuThreadCount());
 			
 			if( debug ) {
-				final Timer tim = rr.timer;
-				System.err.println("Rendered " + tim.regionCount + " regions, " + tim.sectionCount + " sections in " + (tim.total) + "ms");
-				System.err.println("The following times lines indicate milliseconds total, per region, and per section");
-				System.err.println(tim.formatTime("Loading",         tim.regionLoading));
-				System.err.println(tim.formatTime("Pre-rendering",   tim.preRendering));
-				System.err.println(tim.formatTime("Post-processing", tim.postProcessing));
-				System.err.println(tim.formatTime("Image saving",    tim.imageSaving));
-				System.err.println(tim.formatTime("Total",           tim.total));
+				System.err.println(rr.timer.report());
 				System.err.println();
 				
-				if( rr.defaultedBlockIds.size() > 0 ) {
+				if( !rr.defaultedBlockIds.isEmpty() ) {
 					System.err.println("The following block IDs were not explicitly mapped to colors:");
 					int z=0;
-					for( int blockId : rr.defaultedBlockIds ) {
+					for( int blockId = rr.defaultedBlockIds.nextSetBit(0); blockId != -1; blockId = rr.defaultedBlockIds.nextSetBit(blockId+1) ) {
 						System.err.print(z == 0 ? "  " : z % 10 == 0 ? ",\n  " : ", ");
 						System.err.print(IDUtil.blockIdString(blockId));
 						++z;
@@ -802,13 +1842,13 @@ public class RegionRenderer
 				}
 				System.err.println();
 				
-				if( rr.defaultedBlockIdDataValues.size() > 0 ) {
+				if( !rr.defaultedBlockIdDataValues.isEmpty() ) {
 					System.err.println("The following block ID + data value pairs were not explicitly mapped to colors");
 					System.err.println("(this is not necessarily a problem, as the base IDs were mapped to a color):");
 					int z=0;
-					for( int blockId : rr.defaultedBlockIdDataValues ) {
+					for( int idx = rr.defaultedBlockIdDataValues.nextSetBit(0); idx != -1; idx = rr.defaultedBlockIdDataValues.nextSetBit(idx+1) ) {
 						System.err.print(z == 0 ? "  " : z % 10 == 0 ? ",\n  " : ", ");
-						System.err.print(IDUtil.blockIdString(blockId));
+						System.err.print(IDUtil.blockIdString((idx >> 4) | (idx & 0xF) << 16));
 						++z;
 					}
 					System.err.println();
@@ -817,10 +1857,10 @@ public class RegionRenderer
 				}
 				System.err.println();
 				
-				if( rr.defaultedBiomeIds.size() > 0 ) {
+				if( !rr.defaultedBiomeIds.isEmpty() ) {
 					System.err.println("The following biome IDs were not explicitly mapped to colors:");
 					int z = 0;
-					for( int biomeId : rr.defaultedBiomeIds ) {
+					for( int biomeId = rr.defaultedBiomeIds.nextSetBit(0); biomeId != -1; biomeId = rr.defaultedBiomeIds.nextSetBit(biomeId+1) ) {
 						System.err.print(z == 0 ? "  " : z % 10 == 0 ? ",\n  " : ", ");
 						System.err.print(String.format("0x%02X", biomeId));
 						++z;
@@ -832,9 +1872,9 @@ public class RegionRenderer
 				System.err.println();
 			}
 			
-			if( shouldCreateTileHtml()  ) rr.createTileHtml(rm.minX, rm.minZ, rm.maxX, rm.maxZ, outputDir);
-			if( shouldCreateImageTree() ) rr.createImageTree(rm);
-			if( createBigImage ) rr.createBigImage(rm, outputDir);
+			updateAggregates( rr, rm, rewritten, forceReRender );
+			
+			if( watch ) watch( rr, rm );
 			
 			return 0;
 		}
@@ -0,0 +1,106 @@
+package togos.minecraft.maprend;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for region files to be written, for -watch mode.
+ *
+ * Minecraft writes a whole bunch of region files when it saves,
+ * so modifications are collected until none have been seen for
+ * a while and then handed back as a batch.
+ */
+public class RegionWatcher
+{
+	protected final WatchService watchService;
+	/** Directories in which any region file is of interest */
+	protected final Set<Path> wholeDirs = new HashSet<Path>();
+	/** Region files given individually */
+	protected final Set<Path> singleFiles = new HashSet<Path>();
+	/** Milliseconds without modifications after which a batch is returned */
+	public final long debounceTime;
+
+	/**
+	 * @param inputs region directories or region files, as given on the command line
+	 */
+	public RegionWatcher( List<File> inputs, long debounceTime ) throws IOException {
+		this.debounceTime = debounceTime;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		Set<Path> dirs = new HashSet<Path>();
+		for( File f : inputs ) {
+			Path p = f.getAbsoluteFile().toPath().normalize();
+			if( f.isDirectory() ) {
+				wholeDirs.add(p);
+				dirs.add(p);
+			} else {
+				singleFiles.add(p);
+				dirs.add(p.getParent());
+			}
+		}
+		for( Path dir : dirs ) dir.register( watchService, ENTRY_CREATE, ENTRY_MODIFY );
+	}
+
+	protected boolean isOfInterest( Path p ) {
+		if( !RegionMap.rfpat.matcher(p.getFileName().toString()).matches() ) return false;
+		return wholeDirs.contains(p.getParent()) || singleFiles.contains(p);
+	}
+
+	/**
+	 * If events were lost, we'll need to check every region file.
+	 */
+	protected void addAll( Path dir, Set<File> into ) {
+		File[] files = dir.toFile().listFiles();
+		if( files == null ) return;
+		for( File f : files ) {
+			if( isOfInterest(f.toPath()) ) into.add(f);
+		}
+	}
+
+	/**
+	 * @return true if any events were read
+	 */
+	protected boolean collect( WatchKey key, Set<File> into ) {
+		if( key == null ) return false;
+		Path dir = (Path)key.watchable();
+		for( WatchEvent<?> event : key.pollEvents() ) {
+			if( event.kind() == OVERFLOW ) {
+				addAll( dir, into );
+			} else {
+				Path p = dir.resolve((Path)event.context());
+				if( isOfInterest(p) ) into.add(p.toFile());
+			}
+		}
+		key.reset();
+		return true;
+	}
+
+	/**
+	 * Block until at least one region file has been written
+	 * and then none have been for debounceTime milliseconds.
+	 *
+	 * @return the region files that were written
+	 */
+	public Set<File> waitForChanges() throws InterruptedException {
+		Set<File> changed = new HashSet<File>();
+		while( changed.isEmpty() ) collect( watchService.take(), changed );
+		while( collect( watchService.poll(debounceTime, TimeUnit.MILLISECONDS), changed ) );
+		return changed;
+	}
+
+	public void close() throws IOException {
+		watchService.close();
+	}
+}
@@ -0,0 +1,252 @@
+package togos.minecraft.maprend;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import togos.minecraft.maprend.RegionMap.Region;
+import togos.minecraft.maprend.RegionRenderer.RegionJob;
+
+/**
+ * Renders regions in three stages, each with its own threads,
+ * connected by bounded queues:
+ *
+ *   load (I/O threads) -> render (CPU threads) -> write (CPU threads)
+ *
+ * so that reading region files, which mostly waits on the disk,
+ * overlaps with decoding and compositing chunks and encoding PNGs,
+ * which mostly keep the CPUs busy.
+ *
+ * The queues between stages hold at most 2 regions per consuming thread,
+ * which limits how much memory a slow stage can cause to pile up in front of it.
+ * Queue depths are sampled while the pipeline runs; queues before the
+ * bottleneck stage will tend to be full and those after it empty.
+ */
+class RenderPipeline
+{
+	protected static final long SAMPLE_INTERVAL = 100; // milliseconds
+	protected static final long REPORT_INTERVAL = 5000; // milliseconds
+
+	protected final RegionRenderer renderer;
+	protected final File outputDir;
+	protected final boolean force;
+	protected final int ioThreadCount, renderThreadCount, writeThreadCount;
+	protected final ForkJoinPool chunkPool;
+
+	protected final Queue<RenderPlan.Job> toLoad;
+	protected final BlockingQueue<RegionJob> toRender, toWrite;
+	protected final AtomicInteger loadersRunning = new AtomicInteger(), renderersRunning = new AtomicInteger();
+	protected final Set<Region> rewritten = Collections.synchronizedSet(new HashSet<Region>());
+
+	protected long depthSamples, toLoadDepthTotal, toRenderDepthTotal, toWriteDepthTotal;
+
+	/**
+	 * @param jobs regions with tiles to render, in the order to start on them
+	 * @param renderThreadCount threads decoding and compositing chunks; when chunkPool is set,
+	 *   they mostly wait for it, so it should have about this many threads of its own
+	 * @param writeThreadCount threads encoding and writing tiles;
+	 *   if 0, the render threads write each region's tiles themselves
+	 * @param chunkPool if non-null, each region's chunks are rendered on this pool;
+	 *   the caller is responsible for shutting it down once the pipeline's finished
+	 */
+	public RenderPipeline( RegionRenderer renderer, List<RenderPlan.Job> jobs, File outputDir, boolean force, int ioThreadCount, int renderThreadCount, int writeThreadCount, ForkJoinPool chunkPool ) {
+		this.renderer = renderer;
+		this.outputDir = outputDir;
+		this.force = force;
+		this.ioThreadCount = ioThreadCount;
+		this.renderThreadCount = renderThreadCount;
+		this.writeThreadCount = writeThreadCount;
+		this.chunkPool = chunkPool;
+		this.toLoad = new ConcurrentLinkedQueue<RenderPlan.Job>(jobs);
+		this.toRender = new ArrayBlockingQueue<RegionJob>(renderThreadCount*2);
+		this.toWrite = new ArrayBlockingQueue<RegionJob>(Math.max(1, writeThreadCount*2));
+	}
+
+	protected void error( String doing, Region r, Throwable e ) {
+		System.err.println("Error "+doing+" region "+r.rx+", "+r.rz+"!");
+		e.printStackTrace(System.err);
+	}
+	
+	/**
+	 * Report an error that means the region won't go any further
+	 */
+	protected void failed( String doing, RegionJob job, Throwable e ) {
+		error( doing, job.region, e );
+		renderer.regionFailed( job.metrics, e );
+	}
+
+	/**
+	 * @return the next job from queue, or null once the stage feeding it
+	 *   has finished and it's empty
+	 */
+	protected static RegionJob take( BlockingQueue<RegionJob> queue, AtomicInteger producersRunning ) throws InterruptedException {
+		while( true ) {
+			RegionJob job = queue.poll(SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+			if( job != null ) return job;
+			// Producers are counted out only after their last put,
+			// so if there are none left, an empty queue will stay that way
+			if( producersRunning.get() == 0 && queue.isEmpty() ) return null;
+		}
+	}
+
+	class LoadThread extends Thread {
+		LoadThread( int n ) { super("Region loader "+n); }
+
+		public void run() {
+			try {
+				RenderPlan.Job planned;
+				while( (planned = toLoad.poll()) != null ) {
+					Region r = planned.region;
+					r.renderLock.acquire();
+					RegionJob job = null;
+					try {
+						job = renderer.loadRegion( planned, outputDir, force );
+					} catch( Exception e ) {
+						error( "loading", r, e );
+						renderer.regionFailed( new RegionMetrics(r.rx, r.rz), e );
+					}
+					if( job == null ) {
+						r.renderLock.release();
+					} else {
+						job.chunkPool = chunkPool;
+						toRender.put(job);
+					}
+				}
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+			} finally {
+				loadersRunning.decrementAndGet();
+			}
+		}
+	}
+
+	class RenderStageThread extends Thread {
+		RenderStageThread( int n ) { super("Region renderer "+n); }
+
+		public void run() {
+			try {
+				RegionJob job;
+				while( (job = take(toRender, loadersRunning)) != null ) {
+					boolean anythingToWrite = false;
+					try {
+						anythingToWrite = renderer.renderRegion( job );
+					} catch( Exception e ) {
+						failed( "rendering", job, e );
+					} finally {
+						try {
+							job.close();
+						} catch( Exception e ) {
+							error( "closing", job.region, e );
+						}
+					}
+					if( anythingToWrite && writeThreadCount == 0 ) {
+						write(job);
+					} else if( anythingToWrite ) {
+						toWrite.put(job);
+					} else {
+						job.region.renderLock.release();
+					}
+				}
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+			} finally {
+				renderersRunning.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Last stage, on whichever thread: write a region's tiles and release it
+	 */
+	protected void write( RegionJob job ) {
+		try {
+			renderer.writeRegion( job );
+		} catch( Exception e ) {
+			failed( "writing tiles for", job, e );
+		} finally {
+			// Even if a scaled tile then failed
+			if( job.metrics.rewritten ) rewritten.add( job.region );
+			job.region.renderLock.release();
+		}
+	}
+
+	class WriteThread extends Thread {
+		WriteThread( int n ) { super("Tile writer "+n); }
+
+		public void run() {
+			try {
+				RegionJob job;
+				while( (job = take(toWrite, renderersRunning)) != null ) write(job);
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	protected synchronized void sampleQueueDepths() {
+		++depthSamples;
+		toLoadDepthTotal += toLoad.size();
+		toRenderDepthTotal += toRender.size();
+		toWriteDepthTotal += toWrite.size();
+	}
+
+	/**
+	 * @return the current number of regions waiting for each stage
+	 */
+	public String describeQueueDepths() {
+		return
+			"to load: "+toLoad.size()+", "+
+			"to render: "+toRender.size()+"/"+(renderThreadCount*2)+", "+
+			"to write: "+toWrite.size()+"/"+(writeThreadCount*2);
+	}
+
+	/**
+	 * @return the average number of regions that were waiting for each stage
+	 */
+	public synchronized String describeAverageQueueDepths() {
+		long n = Math.max(1, depthSamples);
+		return String.format("to load: %.1f, to render: %.1f/%d, to write: %.1f/%d",
+			toLoadDepthTotal/(double)n,
+			toRenderDepthTotal/(double)n, renderThreadCount*2,
+			toWriteDepthTotal/(double)n, writeThreadCount*2);
+	}
+
+	/**
+	 * @return the regions whose full-size tiles were rewritten
+	 */
+	public Set<Region> run() throws InterruptedException {
+		List<Thread> threads = new ArrayList<Thread>();
+		loadersRunning.set(ioThreadCount);
+		renderersRunning.set(renderThreadCount);
+		for( int i=0; i<ioThreadCount; ++i ) threads.add(new LoadThread(i+1));
+		for( int i=0; i<renderThreadCount; ++i ) threads.add(new RenderStageThread(i+1));
+		for( int i=0; i<writeThreadCount; ++i ) threads.add(new WriteThread(i+1));
+
+		if( renderer.debug ) System.err.println("Using "+ioThreadCount+" loader threads, "+renderThreadCount+" render threads, and "+writeThreadCount+" writer threads");
+
+		for( Thread t : threads ) t.start();
+		long lastReport = System.currentTimeMillis();
+		for( Thread t : threads ) {
+			while( t.isAlive() ) {
+				t.join(SAMPLE_INTERVAL);
+				sampleQueueDepths();
+				if( renderer.debug && System.currentTimeMillis() - lastReport >= REPORT_INTERVAL ) {
+					System.err.println("Regions waiting "+describeQueueDepths());
+					lastReport = System.currentTimeMillis();
+				}
+			}
+		}
+		if( renderer.debug ) System.err.println("Average regions waiting "+describeAverageQueueDepths());
+		return rewritten;
+	}
+}
@@ -0,0 +1,155 @@
+package togos.minecraft.maprend;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import togos.minecraft.maprend.RegionMap.Region;
+
+/**
+ * Which regions need their tiles rendered, and how, worked out
+ * before any rendering threads are started so that they're only
+ * handed regions with something to do.
+ *
+ * Each region file and tile is looked at once, with Files.readAttributes
+ * to get its size and modification time in one go.
+ */
+class RenderPlan
+{
+	/** The full-size tile is out of date, so the region file must be read */
+	public static final int FULL_RENDER = 0;
+	/** Only scaled-down tiles are out of date; they can be made from the full-size one */
+	public static final int RESCALE_ONLY = 1;
+	/** All of the region's tiles are up-to-date */
+	public static final int SKIP = 2;
+	
+	/** Names of the actions, as printed, indexed by action */
+	static final String[] ACTION_NAMES = { "full-render", "rescale-only", "skip" };
+
+	static class Job {
+		public final Region region;
+		/** One of FULL_RENDER, RESCALE_ONLY, or SKIP */
+		public final int action;
+		public final boolean fullSizeNeedsReRender, anyScalesNeedReRender;
+		/**
+		 * Roughly proportional to how long the job will take:
+		 * the size of the file that will have to be decoded
+		 */
+		public final long estimatedCost;
+
+		Job( Region region, boolean fullSizeNeedsReRender, boolean anyScalesNeedReRender, long estimatedCost ) {
+			this.region = region;
+			this.fullSizeNeedsReRender = fullSizeNeedsReRender;
+			this.anyScalesNeedReRender = anyScalesNeedReRender;
+			this.action = fullSizeNeedsReRender ? FULL_RENDER : anyScalesNeedReRender ? RESCALE_ONLY : SKIP;
+			this.estimatedCost = fullSizeNeedsReRender || anyScalesNeedReRender ? estimatedCost : 0;
+		}
+	}
+
+	/** Jobs with something to do, most expensive first */
+	public final List<Job> jobs = new ArrayList<Job>();
+	/** Jobs for regions whose tiles are all up-to-date */
+	public final List<Job> skipped = new ArrayList<Job>();
+
+	public static File tileFile( File outputDir, int rx, int rz, int scale ) {
+		return new File( outputDir, scale == 1 ? "tile."+rx+"."+rz+".png" : "tile."+rx+"."+rz+".1-"+scale+".png" );
+	}
+
+	/**
+	 * @return the file's attributes, or null if it doesn't exist
+	 */
+	protected static BasicFileAttributes attributes( File f ) throws IOException {
+		try {
+			return Files.readAttributes( f.toPath(), BasicFileAttributes.class );
+		} catch( NoSuchFileException e ) {
+			return null;
+		}
+	}
+
+	protected static boolean outOfDate( BasicFileAttributes tile, long regionLastModified ) {
+		return tile == null || tile.lastModifiedTime().toMillis() < regionLastModified;
+	}
+
+	/**
+	 * Work out what needs doing for a single region.
+	 * Also sets the region's imageFile.
+	 */
+	public static Job planRegion( Region r, File outputDir, boolean force, int[] mapScales ) throws IOException {
+		File fullSizeImageFile = r.imageFile = tileFile( outputDir, r.rx, r.rz, 1 );
+		if( force ) {
+			return new Job( r, true, true, r.regionFile.length() );
+		}
+
+		BasicFileAttributes region = attributes( r.regionFile );
+		long regionLastModified = region == null ? 0 : region.lastModifiedTime().toMillis();
+		BasicFileAttributes fullSize = attributes( fullSizeImageFile );
+		boolean fullSizeNeedsReRender = outOfDate( fullSize, regionLastModified );
+
+		boolean anyScalesNeedReRender = false;
+		for( int scale : mapScales ) {
+			if( scale == 1 ) continue;
+			if( outOfDate( attributes(tileFile(outputDir, r.rx, r.rz, scale)), regionLastModified ) ) {
+				anyScalesNeedReRender = true;
+				break;
+			}
+		}
+
+		long cost = fullSizeNeedsReRender ?
+			(region == null ? 0 : region.size()) :
+			fullSize.size();
+		return new Job( r, fullSizeNeedsReRender, anyScalesNeedReRender, cost );
+	}
+
+	public static RenderPlan make( Collection<Region> regions, File outputDir, boolean force, int[] mapScales ) throws IOException {
+		RenderPlan plan = new RenderPlan();
+		for( Region r : regions ) {
+			Job job = planRegion( r, outputDir, force, mapScales );
+			if( job.action == SKIP ) {
+				plan.skipped.add( job );
+			} else {
+				plan.jobs.add( job );
+			}
+		}
+		// Hand out the most expensive regions first so that no thread is
+		// left chewing on a huge region after all the others have finished.
+		Collections.sort( plan.jobs, new Comparator<Job>() {
+			public int compare( Job j1, Job j2 ) {
+				return Long.compare( j2.estimatedCost, j1.estimatedCost );
+			}
+		});
+		return plan;
+	}
+
+	public int count( int action ) {
+		if( action == SKIP ) return skipped.size();
+		int n = 0;
+		for( Job j : jobs ) if( j.action == action ) ++n;
+		return n;
+	}
+
+	/**
+	 * Print a line for each job, in the order they'd be done,
+	 * then the skipped regions and a summary.
+	 */
+	public void print( PrintStream ps ) {
+		ps.println("# action         rx     rz  estimated cost  region file");
+		List<Job> all = new ArrayList<Job>(jobs);
+		all.addAll(skipped);
+		for( Job j : all ) {
+			ps.println(String.format("%-12s %6d %6d %15d  %s",
+				ACTION_NAMES[j.action], j.region.rx, j.region.rz, j.estimatedCost, j.region.regionFile));
+		}
+		ps.println("# "+(jobs.size()+skipped.size())+" regions: "+
+			count(FULL_RENDER)+" "+ACTION_NAMES[FULL_RENDER]+", "+
+			count(RESCALE_ONLY)+" "+ACTION_NAMES[RESCALE_ONLY]+", "+
+			count(SKIP)+" "+ACTION_NAMES[SKIP]);
+	}
+}
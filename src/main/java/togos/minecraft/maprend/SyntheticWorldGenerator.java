@@ -0,0 +1,515 @@
+package togos.minecraft.maprend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jnbt.ByteArrayTag;
+import org.jnbt.ByteTag;
+import org.jnbt.CompoundTag;
+import org.jnbt.DoubleTag;
+import org.jnbt.FloatTag;
+import org.jnbt.IntArrayTag;
+import org.jnbt.IntTag;
+import org.jnbt.ListTag;
+import org.jnbt.LongTag;
+import org.jnbt.NBTOutputStream;
+import org.jnbt.ShortTag;
+import org.jnbt.StringTag;
+import org.jnbt.Tag;
+
+import togos.minecraft.maprend.io.RegionFile;
+
+/**
+ * Writes region files full of made-up but plausible chunks
+ * (rolling terrain, seas, biomes, entities) so that the renderer
+ * can be tested and benchmarked at any scale without real world data.
+ *
+ * Chunk contents depend only on the seed and settings,
+ * so the same command always produces the same world.
+ */
+public class SyntheticWorldGenerator
+{
+	public static final int BEDROCK = 7, STONE = 1, DIRT = 3, GRASS = 2, SAND = 12, WATER = 9, TALL_GRASS = 31, COAL_ORE = 16;
+
+	/** Entity payload is limited so that chunks stay well under the 1MB region file limit */
+	public static final int MAX_ENTITY_BYTES = 512*1024;
+
+	static final String[] ENTITY_IDS = { "Cow", "Pig", "Sheep", "Chicken", "Zombie", "Skeleton", "Creeper", "Item" };
+
+	// Salts so that different properties at the same position are independent
+	static final int SALT_HEIGHT = 1, SALT_BIOME = 2, SALT_SECTION = 3, SALT_ADD = 4, SALT_BLOCK = 5, SALT_ENTITY = 6;
+
+	public final long seed;
+	/** Average terrain height */
+	public int baseHeight = 64;
+	/** Terrain height varies this far above and below baseHeight */
+	public int heightVariation = 24;
+	/** Height of the top of the water in seas */
+	public int seaLevel = 62;
+	/** Fraction of the sections up to the surface that are stored; missing ones are all air */
+	public double sectionDensity = 1;
+	/** Fraction of sections with an 'Add' array, giving some of their blocks IDs above 255 */
+	public double addFraction = 0;
+	/** Biome IDs to choose between; repeat one to make it more common */
+	public int[] biomeIds = { 1, 1, 4, 4, 2, 3, 5, 6, 12, 21, 35 };
+	/** Width of the square patches of each biome, in blocks */
+	public int biomeSize = 64;
+	/** Approximate size of each chunk's entity list, in bytes of NBT */
+	public int entityBytes = 0;
+
+	public SyntheticWorldGenerator( long seed ) {
+		this.seed = seed;
+	}
+
+	//// Randomness ////
+
+	/** The SplitMix64 finalizer */
+	static long mix( long z ) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	protected long hash( int salt, int a, int b, int c ) {
+		long h = mix(seed + salt * 0x9E3779B97F4A7C15L);
+		h = mix(h + a);
+		h = mix(h + b);
+		return mix(h + c);
+	}
+
+	/** @return a number in [0,1) */
+	static double unit( long hash ) {
+		return (hash >>> 11) * 0x1.0p-53;
+	}
+
+	static int floorDiv( int x, int d ) {
+		return x < 0 ? (x - d + 1) / d : x / d;
+	}
+
+	/**
+	 * Smoothly interpolated random values at the corners of a grid of cells
+	 * @return a number in [0,1)
+	 */
+	protected double valueNoise( int x, int z, int cellSize, int salt ) {
+		int gx = floorDiv(x, cellSize), gz = floorDiv(z, cellSize);
+		double fx = (x - gx*cellSize) / (double)cellSize, fz = (z - gz*cellSize) / (double)cellSize;
+		fx = fx*fx*(3-2*fx);
+		fz = fz*fz*(3-2*fz);
+		double v00 = unit(hash(salt, gx  , gz  , cellSize)), v10 = unit(hash(salt, gx+1, gz  , cellSize));
+		double v01 = unit(hash(salt, gx  , gz+1, cellSize)), v11 = unit(hash(salt, gx+1, gz+1, cellSize));
+		double top = v00 + (v10 - v00) * fx, bottom = v01 + (v11 - v01) * fx;
+		return top + (bottom - top) * fz;
+	}
+
+	//// Terrain ////
+
+	public int terrainHeight( int x, int z ) {
+		double n =
+			valueNoise(x, z, 256, SALT_HEIGHT) * 0.6 +
+			valueNoise(x, z,  64, SALT_HEIGHT) * 0.3 +
+			valueNoise(x, z,  16, SALT_HEIGHT) * 0.1;
+		int h = baseHeight + (int)Math.round((n*2 - 1) * heightVariation);
+		return Math.max(1, Math.min(254, h));
+	}
+
+	public int biomeAt( int x, int z ) {
+		long h = hash(SALT_BIOME, floorDiv(x, biomeSize), floorDiv(z, biomeSize), 0);
+		return biomeIds[(int)((h >>> 1) % biomeIds.length)];
+	}
+
+	static void setNybble( byte[] arr, int index, int value ) {
+		arr[index/2] |= (index % 2 == 0 ? value : value << 4);
+	}
+
+	static CompoundTag compound( String name, Tag...entries ) {
+		Map<String,Tag> m = new LinkedHashMap<String,Tag>();
+		for( Tag t : entries ) m.put(t.getName(), t);
+		return new CompoundTag(name, m);
+	}
+
+	static ListTag list( String name, Class<? extends Tag> type, Tag...items ) {
+		List<Tag> l = new ArrayList<Tag>();
+		for( Tag t : items ) l.add(t);
+		return new ListTag(name, type, l);
+	}
+
+	protected CompoundTag generateSection( int cx, int cz, int sy, int[] heights ) {
+		byte[] blocks = new byte[16*16*16];
+		byte[] data = new byte[16*16*8];
+		byte[] skyLight = new byte[16*16*8];
+		byte[] blockLight = new byte[16*16*8];
+		byte[] add = unit(hash(SALT_ADD, cx, cz, sy)) < addFraction ? new byte[16*16*8] : null;
+
+		for( int z=0; z<16; ++z ) {
+			for( int x=0; x<16; ++x ) {
+				final int wx = cx*16+x, wz = cz*16+z;
+				final int h = heights[z*16+x];
+				for( int y=sy*16, i=z*16+x; y<sy*16+16; ++y, i += 256 ) {
+					int blockId = 0, datum = 0;
+					if( y == 0 ) {
+						blockId = BEDROCK;
+					} else if( y < h-3 ) {
+						long bh = hash(SALT_BLOCK, wx, y, wz);
+						blockId = STONE;
+						if( add != null && (bh & 31) == 0 ) {
+							// Some block from a mod; IDs 256-4095
+							blockId = 256 + (int)((bh >>> 8) % (4096-256));
+						} else if( (bh & 63) == 1 ) {
+							blockId = COAL_ORE;
+						} else if( (bh & 7) == 2 ) {
+							// Granite, diorite, or andesite
+							datum = 1 + (int)((bh >>> 8) % 6);
+						}
+					} else if( y < h ) {
+						blockId = DIRT;
+					} else if( y == h ) {
+						blockId = h < seaLevel ? SAND : GRASS;
+					} else if( y <= seaLevel ) {
+						blockId = WATER;
+					} else if( y == h+1 && (hash(SALT_BLOCK, wx, y, wz) & 7) == 0 ) {
+						blockId = TALL_GRASS;
+						datum = 1;
+					}
+					blocks[i] = (byte)blockId;
+					if( blockId > 255 ) setNybble(add, i, blockId >> 8);
+					setNybble(data, i, datum);
+					if( y > h ) setNybble(skyLight, i, 15);
+				}
+			}
+		}
+
+		return add == null ?
+			compound("",
+				new ByteTag("Y", (byte)sy),
+				new ByteArrayTag("Blocks", blocks),
+				new ByteArrayTag("Data", data),
+				new ByteArrayTag("SkyLight", skyLight),
+				new ByteArrayTag("BlockLight", blockLight)
+			) :
+			compound("",
+				new ByteTag("Y", (byte)sy),
+				new ByteArrayTag("Blocks", blocks),
+				new ByteArrayTag("Add", add),
+				new ByteArrayTag("Data", data),
+				new ByteArrayTag("SkyLight", skyLight),
+				new ByteArrayTag("BlockLight", blockLight)
+			);
+	}
+
+	protected static CompoundTag entity( String id, long h, double x, double y, double z ) {
+		return compound("",
+			new StringTag("id", id),
+			list("Pos", DoubleTag.class, new DoubleTag("", x), new DoubleTag("", y), new DoubleTag("", z)),
+			list("Motion", DoubleTag.class, new DoubleTag("", 0), new DoubleTag("", -0.0784), new DoubleTag("", 0)),
+			list("Rotation", FloatTag.class, new FloatTag("", (h >>> 40) % 360), new FloatTag("", 0)),
+			new FloatTag("FallDistance", 0),
+			new ShortTag("Fire", (short)-1),
+			new ShortTag("Air", (short)300),
+			new ByteTag("OnGround", (byte)1),
+			new IntTag("Dimension", 0),
+			new ByteTag("Invulnerable", (byte)0),
+			new IntTag("PortalCooldown", 0),
+			new LongTag("UUIDMost", mix(h)),
+			new LongTag("UUIDLeast", mix(~h)),
+			new FloatTag("Health", 10),
+			new ShortTag("HurtTime", (short)0),
+			new ShortTag("DeathTime", (short)0),
+			new ByteTag("PersistenceRequired", (byte)0)
+		);
+	}
+
+	/** Approximate size of an entity's NBT */
+	static final int ENTITY_SIZE;
+	static {
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			NBTOutputStream nos = new NBTOutputStream(bos, false);
+			nos.writeTag(entity("Chicken", 0, 0, 0, 0));
+			nos.close();
+			ENTITY_SIZE = bos.size();
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected ListTag generateEntities( int cx, int cz, int[] heights ) {
+		List<Tag> entities = new ArrayList<Tag>();
+		int count = (entityBytes + ENTITY_SIZE/2) / ENTITY_SIZE;
+		for( int i=0; i<count; ++i ) {
+			long h = hash(SALT_ENTITY, cx, cz, i);
+			int x = (int)(h & 15), z = (int)((h >>> 4) & 15);
+			entities.add(entity(
+				ENTITY_IDS[(int)((h >>> 8) % ENTITY_IDS.length)], h,
+				cx*16 + x + unit(h), heights[z*16+x] + 1, cz*16 + z + unit(mix(h))
+			));
+		}
+		return new ListTag("Entities", CompoundTag.class, entities);
+	}
+
+	/**
+	 * @param cx chunk X coordinate in the world (not within its region)
+	 * @param cz chunk Z coordinate in the world
+	 */
+	public CompoundTag generateChunk( int cx, int cz ) {
+		int[] heights = new int[16*16];
+		int[] heightMap = new int[16*16];
+		byte[] biomes = new byte[16*16];
+		int top = seaLevel;
+		for( int z=0; z<16; ++z ) {
+			for( int x=0; x<16; ++x ) {
+				int h = terrainHeight(cx*16+x, cz*16+z);
+				heights[z*16+x] = h;
+				heightMap[z*16+x] = Math.max(h, seaLevel) + 1;
+				biomes[z*16+x] = (byte)biomeAt(cx*16+x, cz*16+z);
+				// Leave room for tall grass
+				top = Math.max(top, h+1);
+			}
+		}
+
+		List<Tag> sections = new ArrayList<Tag>();
+		for( int sy=0; sy<16 && sy*16 <= top; ++sy ) {
+			if( unit(hash(SALT_SECTION, cx, cz, sy)) >= sectionDensity ) continue;
+			sections.add(generateSection(cx, cz, sy, heights));
+		}
+
+		return compound("",
+			new IntTag("DataVersion", 1343),
+			compound("Level",
+				new IntTag("xPos", cx),
+				new IntTag("zPos", cz),
+				new LongTag("LastUpdate", 0),
+				new LongTag("InhabitedTime", 0),
+				new ByteTag("TerrainPopulated", (byte)1),
+				new ByteTag("LightPopulated", (byte)1),
+				new ByteArrayTag("Biomes", biomes),
+				new IntArrayTag("HeightMap", heightMap),
+				new ListTag("Sections", CompoundTag.class, sections),
+				generateEntities(cx, cz, heights),
+				list("TileEntities", CompoundTag.class)
+			)
+		);
+	}
+
+	public static File regionFile( File dir, int rx, int rz ) {
+		return new File(dir, "r."+rx+"."+rz+".mca");
+	}
+
+	/**
+	 * Write a region file with all 1024 chunks, replacing any that's already there.
+	 */
+	public void generateRegion( int rx, int rz, File dir ) throws IOException {
+		File f = regionFile(dir, rx, rz);
+		if( f.exists() && !f.delete() ) throw new IOException("Couldn't delete existing "+f);
+		RegionFile rf = RegionFile.forWriting(f);
+		try {
+			for( int cz=0; cz<32; ++cz ) {
+				for( int cx=0; cx<32; ++cx ) {
+					NBTOutputStream nos = new NBTOutputStream(rf.getChunkDataOutputStream(cx, cz), false);
+					try {
+						nos.writeTag(generateChunk(rx*32+cx, rz*32+cz));
+					} finally {
+						nos.close();
+					}
+					// RegionFile reports write errors only by printing them
+					if( !rf.hasChunk(cx, cz) ) throw new IOException("Failed to write chunk "+cx+", "+cz+" of "+f);
+				}
+			}
+		} finally {
+			rf.close();
+		}
+	}
+
+	/**
+	 * Generate all the regions within rect using threadCount threads.
+	 * @return the number of regions generated
+	 */
+	public int generateRegions( final BoundingRect rect, final File dir, int threadCount ) throws IOException, InterruptedException {
+		if( !dir.exists() ) dir.mkdirs();
+		final int width = rect.maxX - rect.minX;
+		final int count = width * (rect.maxY - rect.minY);
+		final AtomicInteger next = new AtomicInteger();
+		final IOException[] error = new IOException[1];
+		List<Thread> threads = new ArrayList<Thread>();
+		for( int t=0; t<threadCount; ++t ) {
+			threads.add(new Thread("Region generator") {
+				public void run() {
+					int i;
+					while( (i = next.getAndIncrement()) < count ) {
+						int rx = rect.minX + i % width, rz = rect.minY + i / width;
+						try {
+							generateRegion( rx, rz, dir );
+						} catch( IOException e ) {
+							synchronized( error ) {
+								if( error[0] == null ) error[0] = e;
+							}
+							// Don't start any more
+							next.set(count);
+							return;
+						}
+					}
+				}
+			});
+		}
+		for( Thread t : threads ) t.start();
+		for( Thread t : threads ) t.join();
+		if( error[0] != null ) throw error[0];
+		return count;
+	}
+
+	//// Command-line processing ////
+
+	public static final String USAGE =
+		"Usage: java -cp TMCMR.jar togos.minecraft.maprend.SyntheticWorldGenerator [options] -o <region-dir>\n" +
+		"  -h, -? ; print usage instructions and exit\n" +
+		"  -seed <n>          ; the same seed and options always give the same world [0]\n" +
+		"  -region-rect <x0> <z0> <x1> <z1> ; which regions to generate, e.g.\n" +
+		"                     ; 0 0 2 2 for the 4 regions southeast of the origin [0 0 1 1]\n" +
+		"  -base-height <y>   ; average terrain height [64]\n" +
+		"  -height-variation <n> ; how far terrain goes above and below that [24]\n" +
+		"  -sea-level <y>     ; fill with water up to this height [62]\n" +
+		"  -section-density <f> ; fraction of sections up to the surface that are\n" +
+		"                     ; stored, between 0 and 1; the rest are left out,\n" +
+		"                     ; as if all air [1]\n" +
+		"  -add-fraction <f>  ; fraction of sections with an 'Add' array, with some\n" +
+		"                     ; blocks having IDs above 255 [0]\n" +
+		"  -biomes <id>,...   ; biome IDs to use; repeat one to make it more common\n" +
+		"                     ; [1,1,4,4,2,3,5,6,12,21,35]\n" +
+		"  -biome-size <n>    ; width of each patch of a biome, in blocks [64]\n" +
+		"  -entity-bytes <n>  ; approximate size of each chunk's entity data [0]\n" +
+		"  -threads <n>       ; number of regions to generate at once\n" +
+		"\n" +
+		"Existing region files in the output directory are replaced.";
+
+	static class GeneratorCommand
+	{
+		public static GeneratorCommand fromArguments( String...args ) {
+			GeneratorCommand m = new GeneratorCommand();
+			for( int i = 0; i < args.length; ++i ) {
+				if( "-o".equals(args[i]) ) {
+					m.outputDir = new File(args[++i]);
+				} else if( "-seed".equals(args[i]) ) {
+					m.seed = Long.parseLong(args[++i]);
+				} else if( "-region-rect".equals(args[i]) ) {
+					int minX = Integer.parseInt(args[++i]);
+					int minZ = Integer.parseInt(args[++i]);
+					int maxX = Integer.parseInt(args[++i]);
+					int maxZ = Integer.parseInt(args[++i]);
+					if( maxX <= minX || maxZ <= minZ ) {
+						m.errorMessage = "Invalid region rectangle; x1 and z1 must be greater than x0 and z0";
+						return m;
+					}
+					m.regionRect = new BoundingRect( minX, minZ, maxX, maxZ );
+				} else if( "-base-height".equals(args[i]) ) {
+					m.baseHeight = Integer.parseInt(args[++i]);
+				} else if( "-height-variation".equals(args[i]) ) {
+					m.heightVariation = Integer.parseInt(args[++i]);
+				} else if( "-sea-level".equals(args[i]) ) {
+					m.seaLevel = Integer.parseInt(args[++i]);
+				} else if( "-section-density".equals(args[i]) ) {
+					m.sectionDensity = Double.parseDouble(args[++i]);
+					if( m.sectionDensity < 0 || m.sectionDensity > 1 ) {
+						m.errorMessage = "Invalid section density; must be between 0 and 1; given "+m.sectionDensity;
+						return m;
+					}
+				} else if( "-add-fraction".equals(args[i]) ) {
+					m.addFraction = Double.parseDouble(args[++i]);
+					if( m.addFraction < 0 || m.addFraction > 1 ) {
+						m.errorMessage = "Invalid add fraction; must be between 0 and 1; given "+m.addFraction;
+						return m;
+					}
+				} else if( "-biomes".equals(args[i]) ) {
+					String[] ids = args[++i].split(",");
+					m.biomeIds = new int[ids.length];
+					for( int j=0; j<ids.length; ++j ) {
+						m.biomeIds[j] = Integer.parseInt(ids[j]);
+						if( m.biomeIds[j] < 0 || m.biomeIds[j] >= BiomeMap.SIZE ) {
+							m.errorMessage = "Invalid biome ID; must be between 0 and "+(BiomeMap.SIZE-1)+"; given "+m.biomeIds[j];
+							return m;
+						}
+					}
+				} else if( "-biome-size".equals(args[i]) ) {
+					m.biomeSize = Integer.parseInt(args[++i]);
+					if( m.biomeSize < 1 ) {
+						m.errorMessage = "Invalid biome size; must be at least 1; given "+m.biomeSize;
+						return m;
+					}
+				} else if( "-entity-bytes".equals(args[i]) ) {
+					m.entityBytes = Integer.parseInt(args[++i]);
+					if( m.entityBytes < 0 || m.entityBytes > MAX_ENTITY_BYTES ) {
+						m.errorMessage = "Invalid entity data size; must be between 0 and "+MAX_ENTITY_BYTES+"; given "+m.entityBytes;
+						return m;
+					}
+				} else if( "-threads".equals(args[i]) ) {
+					m.threadCount = Integer.parseInt(args[++i]);
+					if( m.threadCount < 1 ) {
+						m.errorMessage = "Invalid thread count; must be at least 1; given "+m.threadCount;
+						return m;
+					}
+				} else if( "-h".equals(args[i]) || "-?".equals(args[i]) ) {
+					m.printHelpAndExit = true;
+				} else {
+					m.errorMessage = "Unrecognised argument: " + args[i];
+					return m;
+				}
+			}
+			if( m.outputDir == null && !m.printHelpAndExit ) m.errorMessage = "Output directory unspecified.";
+			return m;
+		}
+
+		File outputDir = null;
+		long seed = 0;
+		BoundingRect regionRect = new BoundingRect( 0, 0, 1, 1 );
+		int baseHeight = 64;
+		int heightVariation = 24;
+		int seaLevel = 62;
+		double sectionDensity = 1;
+		double addFraction = 0;
+		int[] biomeIds = null;
+		int biomeSize = 64;
+		int entityBytes = 0;
+		int threadCount = Runtime.getRuntime().availableProcessors();
+		boolean printHelpAndExit = false;
+
+		String errorMessage = null;
+
+		public SyntheticWorldGenerator createGenerator() {
+			SyntheticWorldGenerator gen = new SyntheticWorldGenerator( seed );
+			gen.baseHeight = baseHeight;
+			gen.heightVariation = heightVariation;
+			gen.seaLevel = seaLevel;
+			gen.sectionDensity = sectionDensity;
+			gen.addFraction = addFraction;
+			if( biomeIds != null ) gen.biomeIds = biomeIds;
+			gen.biomeSize = biomeSize;
+			gen.entityBytes = entityBytes;
+			return gen;
+		}
+
+		public int run() throws IOException, InterruptedException {
+			if( errorMessage != null ) {
+				System.err.println( "Error: "+errorMessage );
+				System.err.println( USAGE );
+				return 1;
+			}
+			if( printHelpAndExit ) {
+				System.out.println( USAGE );
+				return 0;
+			}
+
+			long startTime = System.currentTimeMillis();
+			int count = createGenerator().generateRegions( regionRect, outputDir, threadCount );
+			System.err.println("Generated "+count+" regions in "+(System.currentTimeMillis() - startTime)+"ms");
+			return 0;
+		}
+	}
+
+	public static void main( String[] args ) throws Exception {
+		System.exit( GeneratorCommand.fromArguments( args ).run() );
+	}
+}
@@ -0,0 +1,296 @@
+package togos.minecraft.maprend;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+
+import togos.minecraft.maprend.RegionMap.Region;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves tiles over HTTP at /tile/<n>/<rx>/<rz>.png, where n is the
+ * denominator of the scale, rendering them when they're first asked for
+ * or when their region has been saved since.
+ *
+ * Encoded tiles are kept in an LRU cache bounded by their total size.
+ * Requests for a tile that's already being rendered wait for that
+ * render rather than starting another.
+ */
+public class TileServer
+{
+	static final Pattern TILE_PATH = Pattern.compile("^/tile/(\\d+)/(-?\\d+)/(-?\\d+)\\.png$");
+
+	static class CachedTile {
+		public final byte[] png;
+		public final String etag;
+		/** Modification time of the region file when the tile was made */
+		public final long regionModified;
+
+		public CachedTile( byte[] png, long regionModified ) {
+			this.png = png;
+			this.regionModified = regionModified;
+			CRC32 crc = new CRC32();
+			crc.update(png);
+			this.etag = "\""+Long.toHexString(crc.getValue())+"-"+Integer.toHexString(png.length)+"\"";
+		}
+	}
+
+	protected final RegionRenderer renderer;
+	protected final RegionMap regionMap;
+	protected final List<File> regionFiles;
+	protected final BoundingRect regionLimitRect;
+	protected final File outputDir;
+	protected final long maxCacheBytes;
+	protected final int threadCount;
+
+	/** Most recently used last; synchronize on it */
+	protected final LinkedHashMap<String,CachedTile> cache = new LinkedHashMap<String,CachedTile>(16, 0.75f, true);
+	protected long cacheBytes = 0;
+	/** Tiles currently being made, so that concurrent requests can share the result */
+	protected final ConcurrentHashMap<String,FutureTask<CachedTile>> inProgress = new ConcurrentHashMap<String,FutureTask<CachedTile>>();
+
+	protected HttpServer server;
+	protected ExecutorService executor;
+	protected final CountDownLatch stopped = new CountDownLatch(1);
+
+	/**
+	 * @param regionFiles region directories and files given on the command line,
+	 *   in which to look for regions that didn't exist when regionMap was loaded
+	 */
+	public TileServer( RegionRenderer renderer, RegionMap regionMap, List<File> regionFiles, BoundingRect regionLimitRect, File outputDir, long maxCacheBytes, int threadCount ) {
+		this.renderer = renderer;
+		this.regionMap = regionMap;
+		this.regionFiles = regionFiles;
+		this.regionLimitRect = regionLimitRect;
+		this.outputDir = outputDir;
+		this.maxCacheBytes = maxCacheBytes;
+		this.threadCount = threadCount;
+	}
+
+	//// Cache ////
+
+	protected CachedTile getCached( String key ) {
+		synchronized( cache ) {
+			return cache.get(key);
+		}
+	}
+
+	protected void putCached( String key, CachedTile tile ) {
+		synchronized( cache ) {
+			CachedTile old = cache.put(key, tile);
+			if( old != null ) cacheBytes -= old.png.length;
+			cacheBytes += tile.png.length;
+			for( Iterator<CachedTile> i = cache.values().iterator(); cacheBytes > maxCacheBytes && i.hasNext(); ) {
+				cacheBytes -= i.next().png.length;
+				i.remove();
+			}
+		}
+	}
+
+	//// Rendering ////
+
+	protected Region findRegion( int rx, int rz ) {
+		synchronized( regionMap ) {
+			Region r = regionMap.regionAt(rx, rz);
+			if( r != null ) return r;
+			for( File f : regionFiles ) {
+				File regionFile = f.isDirectory() ? new File(f, "r."+rx+"."+rz+".mca") : f;
+				if( regionFile.getName().equals("r."+rx+"."+rz+".mca") && regionFile.exists() ) {
+					return regionMap.regionForFile(regionFile, regionLimitRect);
+				}
+			}
+			return null;
+		}
+	}
+
+	protected CachedTile makeTile( Region r, int scale, long regionModified ) throws IOException {
+		r.renderLock.acquireUninterruptibly();
+		try {
+			renderer.renderRegion( r, outputDir, false );
+		} finally {
+			r.renderLock.release();
+		}
+		File fullSizeFile = new File(outputDir, "tile."+r.rx+"."+r.rz+".png");
+		File scaledFile = new File(outputDir, "tile."+r.rx+"."+r.rz+".1-"+scale+".png");
+		if( scale == 1 ) {
+			return new CachedTile( Files.readAllBytes(fullSizeFile.toPath()), regionModified );
+		}
+		for( int s : renderer.mapScales ) {
+			// Already written by renderRegion
+			if( s == scale ) return new CachedTile( Files.readAllBytes(scaledFile.toPath()), regionModified );
+		}
+		BufferedImage fullSize = ImageIO.read(fullSizeFile);
+		if( fullSize == null ) throw new IOException("Could not load image "+fullSizeFile);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		renderer.pngWriter.write( RegionRenderer.scaleTile(fullSize, scale), baos );
+		return new CachedTile( baos.toByteArray(), regionModified );
+	}
+
+	/**
+	 * @return the tile for the given region, from the cache if it's not
+	 *   older than the region, or else freshly made
+	 */
+	protected CachedTile getTile( final Region r, final int scale ) throws IOException, InterruptedException {
+		final String key = scale+"/"+r.rx+"/"+r.rz;
+		final long regionModified = r.regionFile.lastModified();
+		CachedTile tile = getCached(key);
+		if( tile != null && tile.regionModified == regionModified ) return tile;
+
+		FutureTask<CachedTile> task = new FutureTask<CachedTile>(new Callable<CachedTile>() {
+			public CachedTile call() throws IOException {
+				CachedTile tile = makeTile( r, scale, regionModified );
+				putCached( key, tile );
+				return tile;
+			}
+		});
+		FutureTask<CachedTile> existing = inProgress.putIfAbsent(key, task);
+		if( existing != null ) {
+			task = existing;
+		} else {
+			try {
+				task.run();
+			} finally {
+				inProgress.remove(key);
+			}
+		}
+		try {
+			return task.get();
+		} catch( ExecutionException e ) {
+			if( e.getCause() instanceof IOException ) throw (IOException)e.getCause();
+			if( e.getCause() instanceof RuntimeException ) throw (RuntimeException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	//// HTTP ////
+
+	protected static boolean etagMatches( String ifNoneMatch, String etag ) {
+		if( ifNoneMatch == null ) return false;
+		for( String tag : ifNoneMatch.split(",") ) {
+			tag = tag.trim();
+			if( tag.startsWith("W/") ) tag = tag.substring(2);
+			if( tag.equals("*") || tag.equals(etag) ) return true;
+		}
+		return false;
+	}
+
+	protected static void sendText( HttpExchange ex, int status, String text ) throws IOException {
+		byte[] body = (text+"\n").getBytes("UTF-8");
+		ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		if( "HEAD".equals(ex.getRequestMethod()) ) {
+			ex.sendResponseHeaders(status, -1);
+		} else {
+			ex.sendResponseHeaders(status, body.length);
+			ex.getResponseBody().write(body);
+		}
+	}
+
+	protected void handle( HttpExchange ex ) throws IOException {
+		String method = ex.getRequestMethod();
+		if( !"GET".equals(method) && !"HEAD".equals(method) ) {
+			ex.getResponseHeaders().set("Allow", "GET, HEAD");
+			sendText( ex, 405, "Method not allowed" );
+			return;
+		}
+		Matcher m = TILE_PATH.matcher(ex.getRequestURI().getPath());
+		int scale;
+		Region r;
+		if( !m.matches() ||
+			(scale = Integer.parseInt(m.group(1))) < 1 || scale > 512 || 512 % scale != 0 ||
+			(r = findRegion(Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)))) == null
+		) {
+			sendText( ex, 404, "No such tile" );
+			return;
+		}
+
+		CachedTile tile;
+		try {
+			tile = getTile( r, scale );
+		} catch( IOException e ) {
+			System.err.println("Error rendering region "+r.rx+", "+r.rz+": "+e.getMessage());
+			sendText( ex, 500, "Error rendering tile: "+e.getMessage() );
+			return;
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			sendText( ex, 503, "Interrupted" );
+			return;
+		}
+
+		ex.getResponseHeaders().set("ETag", tile.etag);
+		// Let browsers keep tiles but check back, since regions change
+		ex.getResponseHeaders().set("Cache-Control", "no-cache");
+		if( etagMatches(ex.getRequestHeaders().getFirst("If-None-Match"), tile.etag) ) {
+			ex.sendResponseHeaders(304, -1);
+			return;
+		}
+		ex.getResponseHeaders().set("Content-Type", "image/png");
+		if( "HEAD".equals(method) ) {
+			ex.getResponseHeaders().set("Content-Length", String.valueOf(tile.png.length));
+			ex.sendResponseHeaders(200, -1);
+		} else {
+			ex.sendResponseHeaders(200, tile.png.length);
+			OutputStream os = ex.getResponseBody();
+			os.write(tile.png);
+		}
+	}
+
+	public void start( int port ) throws IOException {
+		if( !outputDir.exists() ) outputDir.mkdirs();
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle( HttpExchange ex ) throws IOException {
+				try {
+					TileServer.this.handle(ex);
+				} catch( RuntimeException e ) {
+					System.err.println("Error handling "+ex.getRequestURI()+":");
+					e.printStackTrace(System.err);
+					sendText( ex, 500, "Internal error" );
+				} finally {
+					ex.close();
+				}
+			}
+		});
+		executor = Executors.newFixedThreadPool(threadCount);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+		stopped.countDown();
+	}
+
+	/**
+	 * Wait until the server is stopped
+	 */
+	public void join() throws InterruptedException {
+		stopped.await();
+	}
+}
@@ -0,0 +1,180 @@
+package togos.minecraft.maprend;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.imageio.ImageIO;
+
+import togos.minecraft.maprend.RegionMap.Region;
+import togos.minecraft.maprend.io.PNGWriter;
+
+/**
+ * Builds a pyramid of zoomed-out tiles on top of the region tiles.
+ *
+ * Level 0 is the region tiles themselves (tile.<x>.<z>.png in the output directory).
+ * Each tile at level n, written to zoom/<n>/tile.<x>.<z>.png, covers the 2x2 tiles
+ * of level n-1 from (2x, 2z) to (2x+1, 2z+1), box-filtered down to 512x512.
+ * Levels are added until a single tile covers the whole map, or for maps
+ * that straddle the origin, until one tile covers each quadrant around it.
+ */
+public class ZoomPyramidBuilder
+{
+	public static final int TILE_SIZE = 512;
+
+	public final PNGWriter pngWriter;
+	public final boolean debug;
+
+	public ZoomPyramidBuilder( PNGWriter pngWriter, boolean debug ) {
+		this.pngWriter = pngWriter;
+		this.debug = debug;
+	}
+
+	public static File tileFile( File outputDir, int level, int x, int z ) {
+		String filename = "tile."+x+"."+z+".png";
+		return level == 0 ? new File(outputDir, filename) : new File(outputDir, "zoom/"+level+"/"+filename);
+	}
+
+	protected static long key( int x, int z ) { return ((long)x << 32) | (z & 0xFFFFFFFFL); }
+	protected static int keyX( long key ) { return (int)(key >> 32); }
+	protected static int keyZ( long key ) { return (int)key; }
+
+	/**
+	 * Build or update the pyramid for the given regions.
+	 * A tile is only rebuilt if it is an ancestor of a changed region,
+	 * or is missing or older than one of its children, unless force is true.
+	 *
+	 * @param changed regions whose tiles have been rewritten, or null if not known
+	 * @param maxLevels maximum number of levels to build above the region tiles
+	 * @return the number of levels built
+	 */
+	public int build( RegionMap rm, Set<Region> changed, File outputDir, int maxLevels, boolean force, int threadCount ) throws InterruptedException {
+		Set<Long> tiles = new HashSet<Long>();
+		for( Region r : rm.regions ) tiles.add( key(r.rx, r.rz) );
+		Set<Long> dirty = new HashSet<Long>();
+		if( changed != null ) for( Region r : changed ) dirty.add( key(r.rx, r.rz) );
+
+		int level = 0;
+		while( tiles.size() > 1 && level < maxLevels ) {
+			Set<Long> parents = new HashSet<Long>();
+			for( long t : tiles ) parents.add( key(keyX(t) >> 1, keyZ(t) >> 1) );
+			// Tiles -1 and 0 are their own parents, so zooming out further would change nothing
+			if( parents.equals(tiles) ) break;
+			++level;
+			Set<Long> dirtyParents = new HashSet<Long>();
+			for( long t : dirty ) dirtyParents.add( key(keyX(t) >> 1, keyZ(t) >> 1) );
+
+			if( debug ) System.err.println("Building zoom level "+level+" ("+parents.size()+" tiles, "+dirtyParents.size()+" changed)...");
+			new File(outputDir, "zoom/"+level).mkdirs();
+			buildLevel( outputDir, level, parents, dirtyParents, force, threadCount );
+			tiles = parents;
+			dirty = dirtyParents;
+		}
+		return level;
+	}
+
+	/**
+	 * Build the given tiles of a level in parallel.
+	 * All tiles of the level below must already have been built.
+	 */
+	protected void buildLevel( final File outputDir, final int level, Set<Long> tiles, final Set<Long> dirty, final boolean force, int threadCount )
+		throws InterruptedException
+	{
+		final Queue<Long> queue = new ConcurrentLinkedQueue<Long>(tiles);
+		List<Thread> threads = new ArrayList<Thread>();
+		for( int i=Math.min(threadCount, tiles.size()); i>0; --i ) {
+			threads.add(new Thread("Zoom level "+level+" builder") {
+				public void run() {
+					int[] child = new int[TILE_SIZE*TILE_SIZE];
+					int[] parent = new int[TILE_SIZE*TILE_SIZE];
+					Long t;
+					while( (t = queue.poll()) != null ) {
+						try {
+							buildTile( outputDir, level, keyX(t), keyZ(t), force || dirty.contains(t), child, parent );
+						} catch( IOException e ) {
+							System.err.println("Error building zoom level "+level+" tile "+keyX(t)+", "+keyZ(t)+"!");
+							e.printStackTrace(System.err);
+						}
+					}
+				}
+			});
+		}
+		for( Thread t : threads ) t.start();
+		for( Thread t : threads ) t.join();
+	}
+
+	/**
+	 * @param child scratch buffer for child tile pixels
+	 * @param parent scratch buffer for the new tile's pixels
+	 */
+	protected void buildTile( File outputDir, int level, int x, int z, boolean force, int[] child, int[] parent ) throws IOException {
+		File tileFile = tileFile( outputDir, level, x, z );
+		File[] childFiles = new File[4];
+		boolean anyChildren = false;
+		boolean stale = force || !tileFile.exists();
+		for( int q=0; q<4; ++q ) {
+			File f = tileFile( outputDir, level-1, x*2+(q&1), z*2+(q>>1) );
+			if( !f.exists() ) continue;
+			childFiles[q] = f;
+			anyChildren = true;
+			if( f.lastModified() > tileFile.lastModified() ) stale = true;
+		}
+		if( !anyChildren ) {
+			tileFile.delete();
+			return;
+		}
+		if( !stale ) return;
+
+		for( int q=0; q<4; ++q ) {
+			int destX = (q&1)*TILE_SIZE/2, destZ = (q>>1)*TILE_SIZE/2;
+			BufferedImage img = childFiles[q] == null ? null : ImageIO.read( childFiles[q] );
+			if( img == null || img.getWidth() != TILE_SIZE || img.getHeight() != TILE_SIZE ) {
+				if( childFiles[q] != null ) System.err.println("Could not load image "+childFiles[q]);
+				clearQuadrant( parent, destX, destZ );
+			} else {
+				img.getRGB( 0, 0, TILE_SIZE, TILE_SIZE, child, 0, TILE_SIZE );
+				downsample( child, parent, destX, destZ );
+			}
+		}
+		pngWriter.write( parent, TILE_SIZE, TILE_SIZE, tileFile );
+	}
+
+	protected static void clearQuadrant( int[] dest, int destX, int destZ ) {
+		for( int z=0; z<TILE_SIZE/2; ++z ) {
+			for( int i=(destZ+z)*TILE_SIZE+destX, x=0; x<TILE_SIZE/2; ++x, ++i ) dest[i] = 0;
+		}
+	}
+
+	/**
+	 * Shrink a tile to half size, writing it to the given quadrant of dest
+	 */
+	protected static void downsample( int[] src, int[] dest, int destX, int destZ ) {
+		for( int z=0; z<TILE_SIZE/2; ++z ) {
+			int si = z*2*TILE_SIZE;
+			int di = (destZ+z)*TILE_SIZE+destX;
+			for( int x=0; x<TILE_SIZE/2; ++x, si+=2, ++di ) {
+				dest[di] = average4( src[si], src[si+1], src[si+TILE_SIZE], src[si+TILE_SIZE+1] );
+			}
+		}
+	}
+
+	/**
+	 * Average 4 non-premultiplied ARGB colors as if they were premultiplied,
+	 * so that transparent pixels don't darken their neighbors.
+	 */
+	protected static int average4( int c0, int c1, int c2, int c3 ) {
+		int a0 = c0 >>> 24, a1 = c1 >>> 24, a2 = c2 >>> 24, a3 = c3 >>> 24;
+		int sumA = a0 + a1 + a2 + a3;
+		if( sumA == 0 ) return 0;
+		int r = (((c0>>16)&0xFF)*a0 + ((c1>>16)&0xFF)*a1 + ((c2>>16)&0xFF)*a2 + ((c3>>16)&0xFF)*a3 + sumA/2) / sumA;
+		int g = (((c0>> 8)&0xFF)*a0 + ((c1>> 8)&0xFF)*a1 + ((c2>> 8)&0xFF)*a2 + ((c3>> 8)&0xFF)*a3 + sumA/2) / sumA;
+		int b = (( c0     &0xFF)*a0 + ( c1     &0xFF)*a1 + ( c2     &0xFF)*a2 + ( c3     &0xFF)*a3 + sumA/2) / sumA;
+		return ((sumA + 2) >> 2) << 24 | r << 16 | g << 8 | b;
+	}
+}
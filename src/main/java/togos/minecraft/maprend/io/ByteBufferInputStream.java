@@ -0,0 +1,40 @@
+package togos.minecraft.maprend.io;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the remaining bytes of a ByteBuffer.
+ * Advances the buffer's position as data is read.
+ */
+public class ByteBufferInputStream extends InputStream
+{
+	protected final ByteBuffer buffer;
+	
+	public ByteBufferInputStream( ByteBuffer buffer ) {
+		this.buffer = buffer;
+	}
+	
+	@Override public int read() {
+		return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+	}
+	
+	@Override public int read( byte[] dest, int off, int len ) {
+		if( len == 0 ) return 0;
+		if( !buffer.hasRemaining() ) return -1;
+		len = Math.min(len, buffer.remaining());
+		buffer.get(dest, off, len);
+		return len;
+	}
+	
+	@Override public long skip( long n ) {
+		if( n <= 0 ) return 0;
+		int skipped = (int)Math.min(n, buffer.remaining());
+		buffer.position(buffer.position()+skipped);
+		return skipped;
+	}
+	
+	@Override public int available() {
+		return buffer.remaining();
+	}
+}
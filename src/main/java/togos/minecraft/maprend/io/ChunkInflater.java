@@ -0,0 +1,138 @@
+package togos.minecraft.maprend.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses chunk data in a single pass into a buffer that is reused
+ * from one chunk to the next, along with the Inflaters and input buffer.
+ * 
+ * Each ChunkInflater should only be used by one thread at a time;
+ * forCurrentThread() provides one per thread.
+ */
+public class ChunkInflater
+{
+	private static final ThreadLocal<ChunkInflater> threadInstance = new ThreadLocal<ChunkInflater>() {
+		@Override protected ChunkInflater initialValue() {
+			return new ChunkInflater();
+		}
+	};
+	
+	public static ChunkInflater forCurrentThread() {
+		return threadInstance.get();
+	}
+	
+	private static final int GZIP_MAGIC = 0x8B1F;
+	private static final int GZIP_FHCRC    = 0x02;
+	private static final int GZIP_FEXTRA   = 0x04;
+	private static final int GZIP_FNAME    = 0x08;
+	private static final int GZIP_FCOMMENT = 0x10;
+	
+	/** For VERSION_DEFLATE (zlib-wrapped) chunks */
+	protected final Inflater zlibInflater = new Inflater();
+	/** For the deflate stream inside VERSION_GZIP chunks, whose header we parse ourselves */
+	protected final Inflater rawInflater = new Inflater(true);
+	protected byte[] input = new byte[64*1024];
+	protected byte[] output = new byte[256*1024];
+	protected int outputLength;
+	
+	/** @return the buffer holding the most recently inflated data */
+	public byte[] getBuffer() { return output; }
+	/** @return the length of the most recently inflated data */
+	public int getLength() { return outputLength; }
+	
+	/**
+	 * @return a stream over the most recently inflated data,
+	 *   which is only valid until the next call to inflate
+	 */
+	public DataInputStream getDataInputStream() {
+		return new DataInputStream(new ByteArrayInputStream(output, 0, outputLength));
+	}
+	
+	/**
+	 * @param chunk a chunk as returned by {@link RegionFile#getChunkBuffer(int, int)};
+	 *   a format version byte followed by compressed data
+	 * @return the length of the decompressed data, which is written to getBuffer()
+	 */
+	public int inflate( ByteBuffer chunk ) throws IOException {
+		chunk = chunk.duplicate();
+		int version = chunk.get();
+		
+		byte[] in;
+		int offset, length = chunk.remaining();
+		if( chunk.hasArray() ) {
+			in = chunk.array();
+			offset = chunk.arrayOffset() + chunk.position();
+		} else {
+			// Inflater only accepts arrays, so copy out of e.g. a mapped buffer
+			if( input.length < length ) input = new byte[Math.max(length, input.length*2)];
+			chunk.get(input, 0, length);
+			in = input;
+			offset = 0;
+		}
+		
+		switch( version ) {
+		case RegionFile.VERSION_GZIP:
+			int headerLength = gzipHeaderLength(in, offset, length);
+			return inflate( rawInflater, in, offset+headerLength, length-headerLength );
+		case RegionFile.VERSION_DEFLATE:
+			return inflate( zlibInflater, in, offset, length );
+		default:
+			throw new IOException("Unknown chunk format version "+version);
+		}
+	}
+	
+	protected int inflate( Inflater inflater, byte[] in, int offset, int length ) throws IOException {
+		inflater.reset();
+		inflater.setInput(in, offset, length);
+		int n = 0;
+		try {
+			while( !inflater.finished() ) {
+				if( n == output.length ) {
+					byte[] newOutput = new byte[output.length*2];
+					System.arraycopy(output, 0, newOutput, 0, n);
+					output = newOutput;
+				}
+				int r = inflater.inflate(output, n, output.length-n);
+				if( r == 0 ) {
+					if( inflater.needsInput() ) throw new EOFException("Unexpected end of compressed chunk data");
+					if( inflater.needsDictionary() ) throw new ZipException("Compressed chunk data requires a preset dictionary");
+				}
+				n += r;
+			}
+		} catch( DataFormatException e ) {
+			throw new ZipException(e.getMessage());
+		}
+		return outputLength = n;
+	}
+	
+	protected static int gzipHeaderLength( byte[] in, int offset, int length ) throws IOException {
+		int end = offset+length;
+		if( length < 10 ) throw new EOFException("Truncated GZIP header");
+		if( ((in[offset]&0xFF) | (in[offset+1]&0xFF)<<8) != GZIP_MAGIC ) throw new ZipException("Not in GZIP format");
+		if( in[offset+2] != 8 ) throw new ZipException("Unsupported GZIP compression method");
+		int flags = in[offset+3];
+		int p = offset+10;
+		if( (flags & GZIP_FEXTRA) != 0 ) {
+			if( p+2 > end ) throw new EOFException("Truncated GZIP header");
+			p += 2 + ((in[p]&0xFF) | (in[p+1]&0xFF)<<8);
+		}
+		if( (flags & GZIP_FNAME) != 0 ) {
+			while( p < end && in[p] != 0 ) ++p;
+			++p;
+		}
+		if( (flags & GZIP_FCOMMENT) != 0 ) {
+			while( p < end && in[p] != 0 ) ++p;
+			++p;
+		}
+		if( (flags & GZIP_FHCRC) != 0 ) p += 2;
+		if( p > end ) throw new EOFException("Truncated GZIP header");
+		return p-offset;
+	}
+}
@@ -1,12 +1,20 @@
 package togos.minecraft.maprend.io;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.file.Files;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.bitpedia.util.Base32;
 
@@ -40,50 +48,138 @@ public class ContentStore
 		return new File( dest.getParent()+"/."+dest.getName()+".temp"+System.currentTimeMillis());
 	}
 	
-	protected static void copy( File src, File dest ) throws IOException {
-		File tempDest = tempDest(dest);
-		
-		FileInputStream fis = new FileInputStream(src);
-		FileOutputStream fos = new FileOutputStream(tempDest);
-		byte[] buffer = new byte[65536];
-		int r;
-		while( (r = fis.read(buffer)) > 0 ) {
-			fos.write( buffer, 0, r );
+	protected static void write( byte[] data, File dest ) throws IOException {
+		// May be storing the same data from several threads at once
+		File tempDest = File.createTempFile("."+dest.getName(), ".temp", dest.getParentFile());
+		try {
+			FileOutputStream fos = new FileOutputStream(tempDest);
+			try {
+				fos.write( data );
+			} finally {
+				fos.close();
+			}
+			
+			tempDest.setReadOnly();
+			tempDest.renameTo(dest);
+		} finally {
+			// Still there if the rename failed, e.g. because some
+			// platforms won't replace a copy another thread stored first
+			tempDest.delete();
 		}
-		fis.close();
-		fos.close();
-		
-		tempDest.setLastModified(src.lastModified());
-		tempDest.setReadOnly();
-		tempDest.renameTo(dest);
 	}
 	
-	protected static void write( byte[] data, File dest ) throws IOException {
-		File tempDest = tempDest(dest);
-		FileOutputStream fos = new FileOutputStream(tempDest);
-		fos.write( data );
-		fos.close();
+	//// URN cache ////
+	
+	/**
+	 * URN of a file as of when it had the given size and modification time
+	 */
+	static class CachedUrn {
+		public final long length, modified;
+		public final String urn;
 		
-		tempDest.setReadOnly();
-		tempDest.renameTo(dest);
+		public CachedUrn( long length, long modified, String urn ) {
+			this.length = length;
+			this.modified = modified;
+			this.urn = urn;
+		}
+	}
+	
+	/** URNs of previously stored files, by canonical path */
+	protected Map<String,CachedUrn> urnCache;
+	protected volatile boolean urnCacheModified;
+	
+	protected File urnCacheFile() {
+		return new File(rootStoreDir, ".file-urns");
+	}
+	
+	protected synchronized Map<String,CachedUrn> getUrnCache() {
+		if( urnCache == null ) urnCache = loadUrnCache( urnCacheFile() );
+		return urnCache;
+	}
+	
+	protected static Map<String,CachedUrn> loadUrnCache( File f ) {
+		Map<String,CachedUrn> cache = new ConcurrentHashMap<String,CachedUrn>();
+		if( !f.exists() ) return cache;
+		try {
+			BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+			try {
+				String line;
+				while( (line = r.readLine()) != null ) {
+					// Path goes last since it may contain spaces
+					String[] parts = line.split(" ", 4);
+					if( parts.length != 4 ) continue;
+					cache.put( parts[3], new CachedUrn(Long.parseLong(parts[1]), Long.parseLong(parts[0]), parts[2]) );
+				}
+			} finally {
+				r.close();
+			}
+		} catch( IOException e ) {
+			System.err.println("Error reading URN cache "+f+"; ignoring it: "+e.getMessage());
+			cache.clear();
+		} catch( NumberFormatException e ) {
+			System.err.println("Error reading URN cache "+f+"; ignoring it: "+e.getMessage());
+			cache.clear();
+		}
+		return cache;
+	}
+	
+	/**
+	 * Save URNs of files stored by this ContentStore so that they
+	 * don't need to be re-hashed next time unless they've changed.
+	 * Entries for files that no longer exist are dropped.
+	 */
+	public synchronized void saveUrnCache() throws IOException {
+		if( urnCache == null || !urnCacheModified ) return;
+		for( Iterator<String> i = urnCache.keySet().iterator(); i.hasNext(); ) {
+			if( !new File(i.next()).exists() ) i.remove();
+		}
+		File f = urnCacheFile();
+		mkParentDirs(f);
+		File temp = tempDest(f);
+		Writer w = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+		try {
+			for( Map.Entry<String,CachedUrn> e : urnCache.entrySet() ) {
+				CachedUrn c = e.getValue();
+				w.write( c.modified+" "+c.length+" "+c.urn+" "+e.getKey()+"\n" );
+			}
+		} finally {
+			w.close();
+		}
+		f.delete();
+		if( !temp.renameTo(f) ) throw new IOException("Failed to rename "+temp+" to "+f);
+		urnCacheModified = false;
 	}
 	
+	/**
+	 * Store a file's content.  It's read into memory in one go, so that
+	 * what's stored is what was hashed even if the file's being rewritten,
+	 * and is only written to the store if the store doesn't already have it,
+	 * as when a tile is re-rendered the same as before.
+	 * Files stored this way are tiles, so are never very big.
+	 */
+	protected String hashAndCopy( File f ) throws IOException {
+		return store( Files.readAllBytes(f.toPath()) );
+	}
+	
+	/**
+	 * Store a file, skipping hashing if it has the same size and modification
+	 * time as when it was last stored and the stored copy still exists.
+	 * A change that keeps the size the same and is made within the
+	 * filesystem's timestamp granularity of the previous one will be missed.
+	 */
 	public String store( File f ) throws IOException {
-		MessageDigest md = getDigestor();
-		FileInputStream fis = new FileInputStream(f);
-		byte[] buffer = new byte[65536];
-		int r;
-		while( (r = fis.read(buffer)) > 0 ) {
-	        md.update(buffer, 0, r);			
+		String path = f.getCanonicalPath();
+		long length = f.length(), modified = f.lastModified();
+		CachedUrn cached = getUrnCache().get(path);
+		if( cached != null && cached.length == length && cached.modified == modified && storeFileForUrn(cached.urn).exists() ) {
+			return cached.urn;
 		}
-		fis.close();
 		
-		String urn = "urn:sha1:"+Base32.encode(md.digest());
-		File dest = storeFileForUrn(urn);
-		if( !dest.exists() ) {
-			mkParentDirs(dest);
-			copy(f, dest);
-		}
+		String urn = hashAndCopy(f);
+		// If the file changed while being read, the old size and time
+		// recorded here will cause it to be re-hashed next time
+		getUrnCache().put( path, new CachedUrn(length, modified, urn) );
+		urnCacheModified = true;
 		return urn;
 	}
 	
@@ -0,0 +1,83 @@
+package togos.minecraft.maprend.io;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the deflate stream stored in a PNG's IDAT chunks,
+ * i.e. the image data without the zlib header, so that offsets
+ * match those reported by PNGWriter.Encoder.getDeflatedLength.
+ */
+public class PNGDataInputStream extends InputStream
+{
+	protected final DataInputStream in;
+	/** Bytes left in the current IDAT chunk */
+	protected int remaining = 0;
+	/** True when the current chunk's CRC has yet to be skipped */
+	protected boolean crcPending = false;
+	protected boolean ended = false;
+	
+	public PNGDataInputStream( InputStream in ) throws IOException {
+		this.in = new DataInputStream(in);
+		byte[] signature = new byte[8];
+		this.in.readFully(signature);
+		for( int i=0; i<8; ++i ) {
+			if( signature[i] != PNGWriter.SIGNATURE[i] ) throw new IOException("Not a PNG file");
+		}
+		// Skip the zlib header
+		if( read() == -1 || read() == -1 ) throw new EOFException("PNG has no image data");
+	}
+	
+	/** @return false if there's no more image data */
+	protected boolean nextChunk() throws IOException {
+		while( remaining == 0 && !ended ) {
+			if( crcPending ) {
+				in.readInt();
+				crcPending = false;
+			}
+			int length = in.readInt();
+			int type = in.readInt();
+			if( type == 0x49444154 ) { // "IDAT"
+				remaining = length;
+				crcPending = true;
+			} else if( type == 0x49454E44 ) { // "IEND"
+				ended = true;
+			} else {
+				skipFully( length + 4 );
+			}
+		}
+		return remaining > 0;
+	}
+	
+	protected void skipFully( long n ) throws IOException {
+		while( n > 0 ) {
+			long skipped = in.skip(n);
+			if( skipped <= 0 ) {
+				if( in.read() == -1 ) throw new EOFException();
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+	
+	@Override public int read() throws IOException {
+		if( !nextChunk() ) return -1;
+		--remaining;
+		return in.read();
+	}
+	
+	@Override public int read( byte[] buf, int off, int len ) throws IOException {
+		if( len == 0 ) return 0;
+		if( !nextChunk() ) return -1;
+		int n = in.read( buf, off, Math.min(len, remaining) );
+		if( n == -1 ) throw new EOFException("PNG ended in the middle of a chunk");
+		remaining -= n;
+		return n;
+	}
+	
+	@Override public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,545 @@
+package togos.minecraft.maprend.io;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes 8-bit RGBA PNGs straight from arrays of ARGB pixels
+ * (as used by BufferedImage.TYPE_INT_ARGB), without going through ImageIO.
+ *
+ * Rows can be written a band at a time using an Encoder, so images
+ * too large to hold in memory can be written.  When stripThreads > 1,
+ * the rows given to each Encoder.writeRows call are split into strips
+ * that are filtered and deflated in parallel, each strip ending on a
+ * byte boundary with a sync flush so that they can simply be concatenated.
+ *
+ * Each writeRows call's output is a self-contained run of deflate blocks,
+ * so when filtering doesn't refer to the row above, it can be saved and
+ * later passed to Encoder.writeDeflatedRows to reproduce those rows in
+ * another image without re-encoding them.
+ *
+ * A PNGWriter holds no per-image state, so one may be shared between threads.
+ */
+public class PNGWriter
+{
+	public static final int FILTER_NONE    = 0;
+	public static final int FILTER_SUB     = 1;
+	public static final int FILTER_UP      = 2;
+	public static final int FILTER_AVERAGE = 3;
+	public static final int FILTER_PAETH   = 4;
+	/** Pick whichever filter gives the smallest sum of absolute differences for each row */
+	public static final int FILTER_ADAPTIVE = -1;
+
+	protected static final String[] FILTER_NAMES = { "none", "sub", "up", "average", "paeth" };
+
+	/**
+	 * @return the filter constant named by name, e.g. "sub" or "adaptive"
+	 * @throws IllegalArgumentException if name isn't recognized
+	 */
+	public static int parseFilter( String name ) {
+		if( "adaptive".equals(name) ) return FILTER_ADAPTIVE;
+		for( int i=0; i<FILTER_NAMES.length; ++i ) {
+			if( FILTER_NAMES[i].equals(name) ) return i;
+		}
+		throw new IllegalArgumentException("Unrecognized PNG filter: '"+name+"'");
+	}
+
+	private static final ThreadLocal<Deflater> threadDeflater = new ThreadLocal<Deflater>() {
+		@Override protected Deflater initialValue() {
+			// Raw deflate; the zlib header and checksum are written by the Encoder
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+	};
+
+	/**
+	 * Deflates strips for all PNGWriters.  Its threads are kept around
+	 * for a while after finishing a strip, along with their Deflaters,
+	 * so that writing an image band by band doesn't start new ones for each band.
+	 */
+	private static final ExecutorService stripExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+		int count = 0;
+		public synchronized Thread newThread( Runnable r ) {
+			Thread t = new Thread(r, "PNG strip deflater "+(++count));
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	protected static final byte[] SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+	protected static final int IDAT_SIZE = 64*1024;
+	/** Don't bother splitting into strips smaller than this many rows */
+	protected static final int MIN_STRIP_ROWS = 64;
+
+	public final int compressionLevel;
+	public final int filter;
+	public final int stripThreads;
+
+	/**
+	 * @param compressionLevel deflate level, 0 (none) to 9 (smallest)
+	 * @param filter one of the FILTER_ constants
+	 * @param stripThreads maximum number of threads to deflate strips of rows with
+	 */
+	public PNGWriter( int compressionLevel, int filter, int stripThreads ) {
+		if( compressionLevel < 0 || compressionLevel > 9 ) {
+			throw new IllegalArgumentException("PNG compression level must be between 0 and 9; given "+compressionLevel);
+		}
+		if( filter != FILTER_ADAPTIVE && (filter < FILTER_NONE || filter > FILTER_PAETH) ) {
+			throw new IllegalArgumentException("Invalid PNG filter: "+filter);
+		}
+		if( stripThreads < 1 ) {
+			throw new IllegalArgumentException("PNG strip thread count must be at least 1; given "+stripThreads);
+		}
+		this.compressionLevel = compressionLevel;
+		this.filter = filter;
+		this.stripThreads = stripThreads;
+	}
+
+	/**
+	 * Deflate level 4, the same as ImageIO's PNG writer, but unfiltered,
+	 * where ImageIO picks a filter for each row as FILTER_ADAPTIVE does.
+	 * Map tiles, with their runs of identical pixels, tend to compress
+	 * as well or better unfiltered, and it saves trying every filter on every row.
+	 */
+	public PNGWriter() {
+		this( 4, FILTER_NONE, 1 );
+	}
+
+	public PNGWriter withStripThreads( int stripThreads ) {
+		return new PNGWriter( compressionLevel, filter, stripThreads );
+	}
+
+	/**
+	 * Write an image to os and close it
+	 */
+	public void write( int[] argb, int width, int height, OutputStream os ) throws IOException {
+		Encoder enc = open( os, width, height );
+		try {
+			enc.writeRows( argb, 0, height );
+		} finally {
+			enc.close();
+		}
+	}
+
+	public void write( int[] argb, int width, int height, File f ) throws IOException {
+		write( argb, width, height, new FileOutputStream(f) );
+	}
+
+	public void write( BufferedImage img, OutputStream os ) throws IOException {
+		write( getARGB(img), img.getWidth(), img.getHeight(), os );
+	}
+
+	public void write( BufferedImage img, File f ) throws IOException {
+		write( img, new FileOutputStream(f) );
+	}
+
+	/**
+	 * @return the ARGB pixels of img; its own pixel array if
+	 *   it is a plain TYPE_INT_ARGB image, otherwise a copy
+	 */
+	protected static int[] getARGB( BufferedImage img ) {
+		int width = img.getWidth(), height = img.getHeight();
+		if(
+			img.getType() == BufferedImage.TYPE_INT_ARGB &&
+			img.getRaster().getDataBuffer() instanceof DataBufferInt &&
+			img.getRaster().getSampleModel() instanceof SinglePixelPackedSampleModel &&
+			((SinglePixelPackedSampleModel)img.getRaster().getSampleModel()).getScanlineStride() == width &&
+			img.getRaster().getDataBuffer().getOffset() == 0 &&
+			img.getRaster().getSampleModelTranslateX() == 0 &&
+			img.getRaster().getSampleModelTranslateY() == 0
+		) {
+			int[] data = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+			if( data.length == width*height ) return data;
+		}
+		return img.getRGB( 0, 0, width, height, null, 0, width );
+	}
+
+	/**
+	 * Start writing an image to os, which will be closed when the Encoder is.
+	 */
+	public Encoder open( OutputStream os, int width, int height ) throws IOException {
+		return new Encoder( os, width, height );
+	}
+
+	public class Encoder implements Closeable
+	{
+		protected final DataOutputStream out;
+		public final int width, height;
+		protected final int rowLength;
+		protected final byte[] idat = new byte[IDAT_SIZE];
+		protected int idatLength = 0;
+		protected final CRC32 crc = new CRC32();
+		protected int rowsWritten = 0;
+		protected long adler = 1;
+		/** Number of bytes of deflate stream written so far, not counting the zlib header */
+		protected long deflatedLength = 0;
+		/** Last row written, for filters that refer to the row above */
+		protected final int[] lastRow;
+		/** Used when not deflating in strips */
+		protected final Strip strip;
+		/** Used when deflating in strips; created as needed and reused for each writeRows call */
+		protected final Strip[] strips;
+
+		protected Encoder( OutputStream os, int width, int height ) throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(os));
+			this.width = width;
+			this.height = height;
+			this.rowLength = 1 + width*4;
+			this.lastRow = new int[width];
+			this.strip = stripThreads > 1 ? null : new Strip(width);
+			this.strips = new Strip[stripThreads];
+
+			out.write(SIGNATURE);
+			ByteArrayOutputStream ihdr = new ByteArrayOutputStream(13);
+			DataOutputStream ihdrOut = new DataOutputStream(ihdr);
+			ihdrOut.writeInt(width);
+			ihdrOut.writeInt(height);
+			ihdrOut.writeByte(8); // Bit depth
+			ihdrOut.writeByte(6); // Color type: RGBA
+			ihdrOut.writeByte(0); // Compression: deflate
+			ihdrOut.writeByte(0); // Filter method: adaptive
+			ihdrOut.writeByte(0); // Interlace: none
+			writeChunk("IHDR", ihdr.toByteArray(), 0, ihdr.size());
+
+			int fLevel = compressionLevel < 2 ? 0 : compressionLevel < 6 ? 1 : compressionLevel == 6 ? 2 : 3;
+			int cmf = 0x78, flg = fLevel << 6;
+			flg += 31 - ((cmf << 8) + flg) % 31;
+			idat[idatLength++] = (byte)cmf;
+			idat[idatLength++] = (byte)flg;
+		}
+
+		protected void writeChunk( String type, byte[] data, int offset, int length ) throws IOException {
+			byte[] typeBytes = type.getBytes("ASCII");
+			crc.reset();
+			crc.update(typeBytes);
+			crc.update(data, offset, length);
+			out.writeInt(length);
+			out.write(typeBytes);
+			out.write(data, offset, length);
+			out.writeInt((int)crc.getValue());
+		}
+
+		protected void writeCompressed( byte[] data, int offset, int length ) throws IOException {
+			deflatedLength += length;
+			while( length > 0 ) {
+				int n = Math.min(length, IDAT_SIZE - idatLength);
+				System.arraycopy(data, offset, idat, idatLength, n);
+				idatLength += n;
+				offset += n;
+				length -= n;
+				if( idatLength == IDAT_SIZE ) flushIdat();
+			}
+		}
+
+		protected void flushIdat() throws IOException {
+			if( idatLength == 0 ) return;
+			writeChunk("IDAT", idat, 0, idatLength);
+			idatLength = 0;
+		}
+
+		/**
+		 * @return the number of bytes of deflated data written so far;
+		 *   the difference before and after a writeRows call gives
+		 *   the length of the data written for those rows
+		 */
+		public long getDeflatedLength() {
+			return deflatedLength;
+		}
+
+		/**
+		 * @return true if the filter being used doesn't refer to
+		 *   the row above, making it possible to use writeDeflatedRows
+		 */
+		public boolean rowsAreIndependent() {
+			return filter == FILTER_NONE || filter == FILTER_SUB;
+		}
+
+		protected void checkRowCount( int rowCount ) {
+			if( rowsWritten + rowCount > height ) {
+				throw new IllegalStateException("Can't write "+rowCount+" rows; only "+(height-rowsWritten)+" remain");
+			}
+		}
+
+		/**
+		 * Write rowCount rows of pixels, starting at argb[offset],
+		 * each row being width pixels long and immediately following the last.
+		 *
+		 * @return the Adler-32 checksum of the filtered rows
+		 */
+		public long writeRows( int[] argb, int offset, int rowCount ) throws IOException {
+			checkRowCount( rowCount );
+			if( rowCount == 0 ) return 1;
+
+			long rowsAdler;
+			if( strip != null ) {
+				strip.setRows( argb, offset, rowCount, rowsWritten == 0 ? null : lastRow, 0 );
+				strip.run();
+				writeCompressed( strip.output.buf(), 0, strip.output.size() );
+				rowsAdler = strip.adler.getValue();
+			} else {
+				rowsAdler = writeStrips( argb, offset, rowCount );
+			}
+			adler = combineAdler32( adler, rowsAdler, (long)rowCount*rowLength );
+
+			System.arraycopy( argb, offset+(rowCount-1)*width, lastRow, 0, width );
+			rowsWritten += rowCount;
+			return rowsAdler;
+		}
+
+		/**
+		 * Write rows using data previously written by writeRows for another
+		 * image of the same width, compression level, and filter.
+		 *
+		 * @param rowsAdler the checksum that writeRows returned for those rows
+		 */
+		public void writeDeflatedRows( byte[] data, int offset, int length, long rowsAdler, int rowCount ) throws IOException {
+			if( !rowsAreIndependent() ) {
+				throw new IllegalStateException("Can't copy deflated rows when using a filter that refers to previous rows");
+			}
+			checkRowCount( rowCount );
+			writeCompressed( data, offset, length );
+			adler = combineAdler32( adler, rowsAdler, (long)rowCount*rowLength );
+			rowsWritten += rowCount;
+		}
+
+		/**
+		 * @return the Adler-32 checksum of the filtered rows
+		 */
+		protected long writeStrips( int[] argb, int offset, int rowCount ) throws IOException {
+			int stripCount = Math.max(1, Math.min(stripThreads, rowCount / MIN_STRIP_ROWS));
+			Future<?>[] futures = new Future<?>[stripCount];
+			for( int i=0, row=0; i<stripCount; ++i ) {
+				int stripRows = (rowCount - row) / (stripCount - i);
+				if( strips[i] == null ) strips[i] = new Strip(width);
+				if( row == 0 ) {
+					strips[i].setRows( argb, offset, stripRows, rowsWritten == 0 ? null : lastRow, 0 );
+				} else {
+					strips[i].setRows( argb, offset+row*width, stripRows, argb, offset+(row-1)*width );
+				}
+				row += stripRows;
+				futures[i] = stripExecutor.submit(strips[i]);
+			}
+			long rowsAdler = 1;
+			try {
+				for( int i=0; i<stripCount; ++i ) {
+					futures[i].get();
+					if( strips[i].error != null ) {
+						throw new IOException("Error deflating PNG strip", strips[i].error);
+					}
+					writeCompressed( strips[i].output.buf(), 0, strips[i].output.size() );
+					rowsAdler = combineAdler32( rowsAdler, strips[i].adler.getValue(), (long)strips[i].rowCount*rowLength );
+				}
+			} catch( InterruptedException e ) {
+				for( Future<?> f : futures ) f.cancel(true);
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while deflating PNG strips");
+			} catch( ExecutionException e ) {
+				throw new IOException("Error deflating PNG strip", e.getCause());
+			}
+			return rowsAdler;
+		}
+
+		/**
+		 * Finish the image and close the underlying stream.
+		 * If fewer than height rows have been written, the image will be incomplete.
+		 */
+		@Override public void close() throws IOException {
+			try {
+				if( rowsWritten < height ) {
+					throw new IOException("Only "+rowsWritten+" of "+height+" rows written");
+				}
+				// Every strip ends with a sync flush, so the deflate stream
+				// just needs an empty final block (fixed Huffman, BFINAL set)
+				// and the zlib checksum.
+				byte[] trailer = {
+					0x03, 0x00,
+					(byte)(adler >> 24), (byte)(adler >> 16), (byte)(adler >> 8), (byte)adler
+				};
+				writeCompressed( trailer, 0, trailer.length );
+				flushIdat();
+				writeChunk("IEND", new byte[0], 0, 0);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the Adler-32 checksum of two sequences concatenated,
+	 *   given the checksum of each and the length of the second
+	 *   (same as zlib's adler32_combine)
+	 */
+	protected static long combineAdler32( long adler1, long adler2, long len2 ) {
+		final long BASE = 65521;
+		long rem = len2 % BASE;
+		long sum1 = adler1 & 0xFFFF;
+		long sum2 = (rem * sum1) % BASE;
+		sum1 += (adler2 & 0xFFFF) + BASE - 1;
+		sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + BASE - rem;
+		if( sum1 >= BASE ) sum1 -= BASE;
+		if( sum1 >= BASE ) sum1 -= BASE;
+		if( sum2 >= (BASE << 1) ) sum2 -= (BASE << 1);
+		if( sum2 >= BASE ) sum2 -= BASE;
+		return sum1 | (sum2 << 16);
+	}
+
+	static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+		public byte[] buf() { return buf; }
+	}
+
+	/**
+	 * Filters and deflates a run of rows, ending with a sync flush,
+	 * using the Deflater belonging to whatever thread runs it.
+	 */
+	protected class Strip implements Runnable
+	{
+		protected final int width;
+		protected final byte[] raw, prevRaw, filtered, candidate;
+		protected final byte[] deflateBuffer = new byte[32*1024];
+		protected final Adler32 adler = new Adler32();
+		protected final ExposedByteArrayOutputStream output = new ExposedByteArrayOutputStream();
+
+		protected int[] argb;
+		protected int offset, rowCount;
+		protected int[] prevArgb;
+		protected int prevOffset;
+		protected Throwable error;
+
+		public Strip( int width ) {
+			this.width = width;
+			this.raw = new byte[width*4];
+			this.prevRaw = new byte[width*4];
+			this.filtered = new byte[1+width*4];
+			this.candidate = new byte[1+width*4];
+		}
+
+		/**
+		 * @param prevArgb array containing the row above the first one, or null if this is the top of the image
+		 */
+		public void setRows( int[] argb, int offset, int rowCount, int[] prevArgb, int prevOffset ) {
+			this.argb = argb;
+			this.offset = offset;
+			this.rowCount = rowCount;
+			this.prevArgb = prevArgb;
+			this.prevOffset = prevOffset;
+		}
+
+		@Override public void run() {
+			try {
+				error = null;
+				Deflater deflater = threadDeflater.get();
+				deflater.reset();
+				deflater.setLevel(compressionLevel);
+				output.reset();
+				adler.reset();
+
+				if( prevArgb == null ) {
+					for( int i=0; i<prevRaw.length; ++i ) prevRaw[i] = 0;
+				} else {
+					toRGBA( prevArgb, prevOffset, prevRaw );
+				}
+				for( int r=0; r<rowCount; ++r ) {
+					toRGBA( argb, offset+r*width, raw );
+					filterRow();
+					adler.update( filtered );
+					deflater.setInput( filtered );
+					while( !deflater.needsInput() ) {
+						int n = deflater.deflate( deflateBuffer );
+						output.write( deflateBuffer, 0, n );
+					}
+					System.arraycopy( raw, 0, prevRaw, 0, raw.length );
+				}
+				int n;
+				do {
+					n = deflater.deflate( deflateBuffer, 0, deflateBuffer.length, Deflater.SYNC_FLUSH );
+					output.write( deflateBuffer, 0, n );
+				} while( n == deflateBuffer.length );
+			} catch( RuntimeException e ) {
+				error = e;
+			}
+		}
+
+		protected void toRGBA( int[] argb, int offset, byte[] dest ) {
+			for( int x=0, i=0; x<width; ++x ) {
+				int c = argb[offset+x];
+				dest[i++] = (byte)(c >> 16);
+				dest[i++] = (byte)(c >> 8);
+				dest[i++] = (byte)c;
+				dest[i++] = (byte)(c >> 24);
+			}
+		}
+
+		protected void filterRow() {
+			if( filter != FILTER_ADAPTIVE ) {
+				applyFilter( filter, filtered );
+				return;
+			}
+			long bestScore = Long.MAX_VALUE;
+			for( int f=FILTER_NONE; f<=FILTER_PAETH; ++f ) {
+				applyFilter( f, candidate );
+				long score = 0;
+				for( int i=1; i<candidate.length; ++i ) score += Math.abs(candidate[i]);
+				if( score < bestScore ) {
+					bestScore = score;
+					System.arraycopy( candidate, 0, filtered, 0, candidate.length );
+				}
+			}
+		}
+
+		protected void applyFilter( int filterType, byte[] dest ) {
+			final int bpp = 4;
+			final int len = raw.length;
+			dest[0] = (byte)filterType;
+			switch( filterType ) {
+			case FILTER_NONE:
+				System.arraycopy( raw, 0, dest, 1, len );
+				break;
+			case FILTER_SUB:
+				for( int i=0; i<bpp; ++i ) dest[1+i] = raw[i];
+				for( int i=bpp; i<len; ++i ) dest[1+i] = (byte)(raw[i] - raw[i-bpp]);
+				break;
+			case FILTER_UP:
+				for( int i=0; i<len; ++i ) dest[1+i] = (byte)(raw[i] - prevRaw[i]);
+				break;
+			case FILTER_AVERAGE:
+				for( int i=0; i<bpp; ++i ) dest[1+i] = (byte)(raw[i] - ((prevRaw[i]&0xFF) >> 1));
+				for( int i=bpp; i<len; ++i ) {
+					dest[1+i] = (byte)(raw[i] - (((raw[i-bpp]&0xFF) + (prevRaw[i]&0xFF)) >> 1));
+				}
+				break;
+			case FILTER_PAETH:
+				for( int i=0; i<bpp; ++i ) dest[1+i] = (byte)(raw[i] - prevRaw[i]);
+				for( int i=bpp; i<len; ++i ) {
+					dest[1+i] = (byte)(raw[i] - paeth( raw[i-bpp]&0xFF, prevRaw[i]&0xFF, prevRaw[i-bpp]&0xFF ));
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Invalid PNG filter type: "+filterType);
+			}
+		}
+	}
+
+	protected static int paeth( int a, int b, int c ) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+		if( pa <= pb && pa <= pc ) return a;
+		if( pb <= pc ) return b;
+		return c;
+	}
+}
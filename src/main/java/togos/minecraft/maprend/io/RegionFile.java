@@ -3,6 +3,9 @@
  *  - Removed use of templates, auto[un]boxing, and foreach loops
  *    to make source compatible with Java 1.4  
  *  - Added ability to write chunks in both formats (gzip and deflate)
+ *  - Added memory-mapped read-only mode for lock-free concurrent chunk reads
+ *  - Added writable mode, since plain files are otherwise opened read-only
+ *  - Added Flight Recorder events for opening files and decompressing chunks
  */
 
 /*
@@ -64,9 +67,14 @@
 package togos.minecraft.maprend.io;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.zip.*;
 
+import togos.minecraft.maprend.jfr.RenderEvents;
+
 public class RegionFile
 {
     public static final int VERSION_GZIP = 1;
@@ -80,13 +88,40 @@ public class RegionFile
 
     private final File fileName;
     private RandomAccessFile file;
+    /* whole-file mapping when opened in memory-mapped mode; null otherwise */
+    private final ByteBuffer mappedData;
     private final int offsets[];
     private final int chunkTimestamps[];
     private ArrayList<Boolean> sectorFree;
     private int sizeDelta;
     private long lastModified = 0;
+    private volatile int loadChecksum;
 
     public RegionFile(File path) {
+        this(path, false);
+    }
+
+    /**
+     * Open a region file that chunks can be written to,
+     * creating it if it doesn't exist.
+     */
+    public static RegionFile forWriting(File path) {
+        return new RegionFile(path, false, true);
+    }
+
+    /**
+     * @param memoryMapped if true, the file is opened read-only and mapped
+     *   into memory in its entirety.  Chunks can then be read concurrently
+     *   by any number of threads without locking or seeking, and
+     *   {@link #getChunkBuffer(int, int)} returns slices of the mapping
+     *   rather than copies.  Writing to a mapped region file is not supported.
+     */
+    public RegionFile(File path, boolean memoryMapped) {
+        this(path, memoryMapped, false);
+    }
+
+    private RegionFile(File path, boolean memoryMapped, boolean writable) {
+        Object openEvent = RenderEvents.begin(RenderEvents.REGION_OPEN);
         offsets = new int[SECTOR_INTS];
         chunkTimestamps = new int[SECTOR_INTS];
 
@@ -95,12 +130,19 @@ public class RegionFile
 
         sizeDelta = 0;
 
+        if (memoryMapped) {
+            mappedData = map(path);
+            RenderEvents.endRegionOpen(openEvent, path, mappedData.capacity(), true);
+            return;
+        }
+        mappedData = null;
+
         try {
             if (path.exists()) {
                 lastModified = path.lastModified();
             }
 
-            file = new RandomAccessFile(path, "r");
+            file = new RandomAccessFile(path, writable ? "rw" : "r");
 
             if (file.length() < SECTOR_BYTES) {
                 /* we need to write the chunk offset table */
@@ -151,6 +193,90 @@ public class RegionFile
         } catch (IOException e) {
             e.printStackTrace();
         }
+        RenderEvents.endRegionOpen(openEvent, path, sectorFree == null ? 0 : (long) sectorFree.size() * SECTOR_BYTES, false);
+    }
+
+    /*
+     * maps the whole file and loads the offset and timestamp tables from the
+     * mapping; a missing or truncated file is treated as having no chunks
+     */
+    private ByteBuffer map(File path) {
+        ByteBuffer data = ByteBuffer.allocate(0);
+        try {
+            if (path.exists()) {
+                lastModified = path.lastModified();
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(path, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                // The mapping remains valid after the channel is closed
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        int nSectors = (data.capacity() + SECTOR_BYTES - 1) / SECTOR_BYTES;
+        sectorFree = new ArrayList<Boolean>(nSectors);
+        for (int i = 0; i < nSectors; ++i) {
+            sectorFree.add(i < 2 ? Boolean.FALSE : Boolean.TRUE);
+        }
+        for (int i = 0; i < SECTOR_INTS; ++i) {
+            if (data.capacity() >= (i + 1) * 4) {
+                offsets[i] = data.getInt(i * 4);
+            }
+            if (data.capacity() >= SECTOR_BYTES + (i + 1) * 4) {
+                chunkTimestamps[i] = data.getInt(SECTOR_BYTES + i * 4);
+            }
+        }
+        return data;
+    }
+
+    /*
+     * reads the whole of a memory-mapped file into memory now, so that
+     * reading chunks later doesn't wait on the disk; does nothing otherwise
+     */
+    public void load() {
+        if (!(mappedData instanceof MappedByteBuffer)) return;
+        Object readEvent = RenderEvents.begin(RenderEvents.REGION_READ);
+        ((MappedByteBuffer) mappedData).load();
+        RenderEvents.endRegionRead(readEvent, fileName, mappedData.capacity());
+    }
+
+    /*
+     * reads the sectors of only the chunks whose flags (indexed by x+z*32)
+     * are set into memory now, leaving the rest of the mapping to be paged
+     * in if and when it's used; the offset and timestamp tables were already
+     * read when the file was opened.  Returns the number of bytes read,
+     * or 0 if the file isn't memory-mapped.
+     */
+    public long load(boolean[] chunkMask) {
+        if (!(mappedData instanceof MappedByteBuffer)) return 0;
+        Object readEvent = RenderEvents.begin(RenderEvents.REGION_READ);
+        long bytes = 0;
+        int sum = 0;
+        for (int i = 0; i < SECTOR_INTS; ++i) {
+            if (!chunkMask[i] || offsets[i] == 0) continue;
+            int start = (offsets[i] >> 8) * SECTOR_BYTES;
+            int end = Math.min(mappedData.capacity(), start + (offsets[i] & 0xFF) * SECTOR_BYTES);
+            // Touch a byte of each page to fault it in
+            for (int pos = start; pos < end; pos += SECTOR_BYTES) {
+                sum += mappedData.get(pos);
+                bytes += SECTOR_BYTES;
+            }
+        }
+        // So that the reads above can't be optimized away
+        loadChecksum = sum;
+        RenderEvents.endRegionRead(readEvent, fileName, bytes);
+        return bytes;
+    }
+
+    /* whether this region file was opened in memory-mapped, read-only mode */
+    public boolean isMemoryMapped() {
+        return mappedData != null;
     }
     
     public File getFile() {
@@ -194,52 +320,114 @@ public class RegionFile
      * gets an (uncompressed) stream representing the chunk data returns null if
      * the chunk is not found or an error occurs
      */
-    public synchronized DataInputStream getChunkDataInputStream(int x, int z) {
+    public DataInputStream getChunkDataInputStream(int x, int z) {
+        ByteBuffer chunk = getChunkBuffer(x, z);
+        if (chunk == null) return null;
+
+        try {
+            byte version = chunk.get();
+            if (version == VERSION_GZIP) {
+                DataInputStream ret = new DataInputStream(new GZIPInputStream(new ByteBufferInputStream(chunk)));
+                // debug("READ", x, z, " = found");
+                return ret;
+            } else if (version == VERSION_DEFLATE) {
+                DataInputStream ret = new DataInputStream(new InflaterInputStream(new ByteBufferInputStream(chunk)));
+                // debug("READ", x, z, " = found");
+                return ret;
+            }
+
+            debugln("READ", x, z, "unknown version " + version);
+            return null;
+        } catch (IOException e) {
+            debugln("READ", x, z, "exception");
+            return null;
+        }
+    }
+
+    /**
+     * Like getChunkDataInputStream(x, z), but decompresses the whole chunk
+     * up front using the given inflater and its reusable buffers.  The
+     * returned stream is only valid until the inflater is next used.
+     */
+    public DataInputStream getChunkDataInputStream(int x, int z, ChunkInflater inflater) {
+        Object decompressEvent = RenderEvents.begin(RenderEvents.CHUNK_DECOMPRESS);
+        ByteBuffer chunk = getChunkBuffer(x, z);
+        if (chunk == null) return null;
+
+        try {
+            int length = inflater.inflate(chunk);
+            RenderEvents.endChunkDecompress(decompressEvent, fileName, x, z, chunk.remaining(), length);
+            return inflater.getDataInputStream();
+        } catch (IOException e) {
+            debugln("READ", x, z, "exception");
+            return null;
+        }
+    }
+
+    /**
+     * Returns the raw stored data for a chunk, or null if the chunk is not
+     * found or an error occurs.  The first byte of the returned buffer is
+     * the chunk's format version ({@link #VERSION_GZIP} or
+     * {@link #VERSION_DEFLATE}) and the remainder is the compressed chunk data.
+     * 
+     * In memory-mapped mode this is a read-only slice of the mapping, and
+     * this method may be called from any number of threads at once.
+     * Otherwise the data is copied out of the file under a lock.
+     */
+    public ByteBuffer getChunkBuffer(int x, int z) {
         if (outOfBounds(x, z)) {
             debugln("READ", x, z, "out of bounds");
             return null;
         }
 
-        try {
-            int offset = getOffset(x, z);
-            if (offset == 0) {
-                // debugln("READ", x, z, "miss");
-                return null;
-            }
+        int offset = getOffset(x, z);
+        if (offset == 0) {
+            // debugln("READ", x, z, "miss");
+            return null;
+        }
 
-            int sectorNumber = offset >> 8;
-            int numSectors = offset & 0xFF;
+        int sectorNumber = offset >> 8;
+        int numSectors = offset & 0xFF;
 
-            if (sectorNumber + numSectors > sectorFree.size()) {
-                debugln("READ", x, z, "invalid sector");
-                return null;
-            }
+        if (sectorNumber + numSectors > sectorFree.size()) {
+            debugln("READ", x, z, "invalid sector");
+            return null;
+        }
+
+        if (mappedData == null) return readChunkBuffer(x, z, sectorNumber, numSectors);
+
+        int start = sectorNumber * SECTOR_BYTES;
+        if (start + 4 > mappedData.capacity()) {
+            debugln("READ", x, z, "truncated file");
+            return null;
+        }
+        int length = mappedData.getInt(start);
 
+        if (length > SECTOR_BYTES * numSectors || length < 1 || start + 4 + length > mappedData.capacity()) {
+            debugln("READ", x, z, "invalid length: " + length + " > 4096 * " + numSectors);
+            return null;
+        }
+
+        // duplicate() so that concurrent callers don't fight over position and limit
+        ByteBuffer chunk = mappedData.duplicate();
+        chunk.position(start + 4);
+        chunk.limit(start + 4 + length);
+        return chunk.slice();
+    }
+
+    private synchronized ByteBuffer readChunkBuffer(int x, int z, int sectorNumber, int numSectors) {
+        try {
             file.seek(sectorNumber * SECTOR_BYTES);
             int length = file.readInt();
 
-            if (length > SECTOR_BYTES * numSectors) {
+            if (length > SECTOR_BYTES * numSectors || length < 1) {
                 debugln("READ", x, z, "invalid length: " + length + " > 4096 * " + numSectors);
                 return null;
             }
 
-            byte version = file.readByte();
-            if (version == VERSION_GZIP) {
-                byte[] data = new byte[length - 1];
-                file.read(data);
-                DataInputStream ret = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(data)));
-                // debug("READ", x, z, " = found");
-                return ret;
-            } else if (version == VERSION_DEFLATE) {
-                byte[] data = new byte[length - 1];
-                file.read(data);
-                DataInputStream ret = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)));
-                // debug("READ", x, z, " = found");
-                return ret;
-            }
-
-            debugln("READ", x, z, "unknown version " + version);
-            return null;
+            byte[] data = new byte[length];
+            file.readFully(data);
+            return ByteBuffer.wrap(data);
         } catch (IOException e) {
             debugln("READ", x, z, "exception");
             return null;
@@ -260,6 +448,9 @@ public class RegionFile
      */
     public OutputStream getChunkOutputStream( int x, int z, int format ) {
         if (outOfBounds(x, z)) return null;
+        if (mappedData != null) {
+            throw new IllegalStateException(fileName + " is memory-mapped read-only; chunks cannot be written");
+        }
 
         return new ChunkBuffer(x, z, format);
     }
@@ -381,6 +572,11 @@ public class RegionFile
         return getOffset(x, z) != 0;
     }
 
+    /* when the chunk was last saved, in seconds since the epoch, as recorded in the header */
+    public int getChunkTimestamp(int x, int z) {
+        return chunkTimestamps[x + z * 32];
+    }
+
     private void setOffset(int x, int z, int offset) throws IOException {
         offsets[x + z * 32] = offset;
         file.seek((x + z * 32) * 4);
@@ -394,6 +590,7 @@ public class RegionFile
     }
 
     public void close() throws IOException {
-        file.close();
+        // A mapping is released when it is garbage-collected
+        if (file != null) file.close();
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
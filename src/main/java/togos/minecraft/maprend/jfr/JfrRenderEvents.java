@@ -0,0 +1,215 @@
+package togos.minecraft.maprend.jfr;
+
+import java.io.File;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The jdk.jfr side of {@link RenderEvents}.
+ *
+ * Whether each kind of event is enabled is checked through its EventType
+ * before anything is allocated, so that nothing but that check happens
+ * for every chunk when no recording is running.
+ */
+class JfrRenderEvents
+{
+	@Category({"TMCMR", "Region"})
+	static abstract class RegionFileEvent extends Event {
+		@Label("Region X") int regionX;
+		@Label("Region Z") int regionZ;
+		@Label("File") String file;
+
+		void setFile( File f ) {
+			file = f.getPath();
+			// Region files are named r.<x>.<z>.mca
+			String[] parts = f.getName().split("\\.");
+			if( parts.length == 4 ) {
+				try {
+					regionX = Integer.parseInt(parts[1]);
+					regionZ = Integer.parseInt(parts[2]);
+				} catch( NumberFormatException e ) {
+				}
+			}
+		}
+	}
+
+	@Name("togos.minecraft.maprend.RegionOpen")
+	@Label("Region Open")
+	@Description("Opening a region file and reading its chunk offset and timestamp tables")
+	static class RegionOpen extends RegionFileEvent {
+		@Label("Size") @DataAmount long bytes;
+		@Label("Memory Mapped") boolean mapped;
+	}
+
+	@Name("togos.minecraft.maprend.RegionRead")
+	@Label("Region Read")
+	@Description("Reading a memory-mapped region file into memory")
+	static class RegionRead extends RegionFileEvent {
+		@Label("Size") @DataAmount long bytes;
+	}
+
+	@Name("togos.minecraft.maprend.ChunkDecompress")
+	@Label("Chunk Decompress")
+	@Category({"TMCMR", "Chunk"})
+	@StackTrace(false)
+	static class ChunkDecompress extends RegionFileEvent {
+		@Label("Chunk X") @Description("Within the region") int chunkX;
+		@Label("Chunk Z") @Description("Within the region") int chunkZ;
+		@Label("Compressed Size") @DataAmount int compressedBytes;
+		@Label("Size") @DataAmount int bytes;
+	}
+
+	@Category({"TMCMR", "Chunk"})
+	@StackTrace(false)
+	static abstract class ChunkEvent extends Event {
+		@Label("Region X") int regionX;
+		@Label("Region Z") int regionZ;
+		@Label("Chunk X") @Description("Within the region") int chunkX;
+		@Label("Chunk Z") @Description("Within the region") int chunkZ;
+	}
+
+	@Name("togos.minecraft.maprend.ChunkParse")
+	@Label("Chunk Parse")
+	@Description("Reading block, data, and biome arrays out of a chunk's NBT")
+	static class ChunkParse extends ChunkEvent {
+		@Label("Sections") int sections;
+	}
+
+	@Name("togos.minecraft.maprend.ColumnComposite")
+	@Label("Column Composite")
+	@Description("Compositing the block columns of a chunk into colors and heights")
+	static class ColumnComposite extends ChunkEvent {
+	}
+
+	@Category({"TMCMR", "Tile"})
+	static abstract class TileEvent extends Event {
+		@Label("Region X") int regionX;
+		@Label("Region Z") int regionZ;
+	}
+
+	@Name("togos.minecraft.maprend.Shade")
+	@Label("Shade")
+	@Description("Shading a region's colors by height and making a tile image of them")
+	static class Shade extends TileEvent {
+		@Label("Partial") @Description("Only the area around changed chunks was shaded") boolean partial;
+	}
+
+	@Name("togos.minecraft.maprend.PngWrite")
+	@Label("PNG Write")
+	@Description("Encoding a tile as PNG and writing it to a file")
+	static class PngWrite extends TileEvent {
+		@Label("File") String file;
+		@Label("Width") int width;
+		@Label("Size") @DataAmount long bytes;
+	}
+
+	private static final EventType[] types = {
+		EventType.getEventType(RegionOpen.class),
+		EventType.getEventType(RegionRead.class),
+		EventType.getEventType(ChunkDecompress.class),
+		EventType.getEventType(ChunkParse.class),
+		EventType.getEventType(ColumnComposite.class),
+		EventType.getEventType(Shade.class),
+		EventType.getEventType(PngWrite.class),
+	};
+
+	static Object begin( int kind ) {
+		if( !types[kind].isEnabled() ) return null;
+		Event ev;
+		switch( kind ) {
+		case RenderEvents.REGION_OPEN:      ev = new RegionOpen();      break;
+		case RenderEvents.REGION_READ:      ev = new RegionRead();      break;
+		case RenderEvents.CHUNK_DECOMPRESS: ev = new ChunkDecompress(); break;
+		case RenderEvents.CHUNK_PARSE:      ev = new ChunkParse();      break;
+		case RenderEvents.COLUMN_COMPOSITE: ev = new ColumnComposite(); break;
+		case RenderEvents.SHADE:            ev = new Shade();           break;
+		case RenderEvents.PNG_WRITE:        ev = new PngWrite();        break;
+		default: throw new IllegalArgumentException("Unknown render event kind: "+kind);
+		}
+		ev.begin();
+		return ev;
+	}
+
+	static void endRegionOpen( Object o, File file, long bytes, boolean mapped ) {
+		RegionOpen ev = (RegionOpen)o;
+		ev.end();
+		if( !ev.shouldCommit() ) return;
+		ev.setFile( file );
+		ev.bytes = bytes;
+		ev.mapped = mapped;
+		ev.commit();
+	}
+
+	static void endRegionRead( Object o, File file, long bytes ) {
+		RegionRead ev = (RegionRead)o;
+		ev.end();
+		if( !ev.shouldCommit() ) return;
+		ev.setFile( file );
+		ev.bytes = bytes;
+		ev.commit();
+	}
+
+	static void endChunkDecompress( Object o, File file, int cx, int cz, int compressedBytes, int bytes ) {
+		ChunkDecompress ev = (ChunkDecompress)o;
+		ev.end();
+		if( !ev.shouldCommit() ) return;
+		ev.setFile( file );
+		ev.chunkX = cx;
+		ev.chunkZ = cz;
+		ev.compressedBytes = compressedBytes;
+		ev.bytes = bytes;
+		ev.commit();
+	}
+
+	protected static void commit( ChunkEvent ev, int rx, int rz, int cx, int cz ) {
+		ev.regionX = rx;
+		ev.regionZ = rz;
+		ev.chunkX = cx;
+		ev.chunkZ = cz;
+		ev.commit();
+	}
+
+	static void endChunkParse( Object o, int rx, int rz, int cx, int cz, int sections ) {
+		ChunkParse ev = (ChunkParse)o;
+		ev.end();
+		if( !ev.shouldCommit() ) return;
+		ev.sections = sections;
+		commit( ev, rx, rz, cx, cz );
+	}
+
+	static void endColumnComposite( Object o, int rx, int rz, int cx, int cz ) {
+		ColumnComposite ev = (ColumnComposite)o;
+		ev.end();
+		if( !ev.shouldCommit() ) return;
+		commit( ev, rx, rz, cx, cz );
+	}
+
+	static void endShade( Object o, int rx, int rz, boolean partial ) {
+		Shade ev = (Shade)o;
+		ev.end();
+		if( !ev.shouldCommit() ) return;
+		ev.regionX = rx;
+		ev.regionZ = rz;
+		ev.partial = partial;
+		ev.commit();
+	}
+
+	static void endPngWrite( Object o, int rx, int rz, File file, int width, long bytes ) {
+		PngWrite ev = (PngWrite)o;
+		ev.end();
+		if( !ev.shouldCommit() ) return;
+		ev.regionX = rx;
+		ev.regionZ = rz;
+		ev.file = file.getPath();
+		ev.width = width;
+		ev.bytes = bytes;
+		ev.commit();
+	}
+}
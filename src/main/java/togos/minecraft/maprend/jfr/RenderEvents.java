@@ -0,0 +1,91 @@
+package togos.minecraft.maprend.jfr;
+
+import java.io.File;
+
+/**
+ * Java Flight Recorder events for the phases of rendering a region,
+ * so that CPU samples in a recording can be tied to the region or chunk
+ * that was being worked on.
+ *
+ * Usage is
+ *
+ *   Object ev = RenderEvents.begin( RenderEvents.CHUNK_PARSE );
+ *   ...
+ *   RenderEvents.endChunkParse( ev, ... );
+ *
+ * begin returns null unless a recording that includes that kind of event
+ * is running.  The end methods do nothing when given null, but their
+ * arguments are evaluated regardless, so should be cheap to compute.
+ *
+ * Nothing here refers to jdk.jfr directly; the event classes are in
+ * {@link JfrRenderEvents}, which is only loaded if jdk.jfr is available,
+ * so this can be used on JVMs that don't have it.
+ */
+public class RenderEvents
+{
+	public static final int REGION_OPEN       = 0;
+	public static final int REGION_READ       = 1;
+	public static final int CHUNK_DECOMPRESS  = 2;
+	public static final int CHUNK_PARSE       = 3;
+	public static final int COLUMN_COMPOSITE  = 4;
+	public static final int SHADE             = 5;
+	public static final int PNG_WRITE         = 6;
+
+	public static final boolean AVAILABLE = initAvailable();
+
+	private static boolean initAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			// Make sure the event classes can actually be loaded and registered
+			JfrRenderEvents.begin( REGION_OPEN );
+			return true;
+		} catch( ClassNotFoundException e ) {
+			return false;
+		} catch( LinkageError e ) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param kind one of the constants above
+	 * @return the begun event, to be passed to the matching end method,
+	 *   or null if that kind of event isn't being recorded
+	 */
+	public static Object begin( int kind ) {
+		return AVAILABLE ? JfrRenderEvents.begin( kind ) : null;
+	}
+
+	public static void endRegionOpen( Object ev, File file, long bytes, boolean mapped ) {
+		if( ev != null ) JfrRenderEvents.endRegionOpen( ev, file, bytes, mapped );
+	}
+
+	public static void endRegionRead( Object ev, File file, long bytes ) {
+		if( ev != null ) JfrRenderEvents.endRegionRead( ev, file, bytes );
+	}
+
+	/**
+	 * @param cx, cz chunk coordinates within the region
+	 */
+	public static void endChunkDecompress( Object ev, File file, int cx, int cz, int compressedBytes, int bytes ) {
+		if( ev != null ) JfrRenderEvents.endChunkDecompress( ev, file, cx, cz, compressedBytes, bytes );
+	}
+
+	public static void endChunkParse( Object ev, int rx, int rz, int cx, int cz, int sections ) {
+		if( ev != null ) JfrRenderEvents.endChunkParse( ev, rx, rz, cx, cz, sections );
+	}
+
+	public static void endColumnComposite( Object ev, int rx, int rz, int cx, int cz ) {
+		if( ev != null ) JfrRenderEvents.endColumnComposite( ev, rx, rz, cx, cz );
+	}
+
+	/**
+	 * @param partial true if only part of the tile (around changed chunks) was shaded
+	 */
+	public static void endShade( Object ev, int rx, int rz, boolean partial ) {
+		if( ev != null ) JfrRenderEvents.endShade( ev, rx, rz, partial );
+	}
+
+	public static void endPngWrite( Object ev, int rx, int rz, File file, int width, long bytes ) {
+		if( ev != null ) JfrRenderEvents.endPngWrite( ev, rx, rz, file, width, bytes );
+	}
+}
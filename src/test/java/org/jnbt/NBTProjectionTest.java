@@ -0,0 +1,84 @@
+package org.jnbt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+public class NBTProjectionTest extends TestCase {
+	static CompoundTag compound( String name, Tag...entries ) {
+		Map<String,Tag> m = new HashMap<String,Tag>();
+		for( Tag t : entries ) m.put(t.getName(), t);
+		return new CompoundTag(name, m);
+	}
+	
+	static ListTag list( String name, Class<? extends Tag> type, Tag...items ) {
+		List<Tag> l = new ArrayList<Tag>();
+		for( Tag t : items ) l.add(t);
+		return new ListTag(name, type, l);
+	}
+	
+	static CompoundTag section( int y ) {
+		return compound("",
+			new ByteTag("Y", (byte)y),
+			new ByteArrayTag("Blocks", new byte[] { 1, 2, 3 }),
+			new ByteArrayTag("SkyLight", new byte[100]),
+			compound("Junk", new StringTag("x", "y"), list("L", DoubleTag.class, new DoubleTag("", 1)))
+		);
+	}
+	
+	static final CompoundTag CHUNK = compound("",
+		compound("Level",
+			new IntTag("xPos", 3),
+			list("Entities", CompoundTag.class,
+				compound("", new StringTag("id", "Zombie"), new LongTag("UUIDMost", 1), new FloatTag("F", 2)),
+				compound("", new StringTag("id", "Creeper"), new ShortTag("Fuse", (short)30))
+			),
+			list("Sections", CompoundTag.class, section(0), section(1)),
+			new ByteArrayTag("Biomes", new byte[256])
+		)
+	);
+	
+	static NBTInputStream open() throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		NBTOutputStream nos = new NBTOutputStream(bos);
+		nos.writeTag(CHUNK);
+		nos.writeTag(new StringTag("after", "the end"));
+		nos.close();
+		return new NBTInputStream(new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(bos.toByteArray()))));
+	}
+	
+	public void testProjectionSelectsOnlyRequestedPaths() throws Exception {
+		NBTInputStream nis = open();
+		CompoundTag root = (CompoundTag)nis.readTag(NBTProjection.of("Level.Sections.Y", "Level.Sections.Blocks", "Level.Biomes"));
+		
+		CompoundTag level = (CompoundTag)root.getValue().get("Level");
+		assertEquals(2, level.getValue().size());
+		assertEquals(256, ((ByteArrayTag)level.getValue().get("Biomes")).getValue().length);
+		
+		List<Tag> sections = ((ListTag)level.getValue().get("Sections")).getValue();
+		assertEquals(2, sections.size());
+		for( int i=0; i<2; ++i ) {
+			Map<String,Tag> section = ((CompoundTag)sections.get(i)).getValue();
+			assertEquals(2, section.size());
+			assertEquals(Byte.valueOf((byte)i), ((ByteTag)section.get("Y")).getValue());
+			assertEquals(3, ((ByteArrayTag)section.get("Blocks")).getValue().length);
+		}
+		
+		// Skipped data must have been consumed exactly
+		assertEquals("the end", ((StringTag)nis.readTag()).getValue());
+		nis.close();
+	}
+	
+	public void testAllReadsEverything() throws Exception {
+		NBTInputStream nis = open();
+		assertEquals(CHUNK.toString(), nis.readTag(NBTProjection.ALL).toString());
+		nis.close();
+	}
+}
@@ -0,0 +1,128 @@
+package togos.minecraft.maprend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+import togos.minecraft.maprend.RegionMap.Region;
+import togos.minecraft.maprend.io.ContentStore;
+
+/**
+ * Checks that big.png, the zoom pyramid, and the image tree come out
+ * the same when updated after one region changes as when rebuilt from scratch.
+ */
+public class IncrementalAggregatesTest extends TestCase
+{
+	File dir;
+
+	@Override protected void setUp() throws Exception {
+		dir = File.createTempFile("incremental-aggregates", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	protected static void delete( File f ) {
+		if( f.isDirectory() ) for( File c : f.listFiles() ) delete( c );
+		f.delete();
+	}
+
+	@Override protected void tearDown() throws Exception {
+		delete( dir );
+	}
+
+	protected static RegionRenderer renderer() {
+		return new RegionRenderer(
+			BlockMap.loadDefault(), BiomeMap.loadDefault(), false, Integer.MIN_VALUE, Integer.MAX_VALUE,
+			64, -20, 20, 36, "Test", new int[] { 1, 4 }
+		);
+	}
+
+	/**
+	 * Render tiles and build all the aggregates from them
+	 *
+	 * @return the image tree's URN
+	 */
+	protected String renderAndAggregate( File worldDir, File outputDir, boolean force ) throws Exception {
+		RegionRenderer rr = renderer();
+		RegionMap rm = RegionMap.load( worldDir, BoundingRect.INFINITE );
+		Set<Region> changed = rr.renderAll( rm, outputDir, force, 1, 1 );
+		if( force ) changed = null;
+		rr.createBigImage( rm, changed, outputDir, 1 );
+		rr.createZoomPyramid( rm, changed, outputDir, Integer.MAX_VALUE, force, 1 );
+		ContentStore store = new ContentStore();
+		store.rootStoreDir = new File(dir, "store").getPath();
+		return new ImageTreeComposer( store, 1 ).compose( rm, changed, new File(outputDir, "image-tree.cache") );
+	}
+
+	protected static void listPngs( File d, String prefix, Set<String> names ) {
+		for( File f : d.listFiles() ) {
+			if( f.isDirectory() ) listPngs( f, prefix+f.getName()+"/", names );
+			else if( f.getName().endsWith(".png") ) names.add( prefix+f.getName() );
+		}
+	}
+
+	protected static void assertSameBytes( File expected, File actual ) throws IOException {
+		assertTrue( actual.getPath(), Arrays.equals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath())) );
+	}
+
+	/**
+	 * The full-size tile has been rewritten by the time a scaled one fails,
+	 * so aggregates must still be updated from it
+	 */
+	public void testFailedScaledTileStillCountsAsRewritten() throws Exception {
+		File worldDir = new File(dir, "region");
+		SyntheticWorldGenerator gen = new SyntheticWorldGenerator(1);
+		gen.sectionDensity = 0.1;
+		gen.generateRegions( new BoundingRect(0, 0, 1, 1), worldDir, 1 );
+
+		File outputDir = new File(dir, "tiles");
+		// A non-empty directory where the scaled tile goes can't be written over
+		File scaled = new File(outputDir, "tile.0.0.1-4.png");
+		new File(scaled, "in-the-way").mkdirs();
+
+		RegionMap rm = RegionMap.load( worldDir, BoundingRect.INFINITE );
+		Set<Region> rewritten = renderer().renderAll( rm, outputDir, false, 1, 2 );
+		assertTrue( new File(outputDir, "tile.0.0.png").exists() );
+		assertEquals( 1, rewritten.size() );
+		assertSame( rm.regionAt(0, 0), rewritten.iterator().next() );
+	}
+
+	public void testIncrementalUpdateMatchesRebuild() throws Exception {
+		File worldDir = new File(dir, "region");
+		SyntheticWorldGenerator gen = new SyntheticWorldGenerator(1);
+		gen.sectionDensity = 0.25;
+		gen.generateRegions( new BoundingRect(0, 0, 2, 2), worldDir, 1 );
+
+		File incrementalDir = new File(dir, "incremental");
+		renderAndAggregate( worldDir, incrementalDir, false );
+
+		// Change one region, making sure it's newer than the tiles
+		SyntheticWorldGenerator changedGen = new SyntheticWorldGenerator(2);
+		changedGen.sectionDensity = 0.25;
+		File changedRegion = SyntheticWorldGenerator.regionFile(worldDir, 1, 0);
+		changedRegion.delete();
+		changedGen.generateRegion( 1, 0, worldDir );
+		changedRegion.setLastModified( System.currentTimeMillis() + 10000 );
+
+		String incrementalUrn = renderAndAggregate( worldDir, incrementalDir, false );
+		File rebuiltDir = new File(dir, "rebuilt");
+		String rebuiltUrn = renderAndAggregate( worldDir, rebuiltDir, true );
+
+		assertEquals( rebuiltUrn, incrementalUrn );
+		Set<String> rebuiltPngs = new TreeSet<String>(), incrementalPngs = new TreeSet<String>();
+		listPngs( rebuiltDir, "", rebuiltPngs );
+		listPngs( incrementalDir, "", incrementalPngs );
+		assertEquals( rebuiltPngs, incrementalPngs );
+		assertTrue( rebuiltPngs.contains("big.png") );
+		assertTrue( rebuiltPngs.contains("tile.1.0.png") );
+		assertTrue( rebuiltPngs.contains("zoom/1/tile.0.0.png") );
+		for( String name : rebuiltPngs ) {
+			assertSameBytes( new File(rebuiltDir, name), new File(incrementalDir, name) );
+		}
+	}
+}
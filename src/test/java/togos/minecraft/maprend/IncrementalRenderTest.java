@@ -0,0 +1,170 @@
+package togos.minecraft.maprend;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import org.jnbt.NBTOutputStream;
+
+import togos.minecraft.maprend.RegionMap.Region;
+import togos.minecraft.maprend.io.RegionFile;
+
+/**
+ * Checks that -incremental and -layer-cache re-renders read only the
+ * chunks they decode, and come out the same as a full render.
+ */
+public class IncrementalRenderTest extends TestCase
+{
+	static final int[] SCALES = { 1 };
+
+	File dir, worldDir, regionFile;
+	Region region;
+
+	@Override protected void setUp() throws Exception {
+		dir = File.createTempFile("incremental-render", "");
+		dir.delete();
+		dir.mkdirs();
+		worldDir = new File(dir, "region");
+		worldDir.mkdirs();
+		SyntheticWorldGenerator gen = new SyntheticWorldGenerator(1);
+		gen.sectionDensity = 0.25;
+		gen.generateRegion( 0, 0, worldDir );
+		regionFile = SyntheticWorldGenerator.regionFile(worldDir, 0, 0);
+		region = new Region();
+		region.regionFile = regionFile;
+	}
+
+	protected static void delete( File f ) {
+		if( f.isDirectory() ) for( File c : f.listFiles() ) delete( c );
+		f.delete();
+	}
+
+	@Override protected void tearDown() throws Exception {
+		delete( dir );
+	}
+
+	protected static RegionRenderer renderer() {
+		return new RegionRenderer(
+			BlockMap.loadDefault(), BiomeMap.loadDefault(), false, Integer.MIN_VALUE, Integer.MAX_VALUE,
+			64, -20, 20, 36, "Test", SCALES
+		);
+	}
+
+	protected static int[] pixels( File f ) throws Exception {
+		BufferedImage img = ImageIO.read(f);
+		return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+	}
+
+	protected RegionRenderer.RegionJob load( RegionRenderer rr, File outputDir ) throws Exception {
+		return rr.loadRegion( RenderPlan.planRegion(region, outputDir, false, SCALES), outputDir, false );
+	}
+
+	public void testIncrementalReadsOnlyChangedChunks() throws Exception {
+		File outputDir = new File(dir, "incremental");
+		outputDir.mkdirs();
+		RegionRenderer rr = renderer();
+		rr.incremental = true;
+		assertTrue( rr.renderRegion(region, outputDir, false) );
+
+		// Make one chunk look like it's been saved since
+		File manifestFile = new File(outputDir, "tile.0.0.chunks");
+		ChunkManifest manifest = ChunkManifest.load( manifestFile );
+		manifest.chunkTimestamps[5+7*32] -= 1;
+		manifest.save( manifestFile );
+		regionFile.setLastModified( System.currentTimeMillis() + 10000 );
+
+		RegionRenderer.RegionJob job = load( rr, outputDir );
+		try {
+			boolean[] expected = new boolean[32*32];
+			expected[5+7*32] = true;
+			assertTrue( Arrays.equals(expected, job.changedChunks) );
+			assertTrue( job.metrics.bytesRead < regionFile.length() / 10 );
+		} finally {
+			job.close();
+		}
+	}
+
+	/**
+	 * Overwrite some chunks with different ones,
+	 * making sure the old manifest doesn't match them
+	 * even if they're saved within the same second
+	 */
+	protected void changeChunks( File manifestFile, int[][] chunks ) throws Exception {
+		SyntheticWorldGenerator other = new SyntheticWorldGenerator(2);
+		other.sectionDensity = 0.25;
+		other.baseHeight = 70;
+		RegionFile rf = RegionFile.forWriting( regionFile );
+		try {
+			for( int[] c : chunks ) {
+				NBTOutputStream nos = new NBTOutputStream(rf.getChunkDataOutputStream(c[0], c[1]), false);
+				try {
+					nos.writeTag(other.generateChunk(c[0], c[1]));
+				} finally {
+					nos.close();
+				}
+			}
+		} finally {
+			rf.close();
+		}
+		ChunkManifest manifest = ChunkManifest.load( manifestFile );
+		for( int[] c : chunks ) manifest.chunkTimestamps[c[0]+c[1]*32] -= 1;
+		manifest.save( manifestFile );
+		regionFile.setLastModified( System.currentTimeMillis() + 10000 );
+	}
+
+	public void testIncrementalUpdateMatchesFullRender() throws Exception {
+		File outputDir = new File(dir, "incremental");
+		outputDir.mkdirs();
+		RegionRenderer rr = renderer();
+		rr.incremental = true;
+		assertTrue( rr.renderRegion(region, outputDir, false) );
+
+		// Including chunks at the edges and corners of the region,
+		// and two next to each other
+		changeChunks( new File(outputDir, "tile.0.0.chunks"), new int[][] {
+			{ 0, 0 }, { 5, 7 }, { 6, 7 }, { 31, 12 }, { 20, 31 }
+		});
+		RegionRenderer.RegionJob job = load( rr, outputDir );
+		try {
+			assertTrue( rr.renderRegion(job) );
+			assertEquals( RegionMetrics.CACHE_PARTIAL, job.metrics.cache );
+			assertTrue( rr.writeRegion(job) );
+		} finally {
+			job.close();
+		}
+
+		File fullDir = new File(dir, "full");
+		fullDir.mkdirs();
+		assertTrue( renderer().renderRegion(region, fullDir, true) );
+		assertTrue( Arrays.equals(pixels(new File(fullDir, "tile.0.0.png")), pixels(new File(outputDir, "tile.0.0.png"))) );
+	}
+
+	public void testUpToDateLayerCacheReadsNoChunks() throws Exception {
+		File outputDir = new File(dir, "layers");
+		outputDir.mkdirs();
+		RegionRenderer rr = renderer();
+		rr.layerCache = true;
+		assertTrue( rr.renderRegion(region, outputDir, false) );
+		regionFile.setLastModified( System.currentTimeMillis() + 10000 );
+
+		RegionRenderer.RegionJob job = load( rr, outputDir );
+		try {
+			assertEquals( 2*4096, job.metrics.bytesRead );
+		} finally {
+			job.close();
+		}
+
+		// A layer file that doesn't match means decoding everything
+		new File(outputDir, "tile.0.0.layers").delete();
+		job = load( rr, outputDir );
+		try {
+			assertEquals( regionFile.length(), job.metrics.bytesRead );
+		} finally {
+			job.close();
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package togos.minecraft.maprend;
+
+import junit.framework.TestCase;
+import togos.minecraft.maprend.RegionMap.Region;
+
+public class RegionMapTest extends TestCase
+{
+	protected static Region region( int rx, int rz ) {
+		Region r = new Region();
+		r.rx = rx;
+		r.rz = rz;
+		return r;
+	}
+
+	public void testRegionAt() {
+		RegionMap rm = new RegionMap();
+		for( int rz=-20; rz<20; ++rz ) {
+			for( int rx=-20; rx<20; ++rx ) rm.addRegion( region(rx, rz) );
+		}
+		for( int rz=-20; rz<20; ++rz ) {
+			for( int rx=-20; rx<20; ++rx ) {
+				Region r = rm.regionAt(rx, rz);
+				assertNotNull( r );
+				assertEquals( rx, r.rx );
+				assertEquals( rz, r.rz );
+			}
+		}
+		assertNull( rm.regionAt(20, 0) );
+		assertNull( rm.regionAt(0, -21) );
+		assertNull( rm.regionAt(Integer.MIN_VALUE, Integer.MAX_VALUE) );
+	}
+
+	public void testFirstAddedRegionWins() {
+		RegionMap rm = new RegionMap();
+		Region first = region(3, -4);
+		rm.addRegion( first );
+		rm.addRegion( region(3, -4) );
+		assertSame( first, rm.regionAt(3, -4) );
+		assertEquals( 2, rm.regions.size() );
+	}
+}
@@ -0,0 +1,34 @@
+package togos.minecraft.maprend;
+
+import junit.framework.TestCase;
+
+public class RegionMetricsTest extends TestCase
+{
+	public void testJson() {
+		RegionMetrics m = new RegionMetrics(-3, 7);
+		m.cache = RegionMetrics.CACHE_PARTIAL;
+		m.chunkCount = 12;
+		m.parseTime = 1234567;
+		m.renderThread = "Region renderer 1";
+		m.error = "java.io.IOException: \"bad\"\n";
+		String json = m.toJson();
+		assertTrue( json, json.startsWith("{\"rx\":-3,\"rz\":7,\"cache\":\"partial\",") );
+		assertTrue( json, json.contains("\"chunks\":12,") );
+		assertTrue( json, json.contains("\"parseMs\":1.235,") );
+		assertTrue( json, json.contains("\"renderThread\":\"Region renderer 1\",") );
+		assertTrue( json, json.contains("\"writeThread\":null,") );
+		assertTrue( json, json.endsWith("\"error\":\"java.io.IOException: \\\"bad\\\"\\u000a\"}") );
+		assertEquals( -1, json.indexOf('\n') );
+	}
+
+	public void testTimerReportWithNothingRendered() {
+		RegionRenderer.Timer timer = new RegionRenderer.Timer();
+		RegionMetrics m = new RegionMetrics(0, 0);
+		m.cache = RegionMetrics.CACHE_UP_TO_DATE;
+		timer.add( m );
+		String report = timer.report();
+		assertTrue( report, report.startsWith("Rendered 0 regions, 0 sections") );
+		assertFalse( report, report.contains("NaN") );
+		assertFalse( report, report.contains("Infinity") );
+	}
+}
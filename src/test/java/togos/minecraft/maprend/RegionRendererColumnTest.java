@@ -0,0 +1,99 @@
+package togos.minecraft.maprend;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class RegionRendererColumnTest extends TestCase {
+	static final int MAX_SECTION_COUNT = 16;
+	static final short[] INTERESTING_BLOCK_IDS = {
+		0x00, 0x00, 0x00, 0x01, 0x02, 0x08, 0x09, 0x12, 0x14, 0x4F, 0xF0
+	};
+	
+	/**
+	 * The straightforward bottom-up compositing that renderColumn must match.
+	 * 
+	 * @param height receives the height of the highest block opaque enough to be shaded
+	 * @return the column's color
+	 */
+	static int naiveColumnColor( RegionRenderer rr, short[][] ids, byte[][] data, boolean[] used, int columnIndex, int biomeId, short[] height ) {
+		int color = 0;
+		height[0] = 0;
+		for( int s=0; s<MAX_SECTION_COUNT; ++s ) {
+			int absY = s*16;
+			if( absY >= rr.maxHeight || absY+16 <= rr.minHeight ) continue;
+			if( used[s] ) {
+				for( int idx=columnIndex, y=0; y<16; ++y, idx+=256, ++absY ) {
+					if( absY < rr.minHeight || absY >= rr.maxHeight ) continue;
+					int blockColor = rr.getColor( ids[s][idx]&0xFFFF, data[s][idx], biomeId );
+					if( Color.alpha(blockColor) >= rr.shadeOpacityCutoff ) height[0] = (short)absY;
+					color = Color.overlay( color, blockColor );
+				}
+			} else if( rr.minHeight <= absY && rr.maxHeight >= absY+16 ) {
+				color = Color.overlay( color, rr.air16Color );
+			} else {
+				int airHeight = Math.min(rr.maxHeight, absY+16) - Math.max(rr.minHeight, absY);
+				color = Color.overlay( color, Color.overlay(0, rr.getColor(0, 0, 0), airHeight) );
+			}
+		}
+		return color;
+	}
+	
+	protected void assertColumnsMatchNaiveCompositing( int minHeight, int maxHeight ) {
+		assertColumnsMatchNaiveCompositing( BlockMap.loadDefault(), minHeight, maxHeight );
+	}
+	
+	protected void assertColumnsMatchNaiveCompositing( BlockMap blockMap, int minHeight, int maxHeight ) {
+		RegionRenderer rr = new RegionRenderer(
+			blockMap, BiomeMap.loadDefault(), false, minHeight, maxHeight,
+			64, -20, 20, 36, "Test", new int[] { 1 }
+		);
+		Random rand = new Random(1234);
+		short[][] ids = new short[MAX_SECTION_COUNT][16*16*16];
+		byte[][] data = new byte[MAX_SECTION_COUNT][16*16*16];
+		boolean[] used = new boolean[MAX_SECTION_COUNT];
+		int[] stack = new int[MAX_SECTION_COUNT*16];
+		int[] colors = new int[256];
+		short[] heights = new short[256];
+		short[] naiveHeight = new short[1];
+		
+		for( int trial=0; trial<50; ++trial ) {
+			int topSection = rand.nextInt(MAX_SECTION_COUNT);
+			for( int s=0; s<MAX_SECTION_COUNT; ++s ) {
+				used[s] = s <= topSection && rand.nextInt(4) != 0;
+				// Deeper sections are more likely to be solid
+				int solidity = 1+rand.nextInt(1+topSection-Math.min(s,topSection));
+				for( int i=0; i<4096; ++i ) {
+					ids[s][i] = rand.nextInt(solidity) == 0 ?
+						INTERESTING_BLOCK_IDS[rand.nextInt(INTERESTING_BLOCK_IDS.length)] : 0x01;
+					data[s][i] = (byte)rand.nextInt(16);
+				}
+			}
+			for( int col=0; col<256; ++col ) {
+				int biomeId = rand.nextInt(40);
+				rr.renderColumn( MAX_SECTION_COUNT, ids, data, used, col, biomeId, stack, colors, heights, col );
+				assertEquals( naiveColumnColor( rr, ids, data, used, col, biomeId, naiveHeight ), colors[col] );
+				assertEquals( naiveHeight[0], heights[col] );
+			}
+		}
+	}
+	
+	public void testColumnsMatchNaiveCompositing() {
+		assertColumnsMatchNaiveCompositing( Integer.MIN_VALUE, Integer.MAX_VALUE );
+	}
+	
+	public void testClippedColumnsMatchNaiveCompositing() {
+		assertColumnsMatchNaiveCompositing( 37, 101 );
+	}
+	
+	/** Air that isn't see-through shows how much of it is between the height limits */
+	public void testClippedHazyColumnsMatchNaiveCompositing() throws IOException {
+		BlockMap hazy = BlockMap.load( new BufferedReader(new StringReader(
+			"default\t0xFF808080\n0x0000\t0x10FFFFFF\n0x0008\t0x802040FF\n0x0014\t0x40FFFFFF\n"
+		)), "hazy" );
+		assertColumnsMatchNaiveCompositing( hazy, 37, 101 );
+	}
+}
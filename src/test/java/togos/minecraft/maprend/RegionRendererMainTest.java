@@ -3,6 +3,7 @@ package togos.minecraft.maprend;
 import java.io.File;
 import junit.framework.TestCase;
 import togos.minecraft.maprend.RegionRenderer.RegionRendererCommand;
+import togos.minecraft.maprend.io.PNGWriter;
 
 public class RegionRendererMainTest extends TestCase {
 	private RegionRenderer.RegionRendererCommand main;
@@ -49,6 +50,85 @@ public class RegionRendererMainTest extends TestCase {
 		assertTrue(main.createImageTree);
 	}
 
+	public void testIncrementalArgument() throws Exception {
+		extractAndAssertValidArgs("in -o out");
+		assertFalse(main.incremental);
+		extractAndAssertValidArgs("in -o out -incremental");
+		assertTrue(main.incremental);
+	}
+
+	public void testLayerCacheArgument() throws Exception {
+		extractAndAssertValidArgs("in -o out");
+		assertFalse(main.layerCache);
+		extractAndAssertValidArgs("in -o out -layer-cache");
+		assertTrue(main.layerCache);
+	}
+
+	public void testDryRunArgument() throws Exception {
+		extractAndAssertValidArgs("in -o out");
+		assertFalse(main.dryRun);
+		extractAndAssertValidArgs("in -o out -dry-run");
+		assertTrue(main.dryRun);
+	}
+
+	public void testPngArguments() throws Exception {
+		extractAndAssertValidArgs("in -o out -png-compression 1 -png-filter paeth");
+		assertEquals(1, main.pngCompressionLevel);
+		assertEquals(PNGWriter.FILTER_PAETH, main.pngFilter);
+		RegionRendererCommand cmd = RegionRendererCommand
+				.fromArguments(toArgs("in -o out -png-filter fancy"));
+		assertEquals("Unrecognized PNG filter: 'fancy'", cmd.errorMessage);
+	}
+
+	public void testZoomPyramidArguments() throws Exception {
+		extractAndAssertValidArgs("in -o out");
+		assertFalse(main.createZoomPyramid);
+		extractAndAssertValidArgs("in -o out -create-zoom-pyramid -zoom-levels 3");
+		assertTrue(main.createZoomPyramid);
+		assertEquals(3, main.maxZoomLevels);
+	}
+
+	public void testPipelineThreadArguments() throws Exception {
+		extractAndAssertValidArgs("in -o out -threads 3");
+		assertEquals(2, main.ioThreadCount);
+		assertEquals(3, main.getCpuThreadCount());
+		extractAndAssertValidArgs("in -o out -threads 3 -io-threads 4 -cpu-threads 5");
+		assertEquals(4, main.ioThreadCount);
+		assertEquals(5, main.getCpuThreadCount());
+	}
+
+	public void testWriteThreadCountLeavesMostForRendering() {
+		// A single thread renders and writes
+		assertEquals(0, RegionRenderer.writeThreadCount(1));
+		assertEquals(1, RegionRenderer.writeThreadCount(2));
+		assertEquals(1, RegionRenderer.writeThreadCount(3));
+		assertEquals(2, RegionRenderer.writeThreadCount(6));
+		assertEquals(5, RegionRenderer.writeThreadCount(16));
+	}
+
+	public void testWatchArguments() throws Exception {
+		extractAndAssertValidArgs("in -o out");
+		assertFalse(main.watch);
+		extractAndAssertValidArgs("in -o out -watch -watch-debounce 250");
+		assertTrue(main.watch);
+		assertEquals(250, main.watchDebounceTime);
+	}
+
+	public void testServeArguments() throws Exception {
+		extractAndAssertValidArgs("in -o out");
+		assertEquals(-1, main.servePort);
+		extractAndAssertValidArgs("in -o out -serve 8080 -serve-cache 64");
+		assertEquals(8080, main.servePort);
+		assertEquals(64, main.serveCacheSize);
+	}
+
+	public void testMetricsFileArgument() throws Exception {
+		extractAndAssertValidArgs("in -o out");
+		assertNull(main.metricsFile);
+		extractAndAssertValidArgs("in -o out -metrics-file metrics.jsonl");
+		assertEquals("metrics.jsonl", main.metricsFile.getName());
+	}
+
 	public void testColorMapArgument() throws Exception {
 		extractAndAssertValidArgs("in -o out -color-map cm");
 		assertEquals("cm", main.colorMapFile.getName());
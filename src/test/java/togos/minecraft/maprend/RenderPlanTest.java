@@ -0,0 +1,89 @@
+package togos.minecraft.maprend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import togos.minecraft.maprend.RegionMap.Region;
+
+public class RenderPlanTest extends TestCase
+{
+	File dir;
+
+	@Override protected void setUp() throws Exception {
+		dir = File.createTempFile("render-plan", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@Override protected void tearDown() throws Exception {
+		for( File f : dir.listFiles() ) f.delete();
+		dir.delete();
+	}
+
+	protected File write( String name, int size, long lastModified ) throws IOException {
+		File f = new File(dir, name);
+		FileOutputStream fos = new FileOutputStream(f);
+		try {
+			fos.write(new byte[size]);
+		} finally {
+			fos.close();
+		}
+		f.setLastModified(lastModified);
+		return f;
+	}
+
+	protected Region region( int rx, int rz, int size ) throws IOException {
+		Region r = new Region();
+		r.rx = rx;
+		r.rz = rz;
+		r.regionFile = write("r."+rx+"."+rz+".mca", size, 2000000000000L);
+		return r;
+	}
+
+	public void testPlan() throws IOException {
+		int[] scales = { 1, 4 };
+		long older = 1000000000000L, newer = 3000000000000L;
+
+		// No tiles at all
+		Region small = region(0, 0, 100);
+		Region big = region(1, 0, 300);
+		// Full-size tile up-to-date, scaled one missing
+		Region rescale = region(2, 0, 200);
+		write("tile.2.0.png", 50, newer);
+		// Everything up-to-date
+		Region upToDate = region(3, 0, 400);
+		write("tile.3.0.png", 50, newer);
+		write("tile.3.0.1-4.png", 10, newer);
+		// Scaled tile up-to-date but full-size one old
+		Region stale = region(4, 0, 150);
+		write("tile.4.0.png", 50, older);
+		write("tile.4.0.1-4.png", 10, newer);
+
+		RenderPlan plan = RenderPlan.make( Arrays.asList(small, big, rescale, upToDate, stale), dir, false, scales );
+		assertEquals( 4, plan.jobs.size() );
+		assertSame( big,   plan.jobs.get(0).region );
+		assertSame( stale, plan.jobs.get(1).region );
+		assertSame( small, plan.jobs.get(2).region );
+		assertSame( rescale, plan.jobs.get(3).region );
+		assertEquals( RenderPlan.FULL_RENDER, plan.jobs.get(1).action );
+		assertEquals( RenderPlan.RESCALE_ONLY, plan.jobs.get(3).action );
+		assertEquals( 50, plan.jobs.get(3).estimatedCost );
+		assertEquals( 1, plan.skipped.size() );
+		assertSame( upToDate, plan.skipped.get(0).region );
+		assertEquals( new File(dir, "tile.3.0.png"), upToDate.imageFile );
+
+		plan = RenderPlan.make( Arrays.asList(small, upToDate), dir, true, scales );
+		assertEquals( 2, plan.count(RenderPlan.FULL_RENDER) );
+		assertEquals( 0, plan.count(RenderPlan.SKIP) );
+
+		ByteArrayOutputStream printed = new ByteArrayOutputStream();
+		plan.print( new PrintStream(printed, true) );
+		assertTrue( printed.toString().contains("# 2 regions: 2 full-render, 0 rescale-only, 0 skip") );
+	}
+}
@@ -0,0 +1,97 @@
+package togos.minecraft.maprend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.jnbt.ByteArrayTag;
+import org.jnbt.CompoundTag;
+import org.jnbt.IntArrayTag;
+import org.jnbt.ListTag;
+import org.jnbt.NBTInputStream;
+import org.jnbt.NBTOutputStream;
+import org.jnbt.Tag;
+
+import togos.minecraft.maprend.io.RegionFile;
+
+public class SyntheticWorldGeneratorTest extends TestCase
+{
+	protected static byte[] serialize( Tag t ) throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		NBTOutputStream nos = new NBTOutputStream(bos, false);
+		nos.writeTag(t);
+		nos.close();
+		return bos.toByteArray();
+	}
+
+	public void testSameSeedGivesSameChunks() throws Exception {
+		SyntheticWorldGenerator a = new SyntheticWorldGenerator(42);
+		SyntheticWorldGenerator b = new SyntheticWorldGenerator(42);
+		SyntheticWorldGenerator c = new SyntheticWorldGenerator(43);
+		for( SyntheticWorldGenerator g : new SyntheticWorldGenerator[] { a, b, c } ) {
+			g.addFraction = 0.5;
+			g.entityBytes = 1000;
+		}
+		assertTrue( Arrays.equals(serialize(a.generateChunk(-5, 7)), serialize(b.generateChunk(-5, 7))) );
+		assertFalse( Arrays.equals(serialize(a.generateChunk(-5, 7)), serialize(c.generateChunk(-5, 7))) );
+	}
+
+	public void testGeneratedRegionCanBeRead() throws Exception {
+		File dir = File.createTempFile("synthetic-world", "");
+		dir.delete();
+		try {
+			SyntheticWorldGenerator gen = new SyntheticWorldGenerator(1);
+			gen.addFraction = 1;
+			gen.sectionDensity = 0.5;
+			gen.entityBytes = 2000;
+			gen.generateRegions( new BoundingRect(-1, 0, 0, 1), dir, 2 );
+
+			RegionFile rf = new RegionFile( SyntheticWorldGenerator.regionFile(dir, -1, 0), true );
+			try {
+				for( int cz=0; cz<32; cz += 31 ) {
+					for( int cx=0; cx<32; cx += 31 ) {
+						DataInputStream dis = rf.getChunkDataInputStream(cx, cz);
+						assertNotNull( dis );
+						CompoundTag root = (CompoundTag)new NBTInputStream(dis).readTag();
+						Map<String,Tag> level = ((CompoundTag)root.getValue().get("Level")).getValue();
+						Map<String,Tag> expected = ((CompoundTag)gen.generateChunk(cx-32, cz).getValue().get("Level")).getValue();
+						assertTrue( Arrays.equals(((ByteArrayTag)expected.get("Biomes")).getValue(), ((ByteArrayTag)level.get("Biomes")).getValue()) );
+						assertEquals( ((ListTag)expected.get("Sections")).getValue().size(), ((ListTag)level.get("Sections")).getValue().size() );
+						assertEquals( 256, ((IntArrayTag)level.get("HeightMap")).getInts().length );
+						int entityCount = ((ListTag)level.get("Entities")).getValue().size();
+						assertTrue( entityCount > 0 );
+
+						int maxSectionCount = RegionRenderer.ChunkScratch.MAX_SECTION_COUNT;
+						RegionRenderer.loadChunkData( (CompoundTag)root.getValue().get("Level"), maxSectionCount,
+							new short[maxSectionCount][16*16*16], new byte[maxSectionCount][16*16*16],
+							new boolean[maxSectionCount], new byte[16*16] );
+					}
+				}
+			} finally {
+				rf.close();
+			}
+		} finally {
+			for( File f : dir.listFiles() ) f.delete();
+			dir.delete();
+		}
+	}
+
+	public void testArguments() {
+		SyntheticWorldGenerator.GeneratorCommand m = SyntheticWorldGenerator.GeneratorCommand.fromArguments(
+			"-o", "out", "-seed", "7", "-region-rect", "-2", "-2", "2", "2", "-biomes", "1,2,2",
+			"-section-density", "0.25", "-add-fraction", "0.1", "-entity-bytes", "4096");
+		assertNull( m.errorMessage );
+		assertEquals( 7, m.createGenerator().seed );
+		assertEquals( 2, m.regionRect.maxY );
+		assertEquals( 3, m.createGenerator().biomeIds.length );
+		assertEquals( 0.25, m.createGenerator().sectionDensity );
+
+		assertNotNull( SyntheticWorldGenerator.GeneratorCommand.fromArguments("-o", "out", "-section-density", "2").errorMessage );
+		assertNotNull( SyntheticWorldGenerator.GeneratorCommand.fromArguments("-o", "out", "-region-rect", "0", "0", "0", "1").errorMessage );
+		assertNotNull( SyntheticWorldGenerator.GeneratorCommand.fromArguments("-seed", "1").errorMessage );
+	}
+}
@@ -0,0 +1,227 @@
+package togos.minecraft.maprend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import togos.minecraft.maprend.RegionMap.Region;
+
+public class TileServerTest extends TestCase
+{
+	File dir, worldDir, outputDir;
+
+	@Override protected void setUp() throws Exception {
+		dir = File.createTempFile("tile-server", "");
+		dir.delete();
+		dir.mkdirs();
+		worldDir = new File(dir, "region");
+		outputDir = new File(dir, "tiles");
+	}
+
+	protected static void delete( File f ) {
+		if( f.isDirectory() ) for( File c : f.listFiles() ) delete( c );
+		f.delete();
+	}
+
+	@Override protected void tearDown() throws Exception {
+		delete( dir );
+	}
+
+	protected static SyntheticWorldGenerator generator() {
+		SyntheticWorldGenerator gen = new SyntheticWorldGenerator(1);
+		gen.sectionDensity = 0.1;
+		return gen;
+	}
+
+	protected static RegionRenderer renderer() {
+		return new RegionRenderer(
+			BlockMap.loadDefault(), BiomeMap.loadDefault(), false, Integer.MIN_VALUE, Integer.MAX_VALUE,
+			64, -20, 20, 36, "Test", new int[] { 1 }
+		);
+	}
+
+	/** Status, ETag, and body of a response */
+	static class Response {
+		int status;
+		String etag;
+		byte[] body;
+	}
+
+	protected static Response get( TileServer server, String path, String ifNoneMatch ) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection)new URL("http://localhost:"+server.getPort()+path).openConnection();
+		if( ifNoneMatch != null ) conn.setRequestProperty("If-None-Match", ifNoneMatch);
+		Response res = new Response();
+		res.status = conn.getResponseCode();
+		res.etag = conn.getHeaderField("ETag");
+		InputStream is = res.status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		if( is != null ) {
+			byte[] buf = new byte[65536];
+			int n;
+			while( (n = is.read(buf)) > 0 ) body.write(buf, 0, n);
+			is.close();
+		}
+		res.body = body.toByteArray();
+		return res;
+	}
+
+	public void testEtagsAndEviction() throws Exception {
+		generator().generateRegions( new BoundingRect(0, 0, 2, 1), worldDir, 1 );
+		RegionRenderer rr = renderer();
+		List<File> regionFiles = Collections.singletonList(worldDir);
+
+		// Find out how big the tiles are
+		TileServer server = new TileServer( rr, RegionMap.load(regionFiles, BoundingRect.INFINITE), regionFiles, BoundingRect.INFINITE, outputDir, 64*1024*1024, 1 );
+		server.start( 0 );
+		int size0, size1;
+		try {
+			Response res = get( server, "/tile/1/0/0.png", null );
+			assertEquals( 200, res.status );
+			assertNotNull( res.etag );
+			size0 = res.body.length;
+			assertTrue( size0 > 0 );
+
+			Response notModified = get( server, "/tile/1/0/0.png", res.etag );
+			assertEquals( 304, notModified.status );
+			assertEquals( res.etag, notModified.etag );
+			assertEquals( 200, get( server, "/tile/1/0/0.png", "\"something-else\"" ).status );
+
+			size1 = get( server, "/tile/1/1/0.png", null ).body.length;
+			assertEquals( 404, get( server, "/tile/1/5/5.png", null ).status );
+			assertEquals( 404, get( server, "/tile/3/0/0.png", null ).status );
+		} finally {
+			server.stop();
+		}
+
+		// Room for either tile but not both
+		long limit = Math.max(size0, size1) + Math.min(size0, size1)/2;
+		server = new TileServer( rr, RegionMap.load(regionFiles, BoundingRect.INFINITE), regionFiles, BoundingRect.INFINITE, outputDir, limit, 1 );
+		server.start( 0 );
+		try {
+			get( server, "/tile/1/0/0.png", null );
+			assertNotNull( server.getCached("1/0/0") );
+			get( server, "/tile/1/1/0.png", null );
+			assertNull( server.getCached("1/0/0") );
+			assertNotNull( server.getCached("1/1/0") );
+			assertEquals( size1, server.cacheBytes );
+
+			// Tiles at other scales are cached separately
+			Response scaled = get( server, "/tile/4/1/0.png", null );
+			assertEquals( 200, scaled.status );
+			assertTrue( scaled.body.length < size1 );
+			assertNotNull( server.getCached("4/1/0") );
+			assertNotNull( server.getCached("1/1/0") );
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Regions that nobody has asked for have no tiles,
+	 * which aggregates made in watch mode must leave out.
+	 */
+	public void testWatchBeforeAnyRequests() throws Exception {
+		SyntheticWorldGenerator gen = generator();
+		gen.generateRegions( new BoundingRect(0, 0, 2, 1), worldDir, 1 );
+
+		RegionRenderer.RegionRendererCommand cmd = RegionRenderer.RegionRendererCommand.fromArguments(
+			"-o", outputDir.getPath(), worldDir.getPath(), "-serve", "0", "-watch",
+			"-create-tile-html", "-create-big-image", "-create-image-tree", "-create-zoom-pyramid" );
+		assertNull( cmd.errorMessage );
+		RegionRenderer rr = renderer();
+		RegionMap rm = RegionMap.load( cmd.regionFiles, cmd.regionLimitRect );
+		TileServer server = new TileServer( rr, rm, cmd.regionFiles, cmd.regionLimitRect, outputDir, 64*1024*1024, 1 );
+		server.start( 0 );
+		// The image tree's content store goes under the home directory
+		String home = System.getProperty("user.home");
+		System.setProperty( "user.home", dir.getPath() );
+		try {
+			gen.generateRegion( 2, 0, worldDir );
+			Set<Region> rewritten = cmd.renderWritten( rr, rm, Collections.singleton(SyntheticWorldGenerator.regionFile(worldDir, 2, 0)) );
+			assertEquals( 1, rewritten.size() );
+			assertEquals( 3, rm.regions.size() );
+			assertTrue( new File(outputDir, "tile.2.0.png").exists() );
+			assertFalse( new File(outputDir, "tile.0.0.png").exists() );
+			assertEquals( 512, ImageIO.read(new File(outputDir, "big.png")).getWidth() );
+			assertTrue( new File(outputDir, "image-tree.cache").exists() );
+
+			// Once asked for, a region's tile is included next time
+			assertEquals( 200, get( server, "/tile/1/0/0.png", null ).status );
+			gen.generateRegion( 2, 0, worldDir );
+			SyntheticWorldGenerator.regionFile(worldDir, 2, 0).setLastModified( System.currentTimeMillis() + 10000 );
+			cmd.renderWritten( rr, rm, Collections.singleton(SyntheticWorldGenerator.regionFile(worldDir, 2, 0)) );
+			assertEquals( 3*512, ImageIO.read(new File(outputDir, "big.png")).getWidth() );
+		} finally {
+			System.setProperty( "user.home", home );
+			server.stop();
+		}
+	}
+
+	/**
+	 * Regions saved while the server is running are added to the shared
+	 * region map both by server threads and by re-rendering in watch mode,
+	 * which also updates aggregates from the map.
+	 */
+	public void testServeWithWatch() throws Exception {
+		SyntheticWorldGenerator gen = generator();
+		gen.generateRegions( new BoundingRect(0, 0, 2, 1), worldDir, 1 );
+
+		RegionRenderer.RegionRendererCommand cmd = RegionRenderer.RegionRendererCommand.fromArguments(
+			"-o", outputDir.getPath(), worldDir.getPath(), "-serve", "0", "-watch", "-create-tile-html", "-create-big-image", "-threads", "2" );
+		assertNull( cmd.errorMessage );
+		final RegionRenderer rr = renderer();
+		final RegionMap rm = RegionMap.load( cmd.regionFiles, cmd.regionLimitRect );
+		final TileServer server = new TileServer( rr, rm, cmd.regionFiles, cmd.regionLimitRect, outputDir, 64*1024*1024, 2 );
+		server.start( 0 );
+		try {
+			// New regions that the server and the watcher will both find
+			List<File> written = new ArrayList<File>();
+			for( int rx=2; rx<4; ++rx ) {
+				gen.generateRegion( rx, 0, worldDir );
+				written.add( SyntheticWorldGenerator.regionFile(worldDir, rx, 0) );
+			}
+
+			final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+			final Set<Integer> statuses = Collections.synchronizedSet(new HashSet<Integer>());
+			List<Thread> clients = new ArrayList<Thread>();
+			for( int i=0; i<2; ++i ) {
+				final int offset = i;
+				clients.add(new Thread("Tile client "+i) {
+					public void run() {
+						try {
+							for( int rx=offset; rx<offset+4; ++rx ) {
+								statuses.add( get(server, "/tile/1/"+(rx%4)+"/0.png", null).status );
+							}
+						} catch( Throwable e ) {
+							errors.add( e );
+						}
+					}
+				});
+			}
+			for( Thread t : clients ) t.start();
+			cmd.renderWritten( rr, rm, new HashSet<File>(written) );
+			for( Thread t : clients ) t.join();
+
+			assertEquals( Collections.emptyList(), errors );
+			assertEquals( Collections.singleton(200), statuses );
+			assertEquals( 4, rm.regions.size() );
+			for( int rx=0; rx<4; ++rx ) assertNotNull( rm.regionAt(rx, 0) );
+			assertTrue( new File(outputDir, "big.png").exists() );
+			assertTrue( new File(outputDir, "tiles.html").exists() );
+		} finally {
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package togos.minecraft.maprend;
+
+import junit.framework.TestCase;
+
+public class ZoomPyramidBuilderTest extends TestCase
+{
+	public void testAverageOfOpaqueColors() {
+		assertEquals( 0xFF808080, ZoomPyramidBuilder.average4(0xFF000000, 0xFFFFFFFF, 0xFF000000, 0xFFFFFFFF) );
+		assertEquals( 0xFF102030, ZoomPyramidBuilder.average4(0xFF102030, 0xFF102030, 0xFF102030, 0xFF102030) );
+	}
+	
+	public void testTransparentPixelsDontDarken() {
+		assertEquals( 0x40FF0000, ZoomPyramidBuilder.average4(0xFFFF0000, 0x00000000, 0x00000000, 0x00000000) );
+		assertEquals( 0x00000000, ZoomPyramidBuilder.average4(0x00000000, 0x00FFFFFF, 0x00000000, 0x00000000) );
+	}
+	
+	public void testDownsampleQuadrant() {
+		int size = ZoomPyramidBuilder.TILE_SIZE;
+		int[] src = new int[size*size];
+		for( int i=0; i<src.length; ++i ) src[i] = 0xFF00FF00;
+		int[] dest = new int[size*size];
+		ZoomPyramidBuilder.downsample( src, dest, size/2, 0 );
+		assertEquals( 0, dest[0] );
+		assertEquals( 0xFF00FF00, dest[size/2] );
+		assertEquals( 0xFF00FF00, dest[(size/2-1)*size+size-1] );
+		assertEquals( 0, dest[(size/2)*size+size-1] );
+	}
+}
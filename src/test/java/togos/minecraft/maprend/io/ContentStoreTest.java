@@ -0,0 +1,111 @@
+package togos.minecraft.maprend.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class ContentStoreTest extends TestCase
+{
+	File dir;
+	ContentStore store;
+
+	@Override protected void setUp() throws Exception {
+		dir = File.createTempFile("content-store", "");
+		dir.delete();
+		dir.mkdirs();
+		store = newStore();
+	}
+
+	protected ContentStore newStore() {
+		ContentStore s = new ContentStore();
+		s.rootStoreDir = new File(dir, "store").getPath();
+		return s;
+	}
+
+	protected static void delete( File f ) {
+		if( f.isDirectory() ) for( File c : f.listFiles() ) delete( c );
+		f.delete();
+	}
+
+	@Override protected void tearDown() throws Exception {
+		delete( dir );
+	}
+
+	protected static void write( File f, String content, long lastModified ) throws IOException {
+		f.getParentFile().mkdirs();
+		FileOutputStream fos = new FileOutputStream(f);
+		try {
+			fos.write(content.getBytes("UTF-8"));
+		} finally {
+			fos.close();
+		}
+		f.setLastModified(lastModified);
+	}
+
+	public void testStoredFileUrnIsCached() throws IOException {
+		File f = new File(dir, "some tiles/tile 0.png");
+		write( f, "first", 1000000000000L );
+		String urn = store.store(f);
+		assertEquals( store.store("first".getBytes("UTF-8")), urn );
+
+		// Same size and time: assumed unchanged, so not re-hashed
+		write( f, "other", 1000000000000L );
+		assertEquals( urn, store.store(f) );
+
+		// Different time
+		f.setLastModified( 1000000002000L );
+		String otherUrn = store.store(f);
+		assertFalse( urn.equals(otherUrn) );
+
+		// Different size
+		write( f, "longer", 1000000002000L );
+		String longerUrn = store.store(f);
+		assertFalse( otherUrn.equals(longerUrn) );
+
+		// Stored copy deleted
+		File blob = store.storeFileForUrn(longerUrn);
+		blob.setWritable(true);
+		assertTrue( blob.delete() );
+		assertEquals( longerUrn, store.store(f) );
+		assertTrue( blob.exists() );
+	}
+
+	public void testUrnCacheSurvivesSaveAndLoad() throws IOException {
+		File f = new File(dir, "some tiles/tile 0.png");
+		write( f, "first", 1000000000000L );
+		String urn = store.store(f);
+		store.saveUrnCache();
+
+		write( f, "other", 1000000000000L );
+		ContentStore reloaded = newStore();
+		assertEquals( urn, reloaded.store(f) );
+		assertEquals( 1, reloaded.getUrnCache().size() );
+		assertEquals( f.getCanonicalPath(), reloaded.getUrnCache().keySet().iterator().next() );
+	}
+
+	public void testSameContentIsStoredOnce() throws IOException {
+		File f1 = new File(dir, "tiles/tile.0.0.png"), f2 = new File(dir, "tiles/tile.1.0.png");
+		write( f1, "same", 1000000000000L );
+		String urn = store.store(f1);
+		File blob = store.storeFileForUrn(urn);
+		blob.setLastModified( 1000000000000L );
+
+		write( f2, "same", 1000000002000L );
+		assertEquals( urn, store.store(f2) );
+		assertEquals( 1000000000000L, blob.lastModified() );
+		assertEquals( 1, blob.getParentFile().listFiles().length );
+		// Just the blob's directory; no temp files left behind
+		assertEquals( 1, new File(store.rootStoreDir).listFiles().length );
+	}
+
+	public void testFailedRenameLeavesNoTempFile() throws IOException {
+		File parent = new File(dir, "blobs");
+		File dest = new File(parent, "blob");
+		// A non-empty directory can't be replaced by a file
+		write( new File(dest, "x"), "x", 1000000000000L );
+		ContentStore.write( "data".getBytes("UTF-8"), dest );
+		assertEquals( 1, parent.listFiles().length );
+	}
+}
@@ -0,0 +1,108 @@
+package togos.minecraft.maprend.io;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+public class PNGWriterTest extends TestCase
+{
+	protected static int[] randomImage( int width, int height ) {
+		Random r = new Random(1234);
+		int[] argb = new int[width*height];
+		for( int i=0; i<argb.length; ++i ) {
+			// Runs of similar colors with the occasional jump, like map tiles
+			argb[i] = r.nextInt(8) == 0 || i == 0 ? r.nextInt() : argb[i-1] + r.nextInt(3);
+		}
+		return argb;
+	}
+	
+	protected void assertRoundTrips( int[] argb, int width, int height, PNGWriter w, int bandHeight ) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		PNGWriter.Encoder enc = w.open( baos, width, height );
+		for( int y=0; y<height; y+=bandHeight ) {
+			enc.writeRows( argb, y*width, Math.min(bandHeight, height-y) );
+		}
+		enc.close();
+		
+		BufferedImage img = ImageIO.read( new ByteArrayInputStream(baos.toByteArray()) );
+		assertEquals( width, img.getWidth() );
+		assertEquals( height, img.getHeight() );
+		int[] read = img.getRGB( 0, 0, width, height, null, 0, width );
+		for( int i=0; i<argb.length; ++i ) {
+			assertEquals( "pixel "+i, argb[i], read[i] );
+		}
+	}
+	
+	public void testEachFilter() throws IOException {
+		int[] argb = randomImage( 37, 29 );
+		for( int filter=PNGWriter.FILTER_ADAPTIVE; filter<=PNGWriter.FILTER_PAETH; ++filter ) {
+			assertRoundTrips( argb, 37, 29, new PNGWriter(6, filter, 1), 29 );
+		}
+	}
+	
+	public void testBands() throws IOException {
+		int[] argb = randomImage( 64, 100 );
+		assertRoundTrips( argb, 64, 100, new PNGWriter(1, PNGWriter.FILTER_PAETH, 1), 7 );
+	}
+	
+	public void testReusingDeflatedRows() throws IOException {
+		int width = 40, height = 30;
+		int[] argb = randomImage( width, height );
+		PNGWriter w = new PNGWriter(4, PNGWriter.FILTER_SUB, 1);
+		
+		ByteArrayOutputStream first = new ByteArrayOutputStream();
+		PNGWriter.Encoder enc = w.open( first, width, height );
+		enc.writeRows( argb, 0, 10 );
+		long start = enc.getDeflatedLength();
+		long adler = enc.writeRows( argb, 10*width, 10 );
+		int length = (int)(enc.getDeflatedLength() - start);
+		enc.writeRows( argb, 20*width, 10 );
+		enc.close();
+		
+		PNGDataInputStream data = new PNGDataInputStream( new ByteArrayInputStream(first.toByteArray()) );
+		byte[] middle = new byte[length];
+		data.skip( start );
+		new DataInputStream(data).readFully( middle );
+		
+		int[] changed = argb.clone();
+		for( int i=0; i<10*width; ++i ) changed[i] = 0xFF123456;
+		for( int i=20*width; i<30*width; ++i ) changed[i] = 0x80654321;
+		ByteArrayOutputStream second = new ByteArrayOutputStream();
+		enc = w.open( second, width, height );
+		enc.writeRows( changed, 0, 10 );
+		enc.writeDeflatedRows( middle, 0, length, adler, 10 );
+		enc.writeRows( changed, 20*width, 10 );
+		enc.close();
+		
+		BufferedImage img = ImageIO.read( new ByteArrayInputStream(second.toByteArray()) );
+		int[] read = img.getRGB( 0, 0, width, height, null, 0, width );
+		for( int i=0; i<changed.length; ++i ) {
+			assertEquals( "pixel "+i, changed[i], read[i] );
+		}
+	}
+	
+	public void testParallelStrips() throws IOException {
+		int[] argb = randomImage( 50, 300 );
+		assertRoundTrips( argb, 50, 300, new PNGWriter(4, PNGWriter.FILTER_UP, 3), 300 );
+		assertRoundTrips( argb, 50, 300, new PNGWriter(4, PNGWriter.FILTER_AVERAGE, 4), 130 );
+	}
+	
+	public void testInvalidSettingsRejected() {
+		new PNGWriter(4, PNGWriter.FILTER_ADAPTIVE, 1);
+		int[][] invalid = { {10, PNGWriter.FILTER_NONE, 1}, {4, 5, 1}, {4, -2, 1}, {4, PNGWriter.FILTER_SUB, 0} };
+		for( int[] settings : invalid ) {
+			try {
+				new PNGWriter(settings[0], settings[1], settings[2]);
+				fail("Expected IllegalArgumentException for "+settings[0]+", "+settings[1]+", "+settings[2]);
+			} catch( IllegalArgumentException e ) {
+			}
+		}
+	}
+}
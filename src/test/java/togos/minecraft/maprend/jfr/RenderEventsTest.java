@@ -0,0 +1,55 @@
+package togos.minecraft.maprend.jfr;
+
+import java.io.File;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.TestCase;
+
+public class RenderEventsTest extends TestCase
+{
+	public void testNothingBegunWithoutRecording() {
+		assertNull( RenderEvents.begin(RenderEvents.CHUNK_PARSE) );
+		// Ending an event that was never begun does nothing
+		RenderEvents.endChunkParse( null, 0, 0, 0, 0, 0 );
+	}
+
+	public void testEventsRecorded() throws Exception {
+		if( !RenderEvents.AVAILABLE ) return;
+
+		File f = File.createTempFile("render-events", ".jfr");
+		try {
+			Recording rec = new Recording();
+			rec.enable("togos.minecraft.maprend.ChunkDecompress");
+			rec.enable("togos.minecraft.maprend.ChunkParse");
+			rec.disable("togos.minecraft.maprend.Shade");
+			rec.start();
+			RenderEvents.endChunkDecompress( RenderEvents.begin(RenderEvents.CHUNK_DECOMPRESS), new File("world/r.-3.7.mca"), 5, 6, 100, 400 );
+			RenderEvents.endChunkParse( RenderEvents.begin(RenderEvents.CHUNK_PARSE), -3, 7, 5, 6, 4 );
+			assertNull( RenderEvents.begin(RenderEvents.SHADE) );
+			rec.stop();
+			rec.dump(f.toPath());
+			rec.close();
+
+			List<RecordedEvent> events = RecordingFile.readAllEvents(f.toPath());
+			assertEquals( 2, events.size() );
+			RecordedEvent decompress = events.get(0), parse = events.get(1);
+			if( decompress.getEventType().getName().endsWith("ChunkParse") ) {
+				parse = events.get(0);
+				decompress = events.get(1);
+			}
+			assertEquals( "togos.minecraft.maprend.ChunkDecompress", decompress.getEventType().getName() );
+			assertEquals( -3, decompress.getInt("regionX") );
+			assertEquals( 7, decompress.getInt("regionZ") );
+			assertEquals( 5, decompress.getInt("chunkX") );
+			assertEquals( 400, decompress.getInt("bytes") );
+			assertEquals( 7, parse.getInt("regionZ") );
+			assertEquals( 6, parse.getInt("chunkZ") );
+			assertEquals( 4, parse.getInt("sections") );
+		} finally {
+			f.delete();
+		}
+	}
+}